@@ -0,0 +1,345 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Banco de pruebas de rendimiento de Cuenta, su persistencia y la exportación.
+ *
+ * Cada prueba se calienta y después se mide varias veces sobre cuentas con historiales de distinto
+ * tamaño. Además del tiempo por operación se informa de la memoria reservada por operación y del
+ * tiempo de GC (lo mismo que da {@code -prof gc} en JMH), para tener una referencia con la que
+ * comparar cada cambio de rendimiento.
+ *
+ * Uso (desde la raíz del proyecto):
+ * <pre>
+ *   javac -d out src/*.java bench/*.java
+ *   java -Xmx8g -cp out BenchmarkCuenta [tamaños] [filtro]
+ * </pre>
+ * {@code tamaños} es una lista separada por comas (por defecto 1000,100000,10000000) y
+ * {@code filtro} limita las pruebas a las que contienen ese texto en el nombre. Las pruebas se
+ * miden con las métricas de la aplicación activas (ver {@link Metricas}); para medir su coste se
+ * compara con una ejecución con {@code -Dcuenta.metricas=false}. Las pruebas de exportación y de
+ * listado repiten la misma cuenta, así que vacían antes la caché de textos (ver
+ * {@link CacheExportacion}) para medir el formateo; las terminadas en {@code .cache} miden en
+ * cambio lo que cuesta sacar el texto de la caché.
+ *
+ * Las mismas pruebas se pueden ejecutar con JMH desde el módulo {@code jmh} (ver su pom.xml), que
+ * las obtiene de {@link #pruebas(int, Path)}.
+ */
+public class BenchmarkCuenta {
+    private static final int ITERACIONES_CALENTAMIENTO = 3;
+    private static final int ITERACIONES_MEDIDA = 5;
+    // Operaciones por iteración en las pruebas de una sola operación (ingresar, retirar...)
+    private static final int OPERACIONES_POR_LOTE = 100_000;
+    private static final long INSTANTE_FIJO = Movimiento.instanteDesdeFecha("2024-01-01 10:00:00");
+
+    /** Trabajo que se mide; devuelve el número de operaciones que ha hecho. */
+    interface Prueba extends Callable<Long> {
+        long ejecutar() throws Exception;
+
+        @Override
+        default Long call() throws Exception {
+            return ejecutar();
+        }
+    }
+
+    private static final com.sun.management.ThreadMXBean HILOS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        int[] tamanos = {1_000, 100_000, 10_000_000};
+        if (args.length > 0) {
+            String[] partes = args[0].split(",");
+            tamanos = new int[partes.length];
+            for (int i = 0; i < partes.length; i++) {
+                tamanos[i] = Integer.parseInt(partes[i].trim());
+            }
+        }
+        String filtro = args.length > 1 ? args[1] : "";
+
+        Path temporal = Files.createTempDirectory("bench-cuenta");
+        PrintStream consola = System.out;
+        // Por si alguna prueba escribe por consola, durante la medida se descarta esa salida
+        PrintStream nula = new PrintStream(OutputStream.nullOutputStream());
+
+        consola.printf("%-28s %12s %14s %12s %14s %10s%n",
+                "prueba", "movimientos", "ns/op", "ops/s", "bytes/op", "gc ms");
+        for (int tamano : tamanos) {
+            Cuenta base = cuentaConHistorial(tamano);
+            // Carpeta por tamaño: los archivos de carga no se reutilizan entre historiales distintos
+            Path carpeta = Files.createDirectories(temporal.resolve("n" + tamano));
+            for (Map.Entry<String, Prueba> p : pruebas(base, carpeta).entrySet()) {
+                if (!p.getKey().contains(filtro)) continue;
+                System.setOut(nula);
+                Resultado r;
+                try {
+                    r = medir(p.getValue());
+                } finally {
+                    System.setOut(consola);
+                }
+                consola.printf(Locale.ROOT, "%-28s %12d %14.1f %12.0f %14.1f %10d%n",
+                        p.getKey(), tamano, r.nsPorOperacion, 1e9 / r.nsPorOperacion, r.bytesPorOperacion, r.gcMs);
+            }
+        }
+    }
+
+    /**
+     * Pruebas sobre una cuenta con {@code tamano} movimientos, por nombre, que dejan sus archivos en
+     * {@code carpeta}. Cada una devuelve el número de operaciones que ha hecho. Es lo que ejecutan
+     * los benchmarks de JMH del módulo {@code jmh}.
+     */
+    public static Map<String, ? extends Callable<Long>> pruebas(int tamano, Path carpeta) {
+        return pruebas(cuentaConHistorial(tamano), carpeta);
+    }
+
+    // Pruebas sobre una cuenta con historial; las que modifican la cuenta trabajan sobre una copia
+    // (creada una vez, fuera de la medida, y que va creciendo con cada iteración)
+    private static Map<String, Prueba> pruebas(Cuenta base, Path temporal) {
+        Cuenta copia = copiar(base);
+        Movimiento fijo = new Movimiento(TipoMovimiento.INGRESO, 125, INSTANTE_FIJO);
+        Map<String, Prueba> pruebas = new LinkedHashMap<>();
+        pruebas.put("cuenta.ingresar", () -> {
+            for (int i = 0; i < OPERACIONES_POR_LOTE; i++) copia.ingresar(10.5);
+            return OPERACIONES_POR_LOTE;
+        });
+        pruebas.put("cuenta.ingresar.asincrona", () -> {
+            // La salida escribe en un PrintStream nulo: se mide el coste de avisar, no el de la consola
+            try (SalidaConsolaAsincrona salida = new SalidaConsolaAsincrona(
+                    new PrintStream(OutputStream.nullOutputStream()), 4096)) {
+                copia.setEscucha(salida);
+                for (int i = 0; i < OPERACIONES_POR_LOTE; i++) copia.ingresar(10.5);
+            } finally {
+                copia.setEscucha(null);
+            }
+            return OPERACIONES_POR_LOTE;
+        });
+        pruebas.put("cuenta.retirar", () -> {
+            copia.ingresar(OPERACIONES_POR_LOTE);
+            for (int i = 0; i < OPERACIONES_POR_LOTE; i++) copia.retirar(1);
+            return OPERACIONES_POR_LOTE;
+        });
+        pruebas.put("cuenta.addMovimiento", () -> {
+            for (int i = 0; i < OPERACIONES_POR_LOTE; i++) copia.addMovimiento(fijo);
+            return OPERACIONES_POR_LOTE;
+        });
+        Operacion[] lote = new Operacion[OPERACIONES_POR_LOTE];
+        for (int i = 0; i < lote.length; i++) {
+            lote[i] = i % 2 == 0 ? Operacion.ingreso(1050) : Operacion.retirada(100);
+        }
+        pruebas.put("cuenta.aplicarLote", () -> {
+            copia.aplicarLote(lote);
+            return OPERACIONES_POR_LOTE;
+        });
+        pruebas.put("concurrente.ingresar/retirar", () -> operacionesConcurrentes(base));
+        pruebas.put("persistencia.guardar", () -> {
+            guardar(base, temporal.resolve("cuenta.dat"));
+            return 1;
+        });
+        pruebas.put("persistencia.cargar", () -> {
+            Path archivo = temporal.resolve("cuenta-carga.dat");
+            if (!Files.exists(archivo)) guardar(base, archivo);
+            cargar(archivo);
+            return 1;
+        });
+        pruebas.put("persistencia.binario.guardar", () -> {
+            SnapshotBinario.guardar(base, temporal.resolve("cuenta.snap"));
+            return 1;
+        });
+        pruebas.put("persistencia.binario.cargar", () -> {
+            Path archivo = temporal.resolve("cuenta-carga.snap");
+            if (!Files.exists(archivo)) SnapshotBinario.guardar(base, archivo);
+            Cuenta cargada = SnapshotBinario.cargar(archivo, true);
+            if (cargada.getMovimientos() instanceof HistorialPerezoso) {
+                ((HistorialPerezoso) cargada.getMovimientos()).close();
+            }
+            return 1;
+        });
+        pruebas.put("persistencia.binario.cargar.completa", () -> {
+            Path archivo = temporal.resolve("cuenta-carga.snap");
+            if (!Files.exists(archivo)) SnapshotBinario.guardar(base, archivo);
+            SnapshotBinario.cargar(archivo, false);
+            return 1;
+        });
+        pruebas.put("movimientos.texto", () -> {
+            base.getCache().vaciar();
+            return textoMovimientos(base);
+        });
+        pruebas.put("movimientos.texto.cache", () -> textoMovimientos(base));
+        pruebas.put("exportar.csv", () -> {
+            base.getCache().vaciar();
+            ExportarCuenta.exportarCSV(base, temporal.resolve("cuenta.csv"));
+            return 1;
+        });
+        pruebas.put("exportar.xml", () -> {
+            base.getCache().vaciar();
+            ExportarCuenta.exportarXML(base, temporal.resolve("cuenta.xml"));
+            return 1;
+        });
+        pruebas.put("exportar.json", () -> {
+            base.getCache().vaciar();
+            ExportarCuenta.exportarJSON(base, temporal.resolve("cuenta.json"));
+            return 1;
+        });
+        pruebas.put("exportar.todo", () -> {
+            base.getCache().vaciar();
+            ExportarCuenta.exportarTodo(base, temporal.resolve("todo.csv"),
+                    temporal.resolve("todo.xml"), temporal.resolve("todo.json"));
+            return 1;
+        });
+        pruebas.put("exportar.paralelo", () -> {
+            base.getCache().vaciar();
+            ExportacionParalela.exportarTodo(base, temporal.resolve("paralelo.csv"),
+                    temporal.resolve("paralelo.xml"), temporal.resolve("paralelo.json"));
+            return 1;
+        });
+        // La misma exportación que exportar.todo, sacada de la caché desde la segunda iteración
+        pruebas.put("exportar.cache", () -> {
+            ExportarCuenta.exportarTodo(base, temporal.resolve("cache.csv"),
+                    temporal.resolve("cache.xml"), temporal.resolve("cache.json"));
+            return 1;
+        });
+        pruebas.put("archivo.compacto.escribir", () -> {
+            ArchivoCompacto.escribir(base, temporal.resolve("cuenta.arc"));
+            return 1;
+        });
+        pruebas.put("archivo.compacto.leer", () -> {
+            Path archivo = temporal.resolve("cuenta-carga.arc");
+            if (!Files.exists(archivo)) ArchivoCompacto.escribir(base, archivo);
+            ArchivoCompacto.leer(archivo);
+            return 1;
+        });
+        return pruebas;
+    }
+
+    // Pide el texto de todos los bloques de movimientos, como al verlos todos en el menú
+    private static long textoMovimientos(Cuenta base) {
+        int n = base.getMovimientos().size();
+        for (int b = 0; b * CacheExportacion.LINEAS_POR_BLOQUE < n; b++) base.textoMovimientos(b);
+        return 1;
+    }
+
+    private static Resultado medir(Prueba prueba) throws Exception {
+        for (int i = 0; i < ITERACIONES_CALENTAMIENTO; i++) {
+            prueba.ejecutar();
+        }
+        System.gc();
+
+        long hilo = Thread.currentThread().threadId();
+        long gcAntes = tiempoGc();
+        long bytesAntes = HILOS.getThreadAllocatedBytes(hilo);
+        long operaciones = 0;
+        long inicio = System.nanoTime();
+        for (int i = 0; i < ITERACIONES_MEDIDA; i++) {
+            operaciones += prueba.ejecutar();
+        }
+        long nanos = System.nanoTime() - inicio;
+        long bytes = HILOS.getThreadAllocatedBytes(hilo) - bytesAntes;
+
+        Resultado r = new Resultado();
+        r.nsPorOperacion = (double) nanos / operaciones;
+        r.bytesPorOperacion = (double) bytes / operaciones;
+        r.gcMs = tiempoGc() - gcAntes;
+        return r;
+    }
+
+    // Varios hilos ingresan y retiran a la vez sobre la misma cuenta; se comprueba que el saldo
+    // final coincide con la suma de los movimientos y que nunca queda en negativo
+    private static long operacionesConcurrentes(Cuenta base) throws Exception {
+        CuentaConcurrente c = new CuentaConcurrente(base.getCliente());
+        c.ingresarCentimos(1_000_000);
+        int hilos = Runtime.getRuntime().availableProcessors();
+        int porHilo = OPERACIONES_POR_LOTE / hilos;
+        ExecutorService ejecutor = Executors.newFixedThreadPool(hilos);
+        try {
+            List<Future<?>> tareas = new ArrayList<>();
+            for (int t = 0; t < hilos; t++) {
+                int semilla = t;
+                tareas.add(ejecutor.submit(() -> {
+                    Random r = new Random(semilla);
+                    for (int i = 0; i < porHilo; i++) {
+                        if (r.nextBoolean()) c.ingresarCentimos(1 + r.nextInt(500));
+                        else c.retirarCentimos(1 + r.nextInt(700));
+                    }
+                }));
+            }
+            for (Future<?> f : tareas) f.get();
+        } finally {
+            ejecutor.shutdown();
+        }
+
+        long suma = 0;
+        for (Movimiento m : c.getMovimientos()) {
+            suma += m.getTipoMovimiento() == TipoMovimiento.INGRESO ? m.getCentimos() : -m.getCentimos();
+        }
+        if (suma != c.getSaldoCentimos() || c.getSaldoCentimos() < 0) {
+            throw new IllegalStateException("Saldo incoherente: " + c.getSaldoCentimos() + " frente a " + suma);
+        }
+        return (long) porHilo * hilos;
+    }
+
+    private static Cuenta cuentaConHistorial(int tamano) {
+        Cuenta c = new Cuenta(new Cliente("Cliente de prueba"));
+        Random r = new Random(42);
+        for (int i = 0; i < tamano; i++) {
+            TipoMovimiento tipo = r.nextInt(3) == 0 ? TipoMovimiento.RETIRADA : TipoMovimiento.INGRESO;
+            c.addMovimiento(new Movimiento(tipo, r.nextInt(100_000), INSTANTE_FIJO));
+        }
+        return c;
+    }
+
+    private static Cuenta copiar(Cuenta base) {
+        Cuenta c = new Cuenta(base.getCliente());
+        for (Movimiento m : base.getMovimientos()) c.addMovimiento(m);
+        return c;
+    }
+
+    // Serialización de Java, como guardaban Main.guardarCuenta / Main.cargarCuenta antes del
+    // formato binario (para comparar con persistencia.binario.*)
+    private static void guardar(Cuenta cuenta, Path archivo) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(archivo.toFile());
+             ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(fos))) {
+            oos.writeObject(cuenta);
+        }
+    }
+
+    private static Cuenta cargar(Path archivo) throws IOException, ClassNotFoundException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(archivo));
+             ObjectInputStream ois = new ObjectInputStream(in)) {
+            return (Cuenta) ois.readObject();
+        }
+    }
+
+    private static long tiempoGc() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    private static class Resultado {
+        double nsPorOperacion;
+        double bytesPorOperacion;
+        long gcMs;
+    }
+}
@@ -0,0 +1,121 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Generador de carga para {@link ServidorCuenta}: abre varias conexiones y en cada una envía
+ * ingresos, retiradas y consultas de saldo manteniendo varias peticiones en vuelo (pipelining).
+ * Al terminar informa de las operaciones por segundo y de la latencia (p50, p99 y máxima) de cada
+ * petición, desde que se envía hasta que llega su respuesta.
+ *
+ * Uso (con el servidor arrancado con {@code java -cp out Main --servidor}):
+ * <pre>
+ *   java -cp out ClienteCarga [puerto] [conexiones] [operaciones por conexión] [peticiones en vuelo]
+ * </pre>
+ * Por defecto: puerto 7070, 8 conexiones, 100000 operaciones y 32 peticiones en vuelo. Con 1
+ * petición en vuelo cada conexión espera cada respuesta antes de enviar la siguiente.
+ */
+public class ClienteCarga {
+    private static final int TAM_BUFFER = 64 * 1024;
+
+    private static final Metricas.Medida MEDIDA = Metricas.medida("carga.peticion");
+    private static final LongAdder REALIZADAS = new LongAdder();
+    private static final LongAdder RECHAZADAS = new LongAdder();
+    private static final LongAdder ERRORES = new LongAdder();
+
+    public static void main(String[] args) throws Exception {
+        int puerto = args.length > 0 ? Integer.parseInt(args[0]) : ServidorCuenta.PUERTO_POR_DEFECTO;
+        int numConexiones = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int operaciones = args.length > 2 ? Integer.parseInt(args[2]) : 100_000;
+        int enVuelo = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+
+        System.out.println("Conexiones: " + numConexiones + ", operaciones por conexión: " + operaciones
+                + ", peticiones en vuelo: " + enVuelo);
+        long inicio = System.nanoTime();
+        try (ExecutorService hilos = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> conexiones = new ArrayList<>();
+            for (int i = 0; i < numConexiones; i++) {
+                long semilla = i;
+                conexiones.add(hilos.submit(() -> {
+                    conexion(puerto, operaciones, enVuelo, semilla);
+                    return null;
+                }));
+            }
+            for (Future<?> f : conexiones) {
+                f.get();
+            }
+        }
+        double segundos = (System.nanoTime() - inicio) / 1e9;
+        long total = (long) numConexiones * operaciones;
+
+        System.out.println(String.format(Locale.ROOT, "%d operaciones en %.2f s: %.0f ops/s",
+                total, segundos, total / segundos));
+        System.out.println(String.format(Locale.ROOT, "Latencia: media %.1f µs, p50 %.1f µs, p99 %.1f µs, máxima %.1f µs",
+                MEDIDA.getMedia() / 1000.0, MEDIDA.percentil(0.50) / 1000.0,
+                MEDIDA.percentil(0.99) / 1000.0, MEDIDA.getMaximo() / 1000.0));
+        System.out.println("Realizadas: " + REALIZADAS.sum() + ", rechazadas: " + RECHAZADAS.sum()
+                + ", errores: " + ERRORES.sum());
+    }
+
+    // Una conexión: mantiene hasta enVuelo peticiones enviadas sin respuesta
+    private static void conexion(int puerto, int operaciones, int enVuelo, long semilla) throws IOException {
+        SplittableRandom aleatorio = new SplittableRandom(semilla);
+        // Instante de envío de cada petición en vuelo (las respuestas llegan en orden)
+        long[] inicios = new long[enVuelo];
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), puerto);
+             DataInputStream entrada = new DataInputStream(new BufferedInputStream(socket.getInputStream(), TAM_BUFFER));
+             DataOutputStream salida = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), TAM_BUFFER))) {
+            socket.setTcpNoDelay(true);
+            int enviadas = 0;
+            int recibidas = 0;
+            while (recibidas < operaciones) {
+                while (enviadas < operaciones && enviadas - recibidas < enVuelo) {
+                    inicios[enviadas % enVuelo] = MEDIDA.iniciar();
+                    enviar(salida, aleatorio);
+                    enviadas++;
+                }
+                // Antes de quedarse esperando se envían las peticiones acumuladas
+                if (entrada.available() == 0) {
+                    salida.flush();
+                }
+                int longitud = entrada.readInt();
+                byte estado = entrada.readByte();
+                entrada.skipNBytes(longitud - 1);
+                MEDIDA.registrar(inicios[recibidas % enVuelo]);
+                recibidas++;
+                if (estado == ServidorCuenta.ESTADO_OK) {
+                    REALIZADAS.increment();
+                } else if (estado == ResultadoOperacion.SALDO_INSUFICIENTE.ordinal()) {
+                    RECHAZADAS.increment();
+                } else {
+                    ERRORES.increment();
+                }
+            }
+        }
+    }
+
+    // 45 % ingresos, 45 % retiradas y 10 % consultas de saldo, de 0,01 a 100,00
+    private static void enviar(DataOutputStream salida, SplittableRandom aleatorio) throws IOException {
+        int tirada = aleatorio.nextInt(100);
+        if (tirada < 10) {
+            salida.writeInt(1);
+            salida.writeByte(ServidorCuenta.OP_SALDO);
+        } else {
+            salida.writeInt(9);
+            salida.writeByte(tirada < 55 ? ServidorCuenta.OP_INGRESAR : ServidorCuenta.OP_RETIRAR);
+            salida.writeLong(1 + aleatorio.nextInt(10_000));
+        }
+    }
+}
@@ -0,0 +1,225 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prueba de estrés de {@link CuentaConcurrente}: muchos hilos virtuales hacen a la vez ingresos,
+ * retiradas y lotes ({@link CuentaConcurrente#aplicarLote(Operacion[])}) sobre la misma cuenta
+ * mientras otro hilo vigila el saldo. Al terminar comprueba que:
+ * <ul>
+ *   <li>el saldo nunca ha sido negativo,</li>
+ *   <li>el saldo final es la suma de los movimientos del historial y la de las operaciones aceptadas,</li>
+ *   <li>cada operación aceptada está en el historial exactamente una vez y no hay posiciones vacías,</li>
+ *   <li>los movimientos de cada lote ocupan posiciones consecutivas y en su orden,</li>
+ *   <li>las estadísticas cuentan los mismos movimientos y totales que el historial.</li>
+ * </ul>
+ * Cada operación usa una cantidad distinta (su número de operación, en céntimos), así que cada
+ * movimiento del historial se puede atribuir a la operación que lo creó.
+ *
+ * Uso (desde la raíz del proyecto):
+ * <pre>
+ *   javac -d out src/*.java bench/*.java
+ *   java -cp out EstresCuentaConcurrente [hilos] [operaciones por hilo] [rondas]
+ * </pre>
+ * Por defecto: 64 hilos, 20000 operaciones y 5 rondas, cada una con una cuenta nueva. Termina con
+ * código 1 si alguna comprobación falla.
+ */
+public class EstresCuentaConcurrente {
+    private static final int TAM_LOTE_MAXIMO = 8;
+
+    public static void main(String[] args) throws Exception {
+        int hilos = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int operaciones = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int rondas = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        System.out.println("Hilos: " + hilos + ", operaciones por hilo: " + operaciones + ", rondas: " + rondas);
+        boolean correcto = true;
+        for (int r = 0; r < rondas; r++) {
+            correcto &= ronda(r, hilos, operaciones);
+        }
+        if (!correcto) {
+            System.exit(1);
+        }
+    }
+
+    // Una ronda sobre una cuenta nueva; devuelve si han pasado todas las comprobaciones
+    private static boolean ronda(int numero, int hilos, int operaciones) throws Exception {
+        CuentaConcurrente cuenta = new CuentaConcurrente(new Cliente("Estrés"));
+        AtomicBoolean terminado = new AtomicBoolean();
+        AtomicLong saldoMinimo = new AtomicLong(Long.MAX_VALUE);
+
+        // Vigila el saldo mientras los hilos operan
+        Thread vigilante = Thread.ofPlatform().daemon().start(() -> {
+            while (!terminado.get()) {
+                saldoMinimo.accumulateAndGet(cuenta.getSaldoCentimos(), Math::min);
+            }
+        });
+
+        long inicio = System.nanoTime();
+        List<Resultado> resultados = new ArrayList<>();
+        try (ExecutorService ejecutor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<Resultado>> tareas = new ArrayList<>();
+            for (int h = 0; h < hilos; h++) {
+                // Cada hilo usa su propio rango de cantidades, que no se solapan
+                long primeraCantidad = 1 + (long) h * operaciones;
+                long semilla = (long) numero * hilos + h;
+                tareas.add(ejecutor.submit(() -> operar(cuenta, primeraCantidad, operaciones, semilla, saldoMinimo)));
+            }
+            for (Future<Resultado> f : tareas) {
+                resultados.add(f.get());
+            }
+        }
+        double ms = (System.nanoTime() - inicio) / 1e6;
+        terminado.set(true);
+        vigilante.join();
+
+        List<String> errores = comprobar(cuenta, resultados, saldoMinimo.get());
+        long aceptadas = 0;
+        long rechazadas = 0;
+        for (Resultado r : resultados) {
+            aceptadas += r.aceptadas.size();
+            rechazadas += r.rechazadas;
+        }
+        System.out.println(String.format(Locale.ROOT,
+                "Ronda %d: %d movimientos (%d rechazados) en %.1f ms, saldo final %.2f €, saldo mínimo %.2f € -> %s",
+                numero, aceptadas, rechazadas, ms, cuenta.getSaldo(), saldoMinimo.get() / 100.0,
+                errores.isEmpty() ? "OK" : "ERROR"));
+        for (String error : errores) {
+            System.out.println("  " + error);
+        }
+        return errores.isEmpty();
+    }
+
+    // 40 % ingresos, 40 % retiradas y 20 % lotes de 2 a TAM_LOTE_MAXIMO operaciones mezcladas
+    private static Resultado operar(CuentaConcurrente cuenta, long primeraCantidad, int operaciones,
+                                    long semilla, AtomicLong saldoMinimo) {
+        SplittableRandom aleatorio = new SplittableRandom(semilla);
+        Resultado resultado = new Resultado();
+        long cantidad = primeraCantidad;
+        long ultima = primeraCantidad + operaciones;
+        while (cantidad < ultima) {
+            int tirada = aleatorio.nextInt(100);
+            if (tirada < 40) {
+                anotar(resultado, cuenta.ingresarCentimos(cantidad).realizada(), cantidad);
+                cantidad++;
+            } else if (tirada < 80) {
+                anotar(resultado, cuenta.retirarCentimos(cantidad).realizada(), -cantidad);
+                cantidad++;
+            } else {
+                int tam = (int) Math.min(2 + aleatorio.nextInt(TAM_LOTE_MAXIMO - 1), ultima - cantidad);
+                Operacion[] lote = new Operacion[tam];
+                long[] firmadas = new long[tam];
+                for (int i = 0; i < tam; i++, cantidad++) {
+                    boolean ingreso = aleatorio.nextBoolean();
+                    lote[i] = ingreso ? Operacion.ingreso(cantidad) : Operacion.retirada(cantidad);
+                    firmadas[i] = ingreso ? cantidad : -cantidad;
+                }
+                if (cuenta.aplicarLote(lote) < 0) {
+                    for (long firmada : firmadas) {
+                        resultado.aceptadas.add(firmada);
+                    }
+                    resultado.lotes.add(firmadas);
+                } else {
+                    resultado.rechazadas += tam;
+                }
+            }
+            // El propio hilo también comprueba el saldo que ve tras cada operación
+            long saldo = cuenta.getSaldoCentimos();
+            if (saldo < 0) saldoMinimo.accumulateAndGet(saldo, Math::min);
+        }
+        return resultado;
+    }
+
+    private static void anotar(Resultado resultado, boolean aceptada, long firmada) {
+        if (aceptada) {
+            resultado.aceptadas.add(firmada);
+        } else {
+            resultado.rechazadas++;
+        }
+    }
+
+    private static List<String> comprobar(CuentaConcurrente cuenta, List<Resultado> resultados, long saldoMinimo) {
+        List<String> errores = new ArrayList<>();
+        if (saldoMinimo < 0) {
+            errores.add("El saldo ha llegado a ser negativo: " + saldoMinimo + " céntimos");
+        }
+
+        // Posición de cada cantidad en el historial; una cantidad repetida es un movimiento duplicado
+        List<Movimiento> movimientos = cuenta.getMovimientos();
+        int total = movimientos.size();
+        Map<Long, Integer> posiciones = new HashMap<>(total * 2);
+        long sumaHistorial = 0;
+        for (int i = 0; i < total; i++) {
+            Movimiento m = movimientos.get(i);
+            if (m == null) {
+                errores.add("Posición " + i + " vacía");
+                continue;
+            }
+            long firmada = m.getTipoMovimiento() == TipoMovimiento.RETIRADA ? -m.getCentimos() : m.getCentimos();
+            sumaHistorial += firmada;
+            Integer anterior = posiciones.put(firmada, i);
+            if (anterior != null) {
+                errores.add("Movimiento duplicado en las posiciones " + anterior + " y " + i + ": " + m);
+            }
+        }
+
+        long sumaAceptadas = 0;
+        long numAceptadas = 0;
+        for (Resultado r : resultados) {
+            for (int i = 0; i < r.aceptadas.size(); i++) {
+                long firmada = r.aceptadas.get(i);
+                sumaAceptadas += firmada;
+                numAceptadas++;
+                if (!posiciones.containsKey(firmada)) {
+                    errores.add("Falta en el historial la operación aceptada " + firmada);
+                }
+            }
+            for (long[] lote : r.lotes) {
+                Integer primera = posiciones.get(lote[0]);
+                for (int i = 1; primera != null && i < lote.length; i++) {
+                    Integer posicion = posiciones.get(lote[i]);
+                    if (posicion == null || posicion != primera + i) {
+                        errores.add("El lote que empieza en la posición " + primera + " no es consecutivo");
+                        break;
+                    }
+                }
+            }
+        }
+        if (numAceptadas != total) {
+            errores.add("El historial tiene " + total + " movimientos y se aceptaron " + numAceptadas);
+        }
+        if (cuenta.getSaldoCentimos() != sumaHistorial) {
+            errores.add("El saldo (" + cuenta.getSaldoCentimos() + ") no es la suma del historial (" + sumaHistorial + ")");
+        }
+        if (cuenta.getSaldoCentimos() != sumaAceptadas) {
+            errores.add("El saldo (" + cuenta.getSaldoCentimos() + ") no es la suma de las operaciones aceptadas ("
+                    + sumaAceptadas + ")");
+        }
+        if (cuenta.getEstadisticas().getNumMovimientos() != total) {
+            errores.add("Las estadísticas cuentan " + cuenta.getEstadisticas().getNumMovimientos()
+                    + " movimientos y el historial tiene " + total);
+        }
+        EstadisticasCuenta estadisticas = cuenta.getEstadisticas();
+        long netoEstadisticas = estadisticas.getTotalIngresosCentimos() - estadisticas.getTotalRetiradasCentimos();
+        if (netoEstadisticas != sumaHistorial) {
+            errores.add("Las estadísticas suman " + netoEstadisticas + " y el historial " + sumaHistorial);
+        }
+        // Solo se muestran los primeros
+        return errores.size() > 20 ? new ArrayList<>(errores.subList(0, 20)) : errores;
+    }
+
+    // Lo que ha hecho un hilo: cantidades aceptadas (negativas las retiradas) y lotes aceptados
+    private static final class Resultado {
+        final List<Long> aceptadas = new ArrayList<>();
+        final List<long[]> lotes = new ArrayList<>();
+        long rechazadas;
+    }
+}
@@ -0,0 +1,72 @@
+package rendimiento;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Estado común de los benchmarks: una de las pruebas de {@code BenchmarkCuenta} sobre una cuenta
+ * con {@code tamano} movimientos.
+ *
+ * JMH no admite benchmarks en el paquete por defecto y desde un paquete con nombre no se puede
+ * hacer referencia a las clases de la aplicación, que están en él; por eso las pruebas se obtienen
+ * una vez por reflexión ({@code BenchmarkCuenta.pruebas(int, Path)}) y se ejecutan como
+ * {@link Callable}. Así los dos bancos de pruebas miden exactamente lo mismo.
+ *
+ * Igual que {@code BenchmarkCuenta}, cada medida es una ejecución de la prueba (3 de calentamiento
+ * y 5 medidas): las pruebas que modifican la cuenta la hacen crecer en cada ejecución, así que no
+ * se pueden repetir durante un tiempo fijo.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public abstract class CasoCuenta {
+    @Param({"1000", "100000", "10000000"})
+    public int tamano;
+
+    protected Callable<Long> prueba;
+    private Path carpeta;
+
+    /** Nombre de la prueba de {@code BenchmarkCuenta} que se mide. */
+    protected abstract String caso();
+
+    @Setup(Level.Trial)
+    public void preparar() throws Exception {
+        carpeta = Files.createTempDirectory("jmh-cuenta");
+        Method pruebas = Class.forName("BenchmarkCuenta").getMethod("pruebas", int.class, Path.class);
+        @SuppressWarnings("unchecked")
+        Map<String, ? extends Callable<Long>> todas = (Map<String, ? extends Callable<Long>>) pruebas.invoke(null, tamano, carpeta);
+        prueba = todas.get(caso());
+        if (prueba == null) {
+            throw new IllegalArgumentException("No existe la prueba " + caso() + " en BenchmarkCuenta.");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void limpiar() throws IOException {
+        try (var archivos = Files.walk(carpeta)) {
+            archivos.sorted((a, b) -> b.compareTo(a)).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
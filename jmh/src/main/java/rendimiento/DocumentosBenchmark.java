@@ -0,0 +1,28 @@
+package rendimiento;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Persistencia, listado y exportación de la cuenta completa: los tiempos son por documento.
+ */
+@State(Scope.Benchmark)
+public class DocumentosBenchmark extends CasoCuenta {
+    @Param({"persistencia.guardar", "persistencia.cargar", "persistencia.binario.guardar",
+            "persistencia.binario.cargar", "persistencia.binario.cargar.completa", "movimientos.texto",
+            "movimientos.texto.cache", "exportar.csv", "exportar.xml", "exportar.json", "exportar.todo",
+            "exportar.paralelo", "exportar.cache", "archivo.compacto.escribir", "archivo.compacto.leer"})
+    public String caso;
+
+    @Override
+    protected String caso() {
+        return caso;
+    }
+
+    @Benchmark
+    public long documento() throws Exception {
+        return prueba.call();
+    }
+}
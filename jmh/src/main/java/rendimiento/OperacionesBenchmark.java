@@ -0,0 +1,30 @@
+package rendimiento;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Operaciones sobre la cuenta: cada ejecución hace un lote de 100000, así que los tiempos son por
+ * operación. En {@code concurrente.ingresar/retirar} el lote se reparte entre los procesadores y,
+ * si no es divisible, se hacen algunas menos.
+ */
+@State(Scope.Benchmark)
+public class OperacionesBenchmark extends CasoCuenta {
+    @Param({"cuenta.ingresar", "cuenta.ingresar.asincrona", "cuenta.retirar", "cuenta.addMovimiento",
+            "cuenta.aplicarLote", "concurrente.ingresar/retirar"})
+    public String caso;
+
+    @Override
+    protected String caso() {
+        return caso;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(100_000)
+    public long operaciones() throws Exception {
+        return prueba.call();
+    }
+}
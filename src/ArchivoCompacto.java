@@ -0,0 +1,450 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Archivo compacto del historial de una cuenta, pensado para guardar movimientos antiguos.
+ *
+ * Los movimientos se agrupan en bloques de {@value #MOVIMIENTOS_POR_BLOQUE}. Dentro de cada bloque
+ * se guardan por columnas: el tipo como índice en un diccionario de tipos (1 byte), el instante
+ * como diferencia con el anterior y la cantidad en céntimos, ambos en varint con zigzag. Cada
+ * bloque se comprime con {@link Deflater} y lleva su CRC32. Al final hay un índice de bloques
+ * (posición, número de movimientos e instantes mínimo y máximo) que permite leer un movimiento
+ * concreto o un intervalo de fechas descomprimiendo solo los bloques necesarios.
+ *
+ * Formato (big-endian):
+ * <pre>
+ *   cabecera: magia (int), versión (int), cliente (cadena), diccionario: número (byte) y nombres (cadenas)
+ *   bloques:  tamaño comprimido (int), tamaño original (int), CRC32 del original (int), datos
+ *   índice:   por bloque: posición (long), movimientos (int), instante mínimo (long), instante máximo (long)
+ *   pie:      posición del índice (long), bloques (int), movimientos (long), CRC32 del índice (int), magia (int)
+ * </pre>
+ * Las cadenas van como longitud en bytes (int, -1 si es null) seguida de su UTF-8.
+ */
+public class ArchivoCompacto implements Closeable {
+    private static final int MAGIA = 0x43415243; // "CARC"
+    private static final int VERSION = 1;
+    private static final int MOVIMIENTOS_POR_BLOQUE = 4096;
+    private static final int TAM_CABECERA_BLOQUE = 12;
+    private static final int TAM_ENTRADA_INDICE = 28;
+    private static final int TAM_PIE = 28;
+    // Un movimiento sin comprimir ocupa como mucho 1 byte de tipo y dos varints de 10 bytes
+    private static final int MAX_BYTES_MOVIMIENTO = 21;
+    private static final int MAX_CADENA = 64 * 1024;
+    private static final Metricas.Medida MEDIDA_ESCRIBIR = Metricas.medida("archivo.compacto.escribir");
+
+    private final FileChannel canal;
+    private final Cliente cliente;
+    private final TipoMovimiento[] diccionario;
+    private final long numMovimientos;
+    private final long[] posicionBloque;
+    private final int[] movimientosBloque;
+    private final long[] minimoBloque;
+    private final long[] maximoBloque;
+    // Primer movimiento de cada bloque (suma de los anteriores)
+    private final long[] inicioBloque;
+
+    private final Inflater inflater = new Inflater();
+    // Último bloque descomprimido, para que los accesos seguidos no lo vuelvan a leer
+    private int bloqueCargado = -1;
+    private final byte[] tipos = new byte[MOVIMIENTOS_POR_BLOQUE];
+    private final long[] instantes = new long[MOVIMIENTOS_POR_BLOQUE];
+    private final long[] centimos = new long[MOVIMIENTOS_POR_BLOQUE];
+
+    /**
+     * Escribe el historial de la cuenta en {@code destino}. Se escribe en un temporal que se
+     * renombra de forma atómica al terminar; si algo falla, el temporal se borra.
+     */
+    public static void escribir(Cuenta cuenta, Path destino) throws IOException {
+        long inicio = MEDIDA_ESCRIBIR.iniciar();
+        long asignados = Metricas.asignados();
+        long escritos;
+        Path temporal = destino.resolveSibling(destino.getFileName() + ".tmp");
+        List<Movimiento> movimientos = cuenta.getMovimientos();
+        int total = movimientos.size();
+        int bloques = (total + MOVIMIENTOS_POR_BLOQUE - 1) / MOVIMIENTOS_POR_BLOQUE;
+        TipoMovimiento[] diccionario = TipoMovimiento.values();
+
+        ByteBuffer indice = ByteBuffer.allocate(bloques * TAM_ENTRADA_INDICE);
+        byte[] original = new byte[MOVIMIENTOS_POR_BLOQUE * MAX_BYTES_MOVIMIENTO + 10];
+        byte[] comprimido = new byte[original.length + original.length / 100 + 64];
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        CRC32 crc = new CRC32();
+
+        try (FileChannel salida = FileChannel.open(temporal, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer cabecera = ByteBuffer.allocate(1024);
+            cabecera.putInt(MAGIA).putInt(VERSION);
+            cabecera = cadena(cabecera, cuenta.getCliente() != null ? cuenta.getCliente().getNombre() : null);
+            cabecera.put((byte) diccionario.length);
+            for (TipoMovimiento t : diccionario) {
+                cabecera = cadena(cabecera, t.getNombre());
+            }
+            cabecera.flip();
+            escribirTodo(salida, cabecera);
+
+            // Recorrido secuencial de la lista (también sirve para listas sin acceso por posición)
+            Iterator<Movimiento> it = movimientos.iterator();
+            for (int b = 0; b < bloques; b++) {
+                int n = Math.min(MOVIMIENTOS_POR_BLOQUE, total - b * MOVIMIENTOS_POR_BLOQUE);
+                int p = 0;
+                long minimo = Long.MAX_VALUE;
+                long maximo = Long.MIN_VALUE;
+                // Columna de tipos
+                Movimiento[] bloque = new Movimiento[n];
+                for (int i = 0; i < n; i++) {
+                    bloque[i] = it.next();
+                    original[p++] = (byte) bloque[i].getTipoMovimiento().ordinal();
+                }
+                // Columna de instantes (diferencias con el anterior)
+                long anterior = 0;
+                for (Movimiento m : bloque) {
+                    long instante = m.getInstante();
+                    p = varint(original, p, instante - anterior);
+                    anterior = instante;
+                    minimo = Math.min(minimo, instante);
+                    maximo = Math.max(maximo, instante);
+                }
+                // Columna de cantidades
+                for (Movimiento m : bloque) {
+                    p = varint(original, p, m.getCentimos());
+                }
+
+                deflater.reset();
+                deflater.setInput(original, 0, p);
+                deflater.finish();
+                int tamComprimido = 0;
+                while (!deflater.finished()) {
+                    if (tamComprimido == comprimido.length) {
+                        comprimido = Arrays.copyOf(comprimido, comprimido.length * 2);
+                    }
+                    tamComprimido += deflater.deflate(comprimido, tamComprimido, comprimido.length - tamComprimido);
+                }
+                crc.reset();
+                crc.update(original, 0, p);
+
+                indice.putLong(salida.position()).putInt(n).putLong(minimo).putLong(maximo);
+                ByteBuffer cabeceraBloque = ByteBuffer.allocate(TAM_CABECERA_BLOQUE);
+                cabeceraBloque.putInt(tamComprimido).putInt(p).putInt((int) crc.getValue()).flip();
+                escribirTodo(salida, cabeceraBloque);
+                escribirTodo(salida, ByteBuffer.wrap(comprimido, 0, tamComprimido));
+            }
+
+            long posicionIndice = salida.position();
+            indice.flip();
+            crc.reset();
+            crc.update(indice.duplicate());
+            escribirTodo(salida, indice);
+            ByteBuffer pie = ByteBuffer.allocate(TAM_PIE);
+            pie.putLong(posicionIndice).putInt(bloques).putLong(total).putInt((int) crc.getValue()).putInt(MAGIA).flip();
+            escribirTodo(salida, pie);
+            salida.force(true);
+            escritos = salida.size();
+        } catch (IOException | RuntimeException e) {
+            // El canal ya está cerrado: no se deja el temporal a medio escribir
+            borrarTemporal(temporal, e);
+            throw e;
+        } finally {
+            deflater.end();
+        }
+        try {
+            Files.move(temporal, destino, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            borrarTemporal(temporal, e);
+            throw e;
+        }
+        MEDIDA_ESCRIBIR.registrar(inicio, asignados, escritos);
+    }
+
+    // Si tampoco se puede borrar, se añade al error original
+    private static void borrarTemporal(Path temporal, Exception causa) {
+        try {
+            Files.deleteIfExists(temporal);
+        } catch (IOException e) {
+            causa.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Lee un archivo compacto y crea una cuenta con su historial. Los bloques se descomprimen de
+     * uno en uno según se añaden los movimientos a la cuenta.
+     */
+    public static Cuenta leer(Path origen) throws IOException {
+        try (ArchivoCompacto archivo = abrir(origen)) {
+            Cuenta cuenta = new Cuenta(archivo.getCliente());
+            archivo.recorrer(Long.MIN_VALUE, Long.MAX_VALUE, cuenta::addMovimiento);
+            return cuenta;
+        }
+    }
+
+    /** Abre un archivo compacto para leer sus movimientos. */
+    public static ArchivoCompacto abrir(Path origen) throws IOException {
+        FileChannel canal = FileChannel.open(origen, StandardOpenOption.READ);
+        try {
+            return new ArchivoCompacto(canal, origen);
+        } catch (IOException | RuntimeException e) {
+            canal.close();
+            throw e;
+        }
+    }
+
+    private ArchivoCompacto(FileChannel canal, Path origen) throws IOException {
+        this.canal = canal;
+        long tamano = canal.size();
+        if (tamano < 8 + TAM_PIE) {
+            throw new IOException("El archivo " + origen + " no es un archivo compacto válido.");
+        }
+        ByteBuffer pie = leer(tamano - TAM_PIE, TAM_PIE);
+        long posicionIndice = pie.getLong();
+        int bloques = pie.getInt();
+        long total = pie.getLong();
+        int crcIndice = pie.getInt();
+        if (pie.getInt() != MAGIA || bloques < 0 || posicionIndice < 8
+                || posicionIndice + (long) bloques * TAM_ENTRADA_INDICE != tamano - TAM_PIE) {
+            throw new IOException("El archivo " + origen + " no es un archivo compacto válido o está incompleto.");
+        }
+
+        ByteBuffer cabecera = leer(0, (int) Math.min(posicionIndice, 8 + 4 + MAX_CADENA + 1 + 64 * 4));
+        if (cabecera.getInt() != MAGIA) {
+            throw new IOException("El archivo " + origen + " no es un archivo compacto válido.");
+        }
+        int version = cabecera.getInt();
+        if (version != VERSION) {
+            throw new IOException("Versión de archivo compacto no soportada: " + version);
+        }
+        this.cliente = new Cliente(leerCadena(cabecera));
+        int entradas = cabecera.get() & 0xFF;
+        this.diccionario = new TipoMovimiento[entradas];
+        try {
+            for (int i = 0; i < entradas; i++) {
+                diccionario[i] = TipoMovimiento.desdeNombre(leerCadena(cabecera));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Diccionario de tipos no válido en " + origen + ": " + e.getMessage());
+        }
+
+        ByteBuffer indice = leer(posicionIndice, bloques * TAM_ENTRADA_INDICE);
+        CRC32 crc = new CRC32();
+        crc.update(indice.duplicate());
+        if ((int) crc.getValue() != crcIndice) {
+            throw new IOException("El índice del archivo " + origen + " está dañado.");
+        }
+        this.posicionBloque = new long[bloques];
+        this.movimientosBloque = new int[bloques];
+        this.minimoBloque = new long[bloques];
+        this.maximoBloque = new long[bloques];
+        this.inicioBloque = new long[bloques];
+        long suma = 0;
+        for (int b = 0; b < bloques; b++) {
+            posicionBloque[b] = indice.getLong();
+            movimientosBloque[b] = indice.getInt();
+            minimoBloque[b] = indice.getLong();
+            maximoBloque[b] = indice.getLong();
+            if (movimientosBloque[b] <= 0 || movimientosBloque[b] > MOVIMIENTOS_POR_BLOQUE) {
+                throw new IOException("El índice del archivo " + origen + " no es válido.");
+            }
+            inicioBloque[b] = suma;
+            suma += movimientosBloque[b];
+        }
+        if (suma != total) {
+            throw new IOException("El índice del archivo " + origen + " no es válido.");
+        }
+        this.numMovimientos = total;
+    }
+
+    /** Titular de la cuenta archivada. */
+    public Cliente getCliente() {
+        return cliente;
+    }
+
+    /** Número de movimientos archivados. */
+    public long getNumMovimientos() {
+        return numMovimientos;
+    }
+
+    /** Devuelve el movimiento en esa posición, descomprimiendo solo su bloque. */
+    public synchronized Movimiento get(long indice) throws IOException {
+        if (indice < 0 || indice >= numMovimientos) {
+            throw new IndexOutOfBoundsException("Índice " + indice + " fuera del archivo (tamaño " + numMovimientos + ")");
+        }
+        int b = Arrays.binarySearch(inicioBloque, indice);
+        if (b < 0) b = -b - 2;
+        cargarBloque(b);
+        return movimiento((int) (indice - inicioBloque[b]));
+    }
+
+    /**
+     * Pasa a {@code accion}, en orden, los movimientos con instante en [desde, hasta). Los bloques
+     * cuyo intervalo de instantes no se solapa con el pedido no se descomprimen.
+     */
+    public synchronized void recorrer(long desde, long hasta, Consumer<Movimiento> accion) throws IOException {
+        for (int b = 0; b < posicionBloque.length; b++) {
+            if (maximoBloque[b] < desde || minimoBloque[b] >= hasta) continue;
+            cargarBloque(b);
+            for (int i = 0; i < movimientosBloque[b]; i++) {
+                if (instantes[i] >= desde && instantes[i] < hasta) {
+                    accion.accept(movimiento(i));
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        inflater.end();
+        canal.close();
+    }
+
+    private Movimiento movimiento(int i) {
+        return new Movimiento(diccionario[tipos[i]], centimos[i], instantes[i]);
+    }
+
+    // Descomprime el bloque b en las columnas tipos, instantes y centimos
+    private void cargarBloque(int b) throws IOException {
+        if (bloqueCargado == b) return;
+        bloqueCargado = -1;
+        ByteBuffer cabecera = leer(posicionBloque[b], TAM_CABECERA_BLOQUE);
+        int tamComprimido = cabecera.getInt();
+        int tamOriginal = cabecera.getInt();
+        int crcOriginal = cabecera.getInt();
+        int n = movimientosBloque[b];
+        if (tamComprimido < 0 || tamOriginal < 0 || tamOriginal > n * MAX_BYTES_MOVIMIENTO
+                || posicionBloque[b] + TAM_CABECERA_BLOQUE + tamComprimido > canal.size()) {
+            throw new IOException("El bloque " + b + " del archivo compacto está dañado.");
+        }
+        ByteBuffer comprimido = leer(posicionBloque[b] + TAM_CABECERA_BLOQUE, tamComprimido);
+
+        byte[] original = new byte[tamOriginal];
+        inflater.reset();
+        inflater.setInput(comprimido.array(), 0, tamComprimido);
+        try {
+            int leidos = 0;
+            while (leidos < tamOriginal && !inflater.finished()) {
+                int r = inflater.inflate(original, leidos, tamOriginal - leidos);
+                if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                leidos += r;
+            }
+            if (leidos != tamOriginal) {
+                throw new IOException("El bloque " + b + " del archivo compacto está incompleto.");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("El bloque " + b + " del archivo compacto está dañado: " + e.getMessage());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(original, 0, tamOriginal);
+        if ((int) crc.getValue() != crcOriginal) {
+            throw new IOException("El CRC del bloque " + b + " del archivo compacto no coincide.");
+        }
+
+        try {
+            int p = 0;
+            for (int i = 0; i < n; i++) {
+                int t = original[p++] & 0xFF;
+                if (t >= diccionario.length) {
+                    throw new IOException("Tipo no válido en el bloque " + b + " del archivo compacto.");
+                }
+                tipos[i] = (byte) t;
+            }
+            long[] valor = new long[1];
+            long instante = 0;
+            for (int i = 0; i < n; i++) {
+                p = leerVarint(original, p, valor);
+                instante += valor[0];
+                instantes[i] = instante;
+            }
+            for (int i = 0; i < n; i++) {
+                p = leerVarint(original, p, valor);
+                centimos[i] = valor[0];
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("El bloque " + b + " del archivo compacto está incompleto.");
+        }
+        bloqueCargado = b;
+    }
+
+    private ByteBuffer leer(long posicion, int tam) throws IOException {
+        ByteBuffer datos = ByteBuffer.allocate(tam);
+        while (datos.hasRemaining()) {
+            int r = canal.read(datos, posicion + datos.position());
+            if (r < 0) throw new IOException("Fin de archivo inesperado en el archivo compacto.");
+        }
+        datos.flip();
+        return datos;
+    }
+
+    private static void escribirTodo(FileChannel canal, ByteBuffer datos) throws IOException {
+        while (datos.hasRemaining()) {
+            canal.write(datos);
+        }
+    }
+
+    // Añade una cadena al buffer, ampliándolo si no cabe
+    private static ByteBuffer cadena(ByteBuffer buffer, String s) throws IOException {
+        byte[] bytes = s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+        int tam = 4 + (bytes == null ? 0 : bytes.length);
+        if (bytes != null && bytes.length > MAX_CADENA) {
+            throw new IOException("Cadena demasiado larga para el archivo compacto (" + bytes.length + " bytes).");
+        }
+        if (buffer.remaining() < tam) {
+            ByteBuffer mayor = ByteBuffer.allocate(buffer.capacity() + tam + 1024);
+            buffer.flip();
+            buffer = mayor.put(buffer);
+        }
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length).put(bytes);
+        }
+        return buffer;
+    }
+
+    private static String leerCadena(ByteBuffer buffer) throws IOException {
+        int longitud = buffer.getInt();
+        if (longitud < 0) return null;
+        if (longitud > MAX_CADENA || longitud > buffer.remaining()) {
+            throw new IOException("Cadena no válida en el archivo compacto.");
+        }
+        byte[] bytes = new byte[longitud];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Varint con zigzag; devuelve la posición siguiente
+    private static int varint(byte[] destino, int p, long valor) {
+        long v = (valor << 1) ^ (valor >> 63);
+        while ((v & ~0x7FL) != 0) {
+            destino[p++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        destino[p++] = (byte) v;
+        return p;
+    }
+
+    // Lee un varint con zigzag en valor[0]; devuelve la posición siguiente
+    private static int leerVarint(byte[] origen, int p, long[] valor) throws IOException {
+        long v = 0;
+        for (int desplazamiento = 0; desplazamiento < 64; desplazamiento += 7) {
+            byte b = origen[p++];
+            v |= (long) (b & 0x7F) << desplazamiento;
+            if (b >= 0) {
+                valor[0] = (v >>> 1) ^ -(v & 1);
+                return p;
+            }
+        }
+        throw new IOException("Varint no válido en el archivo compacto.");
+    }
+}
@@ -0,0 +1,242 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Servicio que gestiona muchas cuentas identificadas por un id numérico.
+ *
+ * Las cuentas en memoria están en un {@link IndiceCuentas} fragmentado; las que no están se cargan
+ * de disco la primera vez que se piden (un archivo por cuenta en la carpeta del banco).
+ * Cada cuenta es una {@link CuentaConcurrente}, así que los ingresos y retiradas sobre una misma
+ * cuenta pueden hacerse desde varios hilos. Las transferencias toman dos cerrojos de un conjunto
+ * fijo, siempre en el mismo orden, para que dos transferencias cruzadas no se bloqueen entre sí;
+ * los mismos cerrojos ordenan la carga de una cuenta y su descarga.
+ *
+ * Al descargar una cuenta primero se cierra ({@link CuentaConcurrente#cerrar()}), después se guarda
+ * y solo entonces se quita de memoria. Quien la hubiera obtenido antes recibe
+ * {@link ResultadoOperacion#CUENTA_CERRADA} y debe volver a pedirla con {@link #obtener(long)}, que
+ * mientras tanto sigue devolviendo la cerrada y, una vez quitada, carga lo recién guardado.
+ */
+public class Banco {
+    private static final int CERROJOS_TRANSFERENCIA = 1024;
+
+    private final Path carpeta;
+    private final IndiceCuentas cuentas;
+    private final ReentrantLock[] cerrojos = new ReentrantLock[CERROJOS_TRANSFERENCIA];
+
+    public Banco(Path carpeta) throws IOException {
+        this.carpeta = carpeta;
+        Files.createDirectories(carpeta);
+        this.cuentas = new IndiceCuentas(Runtime.getRuntime().availableProcessors() * 4);
+        for (int i = 0; i < cerrojos.length; i++) {
+            cerrojos[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Crea una cuenta nueva con ese id. Lanza IllegalArgumentException si el id ya existe.
+     */
+    public CuentaConcurrente crearCuenta(long id, Cliente cliente) throws IOException {
+        if (obtener(id) != null) {
+            throw new IllegalArgumentException("Ya existe una cuenta con id " + id);
+        }
+        CuentaConcurrente nueva = new CuentaConcurrente(cliente);
+        CuentaConcurrente existente = cuentas.putIfAbsent(id, nueva);
+        if (existente != nueva) {
+            throw new IllegalArgumentException("Ya existe una cuenta con id " + id);
+        }
+        guardar(id);
+        return nueva;
+    }
+
+    /**
+     * Devuelve la cuenta con ese id, cargándola de disco si aún no está en memoria.
+     * Devuelve null si no existe. Si se está descargando, espera a que termine y la vuelve a cargar.
+     */
+    public CuentaConcurrente obtener(long id) throws IOException {
+        CuentaConcurrente cuenta = cuentas.get(id);
+        if (cuenta != null && !cuenta.isCerrada()) {
+            return cuenta;
+        }
+        // descargar tiene tomado el cerrojo de la cuenta desde que la cierra hasta que la quita de
+        // memoria, así que aquí no se puede leer un archivo que está a punto de sustituirse
+        ReentrantLock cerrojo = cerrojos[indiceCerrojo(id)];
+        cerrojo.lock();
+        try {
+            cuenta = cuentas.get(id);
+            if (cuenta != null) {
+                return cuenta;
+            }
+            Path archivo = archivoCuenta(id);
+            if (!Files.exists(archivo)) {
+                return null;
+            }
+            return cuentas.putIfAbsent(id, cargar(archivo));
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Transfiere una cantidad de una cuenta a otra. Devuelve false si la cantidad no es positiva,
+     * si la cuenta de origen no tiene saldo suficiente (en ese caso no se mueve nada) o si la de
+     * destino superaría su saldo máximo (lo retirado vuelve al origen como un ingreso).
+     * Lanza IllegalArgumentException si alguna de las cuentas no existe.
+     */
+    public boolean transferir(long origen, long destino, double cantidad) throws IOException {
+        long centimos = Movimiento.centimosDesde(cantidad);
+        if (centimos <= 0 || origen == destino) {
+            return false;
+        }
+        ResultadoOperacion resultado;
+        do {
+            // Si alguna se ha cerrado entre obtenerla y tomar los cerrojos, obtener espera a que
+            // termine de descargarse y devuelve la nueva
+            CuentaConcurrente cuentaOrigen = obtenerExistente(origen);
+            CuentaConcurrente cuentaDestino = obtenerExistente(destino);
+            resultado = transferir(origen, destino, cuentaOrigen, cuentaDestino, centimos);
+        } while (resultado == ResultadoOperacion.CUENTA_CERRADA);
+        return resultado.realizada();
+    }
+
+    private ResultadoOperacion transferir(long origen, long destino, CuentaConcurrente cuentaOrigen,
+                                          CuentaConcurrente cuentaDestino, long centimos) {
+        // Orden fijo de los cerrojos (por índice) para evitar interbloqueos
+        int a = indiceCerrojo(origen);
+        int b = indiceCerrojo(destino);
+        ReentrantLock primero = cerrojos[Math.min(a, b)];
+        ReentrantLock segundo = cerrojos[Math.max(a, b)];
+        primero.lock();
+        try {
+            segundo.lock();
+            try {
+                // descargar cierra las cuentas con su cerrojo tomado: si ahora están abiertas, no se
+                // cierran hasta que termine la transferencia (y la devolución al origen no falla)
+                if (cuentaOrigen.isCerrada() || cuentaDestino.isCerrada()) {
+                    return ResultadoOperacion.CUENTA_CERRADA;
+                }
+                if (!cuentaOrigen.retirarCentimos(centimos).realizada()) {
+                    return ResultadoOperacion.SALDO_INSUFICIENTE;
+                }
+                if (!cuentaDestino.ingresarCentimos(centimos).realizada()) {
+                    // El destino superaría el saldo máximo: se devuelve lo retirado al origen
+                    cuentaOrigen.ingresarCentimos(centimos);
+                    return ResultadoOperacion.SALDO_MAXIMO_SUPERADO;
+                }
+                return ResultadoOperacion.REALIZADA;
+            } finally {
+                segundo.unlock();
+            }
+        } finally {
+            primero.unlock();
+        }
+    }
+
+    /** Guarda en disco la cuenta con ese id (si está cargada). */
+    public void guardar(long id) throws IOException {
+        CuentaConcurrente cuenta = cuentas.get(id);
+        if (cuenta != null) {
+            guardar(id, cuenta);
+        }
+    }
+
+    /** Guarda en disco todas las cuentas cargadas. */
+    public void guardarTodo() throws IOException {
+        IOException[] error = new IOException[1];
+        cuentas.forEach((cuenta, id) -> {
+            try {
+                guardar(id, cuenta);
+            } catch (IOException e) {
+                if (error[0] == null) error[0] = e;
+            }
+        });
+        if (error[0] != null) throw error[0];
+    }
+
+    /**
+     * Guarda la cuenta y la quita de memoria; se volverá a cargar cuando se pida.
+     * Antes de guardarla la cierra, así que lo guardado incluye todas las operaciones aceptadas y
+     * las que lleguen después se rechazan con {@link ResultadoOperacion#CUENTA_CERRADA}. Si no se
+     * puede guardar, la cuenta se vuelve a abrir y sigue en memoria.
+     */
+    public void descargar(long id) throws IOException {
+        // Con el cerrojo de la cuenta hasta quitarla: ni transferencias ni cargas a medias
+        ReentrantLock cerrojo = cerrojos[indiceCerrojo(id)];
+        cerrojo.lock();
+        try {
+            CuentaConcurrente cuenta = cuentas.get(id);
+            if (cuenta == null) {
+                return;
+            }
+            cuenta.cerrar();
+            try {
+                guardar(id, cuenta);
+            } catch (IOException | RuntimeException e) {
+                cuenta.reabrir();
+                throw e;
+            }
+            cuentas.remove(id, cuenta);
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /** Número de cuentas cargadas en memoria. */
+    public int getCuentasCargadas() {
+        return cuentas.size();
+    }
+
+    private CuentaConcurrente obtenerExistente(long id) throws IOException {
+        CuentaConcurrente cuenta = obtener(id);
+        if (cuenta == null) {
+            throw new IllegalArgumentException("No existe la cuenta con id " + id);
+        }
+        return cuenta;
+    }
+
+    // SnapshotBinario escribe en un temporal y lo renombra de forma atómica
+    private void guardar(long id, CuentaConcurrente cuenta) throws IOException {
+        SnapshotBinario.guardar(cuenta, archivoCuenta(id));
+    }
+
+    private Path archivoCuenta(long id) {
+        return carpeta.resolve(id + ".dat");
+    }
+
+    private int indiceCerrojo(long id) {
+        return (int) ((id ^ (id >>> 32)) & 0x7fffffff) % CERROJOS_TRANSFERENCIA;
+    }
+
+    // Lee una cuenta (snapshot binario o, si es de una versión anterior, serializada);
+    // si se guardó como Cuenta normal se pasa a CuentaConcurrente
+    private static CuentaConcurrente cargar(Path archivo) throws IOException {
+        Object obj;
+        if (SnapshotBinario.esSnapshot(archivo)) {
+            obj = SnapshotBinario.cargar(archivo);
+        } else {
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(archivo));
+                 ObjectInputStream ois = new ObjectInputStream(in)) {
+                ois.setObjectInputFilter(Cuenta.FILTRO_SERIALIZADA);
+                obj = ois.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("El archivo " + archivo + " no contiene una Cuenta válida.", e);
+            }
+        }
+        if (obj instanceof CuentaConcurrente) {
+            return (CuentaConcurrente) obj;
+        }
+        if (obj instanceof Cuenta) {
+            Cuenta cuenta = (Cuenta) obj;
+            CuentaConcurrente concurrente = new CuentaConcurrente(cuenta.getCliente());
+            for (Movimiento m : cuenta.getMovimientos()) {
+                concurrente.addMovimiento(m);
+            }
+            return concurrente;
+        }
+        throw new IOException("El archivo " + archivo + " no contiene una Cuenta válida.");
+    }
+}
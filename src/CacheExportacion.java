@@ -0,0 +1,193 @@
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Caché de los textos ya formateados de una cuenta: las líneas de sus movimientos (lo que se
+ * muestra al verlos), por bloques de {@link #LINEAS_POR_BLOQUE}, y sus exportaciones completas.
+ *
+ * El historial solo crece, así que un texto queda identificado por los movimientos que contiene:
+ * un bloque de líneas completo no cambia nunca y un documento exportado se guarda con el número de
+ * movimientos y el resto de datos de los que depende (ver {@link #claveDocumento}). Un ingreso,
+ * una retirada o un addMovimiento cambian esa clave, de modo que lo guardado antes deja de servir
+ * sin que las operaciones tengan que avisar a la caché: la versión nueva de un documento o del
+ * último bloque sustituye a la anterior la próxima vez que se pide.
+ *
+ * El tamaño total se limita (en bytes aproximados) con {@code -Dcuenta.cache.bytes}, por defecto
+ * 32 MB; al superarlo se descartan los textos usados hace más tiempo. Con 0 no se guarda nada.
+ */
+final class CacheExportacion {
+    /** Movimientos por bloque de líneas. */
+    static final int LINEAS_POR_BLOQUE = 1024;
+    private static final long CAPACIDAD = Long.getLong("cuenta.cache.bytes", 32L * 1024 * 1024);
+    // Coste aproximado de una entrada además de su contenido
+    private static final int TAM_ENTRADA = 64;
+    // Lo mínimo que ocupa un movimiento exportado (una línea del CSV)
+    private static final int MIN_BYTES_POR_MOVIMIENTO = 32;
+
+    private final long capacidad;
+    private long ocupado;
+    // Bloques de líneas (clave Integer) y documentos (clave FormatoExportacion), del menos al más usado
+    private final LinkedHashMap<Object, Entrada> entradas = new LinkedHashMap<>(16, 0.75f, true);
+
+    CacheExportacion() {
+        this(CAPACIDAD);
+    }
+
+    CacheExportacion(long capacidad) {
+        this.capacidad = capacidad;
+    }
+
+    /**
+     * Líneas (texto del movimiento y salto de línea) del bloque {@code bloque} de los
+     * {@code total} primeros movimientos.
+     */
+    String lineas(List<Movimiento> movimientos, int bloque, int total) {
+        int desde = bloque * LINEAS_POR_BLOQUE;
+        int hasta = Math.min(total, desde + LINEAS_POR_BLOQUE);
+        String version = Integer.toString(hasta);
+        Object texto = buscar(bloque, version);
+        if (texto != null) {
+            return (String) texto;
+        }
+        StringBuilder sb = new StringBuilder((hasta - desde) * 48);
+        String salto = System.lineSeparator();
+        for (int i = desde; i < hasta; i++) {
+            sb.append(movimientos.get(i)).append(salto);
+        }
+        String nuevo = sb.toString();
+        guardar(bloque, version, nuevo, 2L * nuevo.length());
+        return nuevo;
+    }
+
+    /** Documento exportado en ese formato con esa clave, o null si no está. */
+    byte[] documento(FormatoExportacion formato, String clave) {
+        return (byte[]) buscar(formato, clave);
+    }
+
+    /** Guarda un documento exportado, sustituyendo al anterior del mismo formato. */
+    void guardarDocumento(FormatoExportacion formato, String clave, byte[] contenido) {
+        guardar(formato, clave, contenido, contenido.length);
+    }
+
+    /**
+     * Flujo que escribe en {@code destino} un documento de {@code movimientos} movimientos y guarda
+     * a la vez una copia de lo escrito mientras quepa en la caché (ver {@link Copia#contenido()}).
+     * Si por el número de movimientos ya se sabe que no cabe, no se copia nada.
+     */
+    Copia copiar(OutputStream destino, int movimientos) {
+        return new Copia(destino, (long) movimientos * MIN_BYTES_POR_MOVIMIENTO <= capacidad ? capacidad : -1);
+    }
+
+    /**
+     * Todo aquello de lo que depende una exportación de la cuenta: movimientos, saldo, titular,
+     * fecha de la cabecera, locale y salto de línea.
+     */
+    static String claveDocumento(Cuenta cuenta, int total, String fechaHoy) {
+        return total + "|" + cuenta.getSaldoCentimos() + "|" + fechaHoy + "|"
+                + Locale.getDefault(Locale.Category.FORMAT).toLanguageTag() + "|" + System.lineSeparator()
+                + "|" + cuenta.getCliente().getNombre();
+    }
+
+    /** Descarta todo lo guardado (lo usan las pruebas de rendimiento para medir el formateo). */
+    synchronized void vaciar() {
+        entradas.clear();
+        ocupado = 0;
+    }
+
+    private synchronized Object buscar(Object clave, String version) {
+        Entrada e = entradas.get(clave);
+        if (e != null && e.version.equals(version)) {
+            contar("cache.aciertos");
+            return e.valor;
+        }
+        contar("cache.fallos");
+        return null;
+    }
+
+    private synchronized void guardar(Object clave, String version, Object valor, long tam) {
+        tam += TAM_ENTRADA + 2L * version.length();
+        Entrada anterior = entradas.remove(clave);
+        if (anterior != null) {
+            ocupado -= anterior.tam;
+        }
+        if (tam > capacidad) {
+            return;
+        }
+        entradas.put(clave, new Entrada(version, valor, tam));
+        ocupado += tam;
+        Iterator<Entrada> it = entradas.values().iterator();
+        while (ocupado > capacidad) {
+            ocupado -= it.next().tam;
+            it.remove();
+            contar("cache.descartes");
+        }
+    }
+
+    private static void contar(String contador) {
+        if (Metricas.ACTIVAS) {
+            Metricas.contador(contador).increment();
+        }
+    }
+
+    private static final class Entrada {
+        final String version;
+        final Object valor;
+        final long tam;
+
+        Entrada(String version, Object valor, long tam) {
+            this.version = version;
+            this.valor = valor;
+            this.tam = tam;
+        }
+    }
+
+    /**
+     * Flujo de salida que guarda una copia de lo escrito hasta un máximo de bytes; si se pasa,
+     * deja de copiar y {@link #contenido()} devuelve null.
+     */
+    static final class Copia extends FilterOutputStream {
+        private final long maximo;
+        private ByteArrayOutputStream copia;
+
+        Copia(OutputStream destino, long maximo) {
+            super(destino);
+            this.maximo = maximo;
+            this.copia = maximo >= 0 ? new ByteArrayOutputStream(8 * 1024) : null;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (copia != null) {
+                copia.write(b);
+                comprobar();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (copia != null) {
+                copia.write(b, off, len);
+                comprobar();
+            }
+        }
+
+        /** Lo escrito, o null si no cabía en la caché. */
+        byte[] contenido() {
+            return copia != null ? copia.toByteArray() : null;
+        }
+
+        private void comprobar() {
+            if (copia.size() > maximo) {
+                copia = null;
+            }
+        }
+    }
+}
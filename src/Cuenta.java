@@ -1,48 +1,261 @@
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
 
 public class Cuenta implements Serializable {
     private static final long serialVersionUID = 1L;
+    // Campos que se serializan: el historial se escribe a mano (ver writeObject) porque el campo
+    // es de tipo List, que no es Serializable; las listas que se usan sí lo son
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("cliente", Cliente.class),
+            new ObjectStreamField("movimientos", List.class),
+            new ObjectStreamField("saldoCentimos", long.class),
+            new ObjectStreamField("estadisticas", EstadisticasCuenta.class)
+    };
+
+    /**
+     * Clases que puede contener una cuenta guardada con la serialización de Java (antes del
+     * {@link SnapshotBinario}). Quien lea uno de esos archivos debe ponerlo en su
+     * ObjectInputStream: cualquier otra clase se rechaza antes de crearla.
+     */
+    static final ObjectInputFilter FILTRO_SERIALIZADA = ObjectInputFilter.Config.createFilter(
+            "Cuenta;CuentaConcurrente;Cliente;Movimiento;TipoMovimiento;EstadisticasCuenta;EstadisticasCuenta$*;"
+                    + "RegistroConcurrente;java.util.ArrayList;java.util.TreeMap;java.util.concurrent.atomic.*;"
+                    + "java.lang.*;!*");
+
+    // Medidas de las operaciones (las comparte CuentaConcurrente); de ingresar y retirar solo se
+    // mide el tiempo de una de cada MUESTREO llamadas, el resto solo se cuentan
+    private static final int MUESTREO = 16;
+    static final Metricas.Medida MEDIDA_INGRESAR = Metricas.medida("cuenta.ingresar", MUESTREO);
+    static final Metricas.Medida MEDIDA_RETIRAR = Metricas.medida("cuenta.retirar", MUESTREO);
+    static final Metricas.Medida MEDIDA_LOTE = Metricas.medida("cuenta.aplicarLote");
 
     private Cliente cliente;
-    // Lista de movimientos (historial)
-    private ArrayList<Movimiento> movimientos;
-    private double saldo;
+    // Lista de movimientos (historial): en memoria o, por ejemplo, un HistorialMapeado o un HistorialEscalonado
+    private transient List<Movimiento> movimientos;
+    // Saldo en céntimos: se suma y resta de forma exacta
+    private long saldoCentimos;
+    // Totales y resúmenes que se actualizan con cada movimiento
+    private EstadisticasCuenta estadisticas;
+    // Índice por fecha y tipo para las consultas (se construye con la primera consulta)
+    private transient IndiceMovimientos indice;
+    // Líneas de movimientos y exportaciones ya formateadas (se crea la primera vez que se usa)
+    private transient CacheExportacion cache;
+    // Diario donde se anota cada operación (no se serializa; se vuelve a abrir al cargar)
+    private transient DiarioMovimientos diario;
+    // Si hay movimientos aplicados que no están en el diario (ver isDiarioIncompleto)
+    private transient volatile boolean diarioIncompleto;
+    // Quien recibe los avisos de ingresos y retiradas (null = nadie)
+    private transient volatile EscuchaCuenta escucha;
 
     public Cuenta(Cliente cliente) {
         this.cliente = cliente;
         this.movimientos = new ArrayList<>();
-        this.saldo = 0.0;
+        this.estadisticas = new EstadisticasCuenta();
     }
 
-    public void ingresar(double cantidad) {
-        if (cantidad > 0) {
-            movimientos.add(new Movimiento("Ingreso", cantidad));
-            saldo += cantidad;
-            System.out.println("Ingreso realizado correctamente: " + String.format("%.2f", cantidad) + " €");
-        } else {
-            System.out.println("La cantidad debe ser positiva.");
+    /**
+     * Crea una cuenta que guarda su historial en la lista indicada (por ejemplo un
+     * {@link HistorialMapeado}). Si la lista ya tiene movimientos, el saldo se calcula a partir de ellos.
+     */
+    public Cuenta(Cliente cliente, List<Movimiento> historial) {
+        this.cliente = cliente;
+        this.movimientos = historial;
+        this.estadisticas = new EstadisticasCuenta();
+        for (Movimiento m : historial) {
+            aplicarASaldo(m);
+            estadisticas.registrar(m);
         }
     }
 
-    public void retirar(double cantidad) {
-        if (cantidad > 0) {
-            if (cantidad <= saldo) {
-                movimientos.add(new Movimiento("Retirada", cantidad));
-                saldo -= cantidad;
-                System.out.println("Retirada realizada correctamente: " + String.format("%.2f", cantidad) + " €");
+    /**
+     * Crea una cuenta con un historial del que ya se conocen el saldo y las estadísticas (por
+     * ejemplo al cargar un snapshot), sin recorrerlo: así el historial puede ser un
+     * {@link HistorialPerezoso} que aún no ha leído sus movimientos.
+     */
+    Cuenta(Cliente cliente, List<Movimiento> historial, long saldoCentimos, EstadisticasCuenta estadisticas) {
+        this.cliente = cliente;
+        this.movimientos = historial;
+        this.saldoCentimos = saldoCentimos;
+        this.estadisticas = estadisticas;
+    }
+
+    /**
+     * Ingresa una cantidad (redondeada a céntimos) y devuelve el resultado. No escribe nada por
+     * consola: el resultado se avisa a la escucha de la cuenta, si tiene.
+     */
+    public ResultadoOperacion ingresar(double cantidad) {
+        return ingresarCentimos(Movimiento.centimosDesde(cantidad));
+    }
+
+    /** Como {@link #ingresar}, con la cantidad ya en céntimos (sin pasar por un double). */
+    public ResultadoOperacion ingresarCentimos(long centimos) {
+        long inicio = MEDIDA_INGRESAR.iniciar();
+        ResultadoOperacion resultado;
+        if (centimos <= 0) {
+            resultado = ResultadoOperacion.CANTIDAD_NO_VALIDA;
+        } else if (desborda(saldoCentimos, centimos)) {
+            resultado = ResultadoOperacion.SALDO_MAXIMO_SUPERADO;
+        } else {
+            // Primero se anota en el diario: si falla, la operación no se aplica
+            Movimiento m = new Movimiento(TipoMovimiento.INGRESO, centimos);
+            if (registrarEnDiario(movimientos.size(), m)) {
+                movimientos.add(m);
+                saldoCentimos += centimos;
+                estadisticas.registrar(m);
+                resultado = ResultadoOperacion.REALIZADA;
             } else {
-                System.out.println("No hay saldo suficiente para retirar esa cantidad.");
+                resultado = ResultadoOperacion.NO_ANOTADA;
             }
+        }
+        avisar(TipoMovimiento.INGRESO, centimos, resultado);
+        MEDIDA_INGRESAR.registrar(inicio);
+        return resultado;
+    }
+
+    /**
+     * Retira una cantidad (redondeada a céntimos) si hay saldo suficiente y devuelve el
+     * resultado. Como {@link #ingresar}, no escribe por consola.
+     */
+    public ResultadoOperacion retirar(double cantidad) {
+        return retirarCentimos(Movimiento.centimosDesde(cantidad));
+    }
+
+    /** Como {@link #retirar}, con la cantidad ya en céntimos. */
+    public ResultadoOperacion retirarCentimos(long centimos) {
+        long inicio = MEDIDA_RETIRAR.iniciar();
+        ResultadoOperacion resultado;
+        if (centimos <= 0) {
+            resultado = ResultadoOperacion.CANTIDAD_NO_VALIDA;
+        } else if (centimos > saldoCentimos) {
+            resultado = ResultadoOperacion.SALDO_INSUFICIENTE;
         } else {
-            System.out.println("La cantidad debe ser positiva.");
+            Movimiento m = new Movimiento(TipoMovimiento.RETIRADA, centimos);
+            if (registrarEnDiario(movimientos.size(), m)) {
+                movimientos.add(m);
+                saldoCentimos -= centimos;
+                estadisticas.registrar(m);
+                resultado = ResultadoOperacion.REALIZADA;
+            } else {
+                resultado = ResultadoOperacion.NO_ANOTADA;
+            }
+        }
+        avisar(TipoMovimiento.RETIRADA, centimos, resultado);
+        MEDIDA_RETIRAR.registrar(inicio);
+        return resultado;
+    }
+
+    /**
+     * Aplica un lote de operaciones: todas o ninguna. Se comprueban en orden contra el saldo que
+     * irían dejando (cantidades positivas y sin quedar nunca en descubierto). Si alguna no se
+     * puede aplicar no se aplica nada y se devuelve su posición en el lote. Si todas son válidas
+     * se anotan en el diario como un solo registro, se añaden al historial con el mismo instante y
+     * se devuelve -1. Si no se puede anotar el lote en el diario no se aplica nada y se lanza
+     * IllegalStateException. No escribe nada por consola.
+     */
+    public int aplicarLote(Operacion[] operaciones) {
+        long inicio = MEDIDA_LOTE.iniciar();
+        try {
+            int invalida = validarLote(operaciones, saldoCentimos);
+            if (invalida >= 0 || operaciones.length == 0) {
+                return invalida;
+            }
+            anadirLote(movimientosDeLote(operaciones));
+            return -1;
+        } finally {
+            MEDIDA_LOTE.registrar(inicio);
+        }
+    }
+
+    /**
+     * Añade al final del historial un lote de movimientos ya validados que traen su propio
+     * instante (por ejemplo, los de una importación), anotándolos antes en el diario como un solo
+     * registro. Si no se puede anotar no se añade ninguno y se lanza IllegalStateException.
+     */
+    void anadirLote(Movimiento[] lote) {
+        reservarParaLote(lote.length);
+        if (!registrarLoteEnDiario(movimientos.size(), lote)) {
+            throw new IllegalStateException("No se pudo anotar el lote en el diario; no se ha aplicado.");
+        }
+        for (Movimiento m : lote) {
+            movimientos.add(m);
+            aplicarASaldo(m);
+            estadisticas.registrar(m);
+        }
+    }
+
+    /** Igual que {@link #aplicarLote(Operacion[])} con las operaciones de un stream. */
+    public int aplicarLote(Stream<Operacion> operaciones) {
+        return aplicarLote(operaciones.toArray(Operacion[]::new));
+    }
+
+    /**
+     * Posición de la primera operación del lote que no se puede aplicar partiendo de
+     * {@code saldo} (nula, cantidad no positiva, descubierto o desbordamiento), o -1 si todas se pueden.
+     */
+    static int validarLote(Operacion[] operaciones, long saldo) {
+        for (int i = 0; i < operaciones.length; i++) {
+            Operacion op = operaciones[i];
+            if (op == null || op.getCentimos() <= 0) {
+                return i;
+            }
+            if (op.getTipo() == TipoMovimiento.RETIRADA) {
+                if (op.getCentimos() > saldo) return i;
+                saldo -= op.getCentimos();
+            } else {
+                if (desborda(saldo, op.getCentimos())) return i;
+                saldo += op.getCentimos();
+            }
+        }
+        return -1;
+    }
+
+    /** true si ingresar {@code centimos} en un saldo de {@code saldo} desbordaría el long. */
+    static boolean desborda(long saldo, long centimos) {
+        try {
+            Math.addExact(saldo, centimos);
+            return false;
+        } catch (ArithmeticException e) {
+            return true;
+        }
+    }
+
+    /** Movimientos de un lote ya validado, todos con el instante actual. */
+    static Movimiento[] movimientosDeLote(Operacion[] operaciones) {
+        long instante = Movimiento.instanteActual();
+        Movimiento[] lote = new Movimiento[operaciones.length];
+        for (int i = 0; i < operaciones.length; i++) {
+            lote[i] = new Movimiento(operaciones[i].getTipo(), operaciones[i].getCentimos(), instante);
+        }
+        return lote;
+    }
+
+    // El historial crece una sola vez para todo el lote
+    private void reservarParaLote(int n) {
+        try {
+            reservarMovimientos(n);
+        } catch (IOException e) {
+            throw new IllegalStateException("No se pudo ampliar el historial para el lote: " + e.getMessage(), e);
         }
     }
 
     /** Devuelve el saldo actual de la cuenta. */
     public double getSaldo() {
-        return saldo;
+        return saldoCentimos / 100.0;
+    }
+
+    /** Devuelve el saldo actual en céntimos. */
+    public long getSaldoCentimos() {
+        return saldoCentimos;
     }
 
     /** Devuelve la lista de movimientos (historial). */
@@ -50,6 +263,133 @@ public class Cuenta implements Serializable {
         return movimientos;
     }
 
+    /**
+     * Número de movimientos entre dos fechas (desde incluida, hasta excluida) y del tipo indicado.
+     * Cualquiera de los tres valores puede ser null para no filtrar por él.
+     */
+    public int contarMovimientos(LocalDateTime desde, LocalDateTime hasta, String tipo) {
+        HistorialEscalonado escalonado = escalonadoOrdenado();
+        if (escalonado != null) {
+            return escalonado.contar(instanteDesde(desde), instanteHasta(hasta), codigoConsulta(tipo));
+        }
+        return indiceActualizado().contar(instanteDesde(desde), instanteHasta(hasta), codigoConsulta(tipo));
+    }
+
+    /**
+     * Devuelve una página de los movimientos entre dos fechas (desde incluida, hasta excluida)
+     * y del tipo indicado, en orden de fecha: se saltan los {@code saltar} primeros y se devuelven
+     * como mucho {@code limite}. Cualquiera de los filtros puede ser null.
+     */
+    public List<Movimiento> buscarMovimientos(LocalDateTime desde, LocalDateTime hasta, String tipo,
+                                              int saltar, int limite) {
+        return pagina(instanteDesde(desde), instanteHasta(hasta), codigoConsulta(tipo), saltar, limite);
+    }
+
+    /**
+     * Recorre los movimientos entre dos fechas y del tipo indicado sin cargarlos todos a la vez:
+     * se piden por páginas según se avanza.
+     */
+    public Iterator<Movimiento> recorrerMovimientos(LocalDateTime desde, LocalDateTime hasta, String tipo) {
+        return recorrerMovimientos(desde, hasta, tipo, 0);
+    }
+
+    /** Como {@link #recorrerMovimientos(LocalDateTime, LocalDateTime, String)}, saltando los {@code saltar} primeros. */
+    public Iterator<Movimiento> recorrerMovimientos(LocalDateTime desde, LocalDateTime hasta, String tipo,
+                                                    int saltar) {
+        final long inicio = instanteDesde(desde);
+        final long fin = instanteHasta(hasta);
+        final int codigo = codigoConsulta(tipo);
+        final int pagina = 1024;
+        return new Iterator<Movimiento>() {
+            private List<Movimiento> actual = new ArrayList<>();
+            private int siguiente;
+            private int leidos = Math.max(0, saltar);
+            private boolean primera = true;
+
+            @Override
+            public boolean hasNext() {
+                if (siguiente < actual.size()) return true;
+                if (!primera && actual.size() < pagina) return false;
+                primera = false;
+                actual = pagina(inicio, fin, codigo, leidos, pagina);
+                siguiente = 0;
+                leidos += actual.size();
+                return !actual.isEmpty();
+            }
+
+            @Override
+            public Movimiento next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return actual.get(siguiente++);
+            }
+        };
+    }
+
+    // Página de una consulta por intervalo: con un historial escalonado en orden de fecha se
+    // recorren sus segmentos (descartando los que no pueden coincidir); si no, se usa el índice
+    private List<Movimiento> pagina(long desde, long hasta, int tipo, int saltar, int limite) {
+        HistorialEscalonado escalonado = escalonadoOrdenado();
+        if (escalonado != null) {
+            return escalonado.buscar(desde, hasta, tipo, saltar, limite);
+        }
+        int[] posiciones = indiceActualizado().buscar(desde, hasta, tipo, saltar, limite);
+        List<Movimiento> resultado = new ArrayList<>(posiciones.length);
+        for (int p : posiciones) {
+            resultado.add(movimientos.get(p));
+        }
+        return resultado;
+    }
+
+    // El historial, si es escalonado y está en orden de fecha (sus consultas ya salen ordenadas)
+    private HistorialEscalonado escalonadoOrdenado() {
+        if (movimientos instanceof HistorialEscalonado && ((HistorialEscalonado) movimientos).isOrdenado()) {
+            return (HistorialEscalonado) movimientos;
+        }
+        return null;
+    }
+
+    /**
+     * Texto del bloque {@code bloque} de movimientos (de {@link CacheExportacion#LINEAS_POR_BLOQUE}
+     * en {@link CacheExportacion#LINEAS_POR_BLOQUE}): una línea por movimiento, como
+     * {@link Movimiento#toString()}. Los bloques ya formateados se sacan de la caché de la cuenta.
+     */
+    public String textoMovimientos(int bloque) {
+        return getCache().lineas(movimientos, bloque, movimientos.size());
+    }
+
+    /** Caché de textos formateados de la cuenta (ver {@link CacheExportacion}). */
+    synchronized CacheExportacion getCache() {
+        if (cache == null) {
+            cache = new CacheExportacion();
+        }
+        return cache;
+    }
+
+    private synchronized IndiceMovimientos indiceActualizado() {
+        if (indice == null) {
+            indice = new IndiceMovimientos();
+        }
+        indice.actualizar(movimientos);
+        return indice;
+    }
+
+    private static long instanteDesde(LocalDateTime desde) {
+        return desde == null ? Long.MIN_VALUE : Movimiento.instanteDesde(desde);
+    }
+
+    private static long instanteHasta(LocalDateTime hasta) {
+        return hasta == null ? Long.MAX_VALUE : Movimiento.instanteDesde(hasta);
+    }
+
+    private static int codigoConsulta(String tipo) {
+        return tipo == null ? IndiceMovimientos.TODOS : TipoMovimiento.desdeNombre(tipo).getCodigo();
+    }
+
+    /** Devuelve las estadísticas de la cuenta (totales, mínimos, máximos, resúmenes por día y mes). */
+    public EstadisticasCuenta getEstadisticas() {
+        return estadisticas;
+    }
+
     /** Devuelve el cliente (titular). */
     public Cliente getCliente() {
         return cliente;
@@ -61,14 +401,139 @@ public class Cuenta implements Serializable {
     }
 
 
+    /** Devuelve el diario asociado a la cuenta (o null si no tiene). */
+    public DiarioMovimientos getDiario() {
+        return diario;
+    }
+
+    /** Asocia un diario en el que se anotarán los ingresos y retiradas. */
+    public void setDiario(DiarioMovimientos diario) {
+        this.diario = diario;
+    }
+
+    /** Devuelve la escucha que recibe los avisos de la cuenta (o null si no tiene). */
+    public EscuchaCuenta getEscucha() {
+        return escucha;
+    }
+
+    /** Indica quién recibe los avisos de ingresos y retiradas (null para ninguno). */
+    public void setEscucha(EscuchaCuenta escucha) {
+        this.escucha = escucha;
+    }
+
+    /** Avisa a la escucha, si hay, del resultado de un ingreso o una retirada. */
+    protected void avisar(TipoMovimiento tipo, long centimos, ResultadoOperacion resultado) {
+        EscuchaCuenta e = escucha;
+        if (e != null) {
+            e.operacion(tipo, centimos, resultado);
+        }
+    }
+
+    /**
+     * Anota en el diario un movimiento que ocupa la posición {@code secuencia} del historial.
+     * Devuelve false si no se ha podido (el error se escribe en System.err); sin diario, true.
+     */
+    protected boolean registrarEnDiario(long secuencia, Movimiento m) {
+        if (diario != null) {
+            try {
+                diario.registrar(secuencia, m);
+            } catch (IOException e) {
+                System.err.println("Error al registrar el movimiento en el diario: " + e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Anota en el diario, como un solo registro, un lote de movimientos que ocupan posiciones
+     * consecutivas del historial a partir de {@code primeraSecuencia}. Devuelve false si no se ha podido.
+     */
+    protected boolean registrarLoteEnDiario(long primeraSecuencia, Movimiento[] lote) {
+        if (diario != null) {
+            try {
+                diario.registrarLote(primeraSecuencia, lote);
+            } catch (IOException e) {
+                System.err.println("Error al registrar el lote en el diario: " + e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Indica si hay movimientos en el historial que no se pudieron anotar en el diario. Mientras
+     * no se guarde un snapshot, lo anotado después no se podría reproducir (el diario tendría un
+     * hueco), así que conviene guardarlo cuanto antes (ver {@link PlanificadorSnapshots#comprobar()}).
+     */
+    public boolean isDiarioIncompleto() {
+        return diarioIncompleto;
+    }
+
+    void setDiarioIncompleto(boolean incompleto) {
+        this.diarioIncompleto = incompleto;
+    }
+
+    /**
+     * Añade un movimiento ya existente (por ejemplo al reproducir el diario) y actualiza el saldo.
+     * No se anota en el diario.
+     */
     public void addMovimiento(Movimiento m) {
         if (m != null) {
             movimientos.add(m);
-            if ("Ingreso".equalsIgnoreCase(m.getTipo())) {
-                saldo += m.getCantidad();
-            } else if ("Retirada".equalsIgnoreCase(m.getTipo())) {
-                saldo -= m.getCantidad();
+            aplicarASaldo(m);
+            estadisticas.registrar(m);
+        }
+    }
+
+    /**
+     * Prepara el historial para recibir {@code adicionales} movimientos más de golpe (por ejemplo
+     * al importar), para que no tenga que ampliarse varias veces mientras se añaden.
+     */
+    public void reservarMovimientos(int adicionales) throws IOException {
+        int necesarios = (int) Math.min((long) movimientos.size() + adicionales, Integer.MAX_VALUE - 8);
+        if (movimientos instanceof ArrayList) {
+            ((ArrayList<Movimiento>) movimientos).ensureCapacity(necesarios);
+        } else if (movimientos instanceof HistorialMapeado) {
+            ((HistorialMapeado) movimientos).reservar(necesarios);
+        } else if (movimientos instanceof HistorialPerezoso) {
+            ((HistorialPerezoso) movimientos).reservar(necesarios);
+        }
+    }
+
+    private void aplicarASaldo(Movimiento m) {
+        if (m.getTipoMovimiento() == TipoMovimiento.RETIRADA) {
+            saldoCentimos -= m.getCentimos();
+        } else {
+            saldoCentimos += m.getCentimos();
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField campos = out.putFields();
+        campos.put("cliente", cliente);
+        campos.put("movimientos", movimientos);
+        campos.put("saldoCentimos", saldoCentimos);
+        campos.put("estadisticas", getEstadisticas());
+        out.writeFields();
+    }
+
+    // Las cuentas guardadas con el saldo en double (o sin estadísticas) recalculan saldo y
+    // estadísticas a partir del historial, ya convertido a céntimos, una vez al cargarse
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField campos = in.readFields();
+        cliente = (Cliente) campos.get("cliente", null);
+        movimientos = (List<Movimiento>) campos.get("movimientos", null);
+        estadisticas = (EstadisticasCuenta) campos.get("estadisticas", null);
+        if (campos.defaulted("saldoCentimos")) {
+            saldoCentimos = 0;
+            for (Movimiento m : movimientos) {
+                aplicarASaldo(m);
             }
+            estadisticas = EstadisticasCuenta.desde(movimientos);
+        } else {
+            saldoCentimos = campos.get("saldoCentimos", 0L);
         }
     }
 }
\ No newline at end of file
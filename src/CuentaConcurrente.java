@@ -0,0 +1,280 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cuenta que admite ingresos y retiradas simultáneos desde varios canales (hilos).
+ *
+ * El saldo se guarda en céntimos en un {@link AtomicLong} y se actualiza con CAS: una retirada
+ * solo se aplica si, en el momento del intercambio, el saldo sigue cubriendo la cantidad, así que
+ * nunca se queda en descubierto. Los movimientos se añaden a un {@link RegistroConcurrente},
+ * también sin bloqueos. Cuando no hay operaciones en curso, el saldo coincide con la suma de
+ * los movimientos.
+ *
+ * Las estadísticas no se tocan en cada operación, que tendrían que compartir su bloqueo: se ponen
+ * al día al pedirlas ({@link #getEstadisticas()}) con los movimientos publicados desde la última
+ * vez.
+ *
+ * Antes de quitarla de memoria, el {@link Banco} la cierra ({@link #cerrar()}): desde entonces
+ * las operaciones no se realizan ({@link ResultadoOperacion#CUENTA_CERRADA}) y el cierre espera a
+ * las que ya estaban en curso, así que lo que se guarde después contiene todo lo realizado.
+ */
+public class CuentaConcurrente extends Cuenta {
+    private static final long serialVersionUID = 1L;
+
+    private static final String MENSAJE_CERRADA = "La cuenta está cerrada; hay que volver a pedirla al banco.";
+
+    private final AtomicLong saldoCentimos = new AtomicLong();
+    private final RegistroConcurrente registro;
+    // Operaciones en curso (repartido entre celdas para no compartir un contador) y cierre
+    private transient LongAdder enCurso = new LongAdder();
+    private transient volatile boolean cerrada;
+
+    public CuentaConcurrente(Cliente cliente) {
+        this(cliente, new RegistroConcurrente());
+    }
+
+    private CuentaConcurrente(Cliente cliente, RegistroConcurrente registro) {
+        super(cliente, registro);
+        this.registro = registro;
+    }
+
+    @Override
+    public ResultadoOperacion ingresarCentimos(long centimos) {
+        long inicio = MEDIDA_INGRESAR.iniciar();
+        ResultadoOperacion resultado = ingreso(centimos);
+        avisar(TipoMovimiento.INGRESO, centimos, resultado);
+        MEDIDA_INGRESAR.registrar(inicio);
+        return resultado;
+    }
+
+    @Override
+    public ResultadoOperacion retirarCentimos(long centimos) {
+        long inicio = MEDIDA_RETIRAR.iniciar();
+        ResultadoOperacion resultado = retirada(centimos);
+        avisar(TipoMovimiento.RETIRADA, centimos, resultado);
+        MEDIDA_RETIRAR.registrar(inicio);
+        return resultado;
+    }
+
+    private ResultadoOperacion ingreso(long centimos) {
+        if (centimos <= 0) {
+            return ResultadoOperacion.CANTIDAD_NO_VALIDA;
+        }
+        if (!entrar()) {
+            return ResultadoOperacion.CUENTA_CERRADA;
+        }
+        try {
+            return ingresoAbierta(centimos);
+        } finally {
+            enCurso.decrement();
+        }
+    }
+
+    private ResultadoOperacion ingresoAbierta(long centimos) {
+        long actual;
+        long nuevo;
+        do {
+            actual = saldoCentimos.get();
+            try {
+                nuevo = Math.addExact(actual, centimos);
+            } catch (ArithmeticException e) {
+                return ResultadoOperacion.SALDO_MAXIMO_SUPERADO;
+            }
+        } while (!saldoCentimos.compareAndSet(actual, nuevo));
+        return anotar(new Movimiento(TipoMovimiento.INGRESO, centimos));
+    }
+
+    private ResultadoOperacion retirada(long centimos) {
+        if (centimos <= 0) {
+            return ResultadoOperacion.CANTIDAD_NO_VALIDA;
+        }
+        if (!entrar()) {
+            return ResultadoOperacion.CUENTA_CERRADA;
+        }
+        try {
+            return retiradaAbierta(centimos);
+        } finally {
+            enCurso.decrement();
+        }
+    }
+
+    private ResultadoOperacion retiradaAbierta(long centimos) {
+        long actual;
+        do {
+            actual = saldoCentimos.get();
+            if (centimos > actual) {
+                return ResultadoOperacion.SALDO_INSUFICIENTE;
+            }
+        } while (!saldoCentimos.compareAndSet(actual, actual - centimos));
+        return anotar(new Movimiento(TipoMovimiento.RETIRADA, centimos));
+    }
+
+    /**
+     * Aplica un lote de operaciones (ver {@link Cuenta#aplicarLote(Operacion[])}). El lote se
+     * valida contra el saldo leído y el saldo final se publica con un único CAS; si otro hilo
+     * cambia el saldo entretanto, se vuelve a validar con el nuevo. Los movimientos ocupan
+     * posiciones consecutivas del historial. Como ya están en él al anotarlos, si el diario falla
+     * el lote queda aplicado igualmente (ver {@link #isDiarioIncompleto()}). Lanza
+     * IllegalStateException si la cuenta está cerrada.
+     */
+    @Override
+    public int aplicarLote(Operacion[] operaciones) {
+        long inicio = MEDIDA_LOTE.iniciar();
+        if (!entrar()) {
+            throw new IllegalStateException(MENSAJE_CERRADA);
+        }
+        try {
+            long efecto = 0;
+            boolean calculado = false;
+            long actual;
+            do {
+                actual = saldoCentimos.get();
+                int invalida = validarLote(operaciones, actual);
+                if (invalida >= 0 || operaciones.length == 0) {
+                    return invalida;
+                }
+                // Una vez validado, la suma no puede desbordarse
+                if (!calculado) {
+                    for (Operacion op : operaciones) {
+                        efecto += op.getTipo() == TipoMovimiento.RETIRADA ? -op.getCentimos() : op.getCentimos();
+                    }
+                    calculado = true;
+                }
+            } while (!saldoCentimos.compareAndSet(actual, actual + efecto));
+
+            Movimiento[] lote = movimientosDeLote(operaciones);
+            int primera = registro.anadirTodos(lote);
+            if (!registrarLoteEnDiario(primera, lote)) {
+                setDiarioIncompleto(true);
+            }
+            return -1;
+        } finally {
+            enCurso.decrement();
+            MEDIDA_LOTE.registrar(inicio);
+        }
+    }
+
+    @Override
+    public double getSaldo() {
+        return saldoCentimos.get() / 100.0;
+    }
+
+    @Override
+    public long getSaldoCentimos() {
+        return saldoCentimos.get();
+    }
+
+    /**
+     * Estadísticas de la cuenta, puestas al día con los movimientos publicados. Como el historial
+     * publicado solo crece por el final, el número de movimientos que ya cuentan las estadísticas
+     * es la posición por la que seguir.
+     */
+    @Override
+    public EstadisticasCuenta getEstadisticas() {
+        EstadisticasCuenta estadisticas = super.getEstadisticas();
+        int publicados = registro.size();
+        synchronized (estadisticas) {
+            for (int i = (int) estadisticas.getNumMovimientos(); i < publicados; i++) {
+                estadisticas.registrar(registro.get(i));
+            }
+        }
+        return estadisticas;
+    }
+
+    /**
+     * Como {@link #aplicarLote(Operacion[])}, los movimientos se publican antes de anotarlos: si el
+     * diario falla quedan añadidos igualmente (ver {@link #isDiarioIncompleto()}). Lanza
+     * IllegalStateException si la cuenta está cerrada.
+     */
+    @Override
+    void anadirLote(Movimiento[] lote) {
+        if (!entrar()) {
+            throw new IllegalStateException(MENSAJE_CERRADA);
+        }
+        try {
+            long efecto = 0;
+            for (Movimiento m : lote) {
+                efecto += m.getTipoMovimiento() == TipoMovimiento.RETIRADA ? -m.getCentimos() : m.getCentimos();
+            }
+            int primera = registro.anadirTodos(lote);
+            saldoCentimos.addAndGet(efecto);
+            if (!registrarLoteEnDiario(primera, lote)) {
+                setDiarioIncompleto(true);
+            }
+        } finally {
+            enCurso.decrement();
+        }
+    }
+
+    /** Lanza IllegalStateException si la cuenta está cerrada. */
+    @Override
+    public void addMovimiento(Movimiento m) {
+        if (m == null) {
+            return;
+        }
+        if (!entrar()) {
+            throw new IllegalStateException(MENSAJE_CERRADA);
+        }
+        try {
+            registro.anadir(m);
+            if (m.getTipoMovimiento() == TipoMovimiento.RETIRADA) {
+                saldoCentimos.addAndGet(-m.getCentimos());
+            } else {
+                saldoCentimos.addAndGet(m.getCentimos());
+            }
+        } finally {
+            enCurso.decrement();
+        }
+    }
+
+    /**
+     * Cierra la cuenta: las operaciones que empiecen desde ahora no se realizan y se espera a que
+     * terminen las que estaban en curso. Lo usa el {@link Banco} antes de guardarla y quitarla de
+     * memoria; si no se puede guardar, la vuelve a abrir con {@link #reabrir()}.
+     */
+    void cerrar() {
+        cerrada = true;
+        // Cada operación se cuenta antes de comprobar el cierre: si no lo ha visto, aparece aquí
+        while (enCurso.sum() != 0) {
+            Thread.yield();
+        }
+    }
+
+    /** Vuelve a admitir operaciones tras {@link #cerrar()}. */
+    void reabrir() {
+        cerrada = false;
+    }
+
+    /** true si la cuenta está cerrada (ver {@link ResultadoOperacion#CUENTA_CERRADA}). */
+    public boolean isCerrada() {
+        return cerrada;
+    }
+
+    // Cuenta la operación como en curso si la cuenta no está cerrada
+    private boolean entrar() {
+        enCurso.increment();
+        if (cerrada) {
+            enCurso.decrement();
+            return false;
+        }
+        return true;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        enCurso = new LongAdder();
+    }
+
+    // Añade el movimiento al historial y al diario con la posición que le ha tocado. La posición
+    // solo se conoce al publicarlo, así que si el diario falla el movimiento ya está aplicado
+    private ResultadoOperacion anotar(Movimiento m) {
+        int posicion = registro.anadir(m);
+        if (!registrarEnDiario(posicion, m)) {
+            setDiarioIncompleto(true);
+            return ResultadoOperacion.REALIZADA_SIN_DIARIO;
+        }
+        return ResultadoOperacion.REALIZADA;
+    }
+}
@@ -0,0 +1,518 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Diario (write-ahead log) de movimientos de una cuenta.
+ *
+ * Cada ingreso o retirada se añade al final del archivo como un registro binario de tamaño fijo,
+ * así que el coste de persistir una operación no depende del tamaño del historial. Las llamadas
+ * a fsync se agrupan: se fuerza el disco cada {@code tamLote} registros o, como mucho,
+ * cada {@code intervaloMs} milisegundos.
+ *
+ * Formato: cabecera de 16 bytes (magia, versión, reservado) seguida de registros de 32 bytes:
+ * secuencia (long), instante (long), cantidad en céntimos (long), tipo (byte), relleno (3 bytes)
+ * y CRC32 de los 28 bytes anteriores. Un lote (ver {@link #registrarLote}) es un registro con el
+ * tipo {@code TIPO_LOTE} y el número de movimientos en lugar de la cantidad, seguido de 8 bytes
+ * por movimiento (céntimos * 2 + código del tipo) y del CRC32 de esos bytes. Si los movimientos
+ * del lote no tienen todos el mismo instante (los de una importación), el tipo es
+ * {@code TIPO_LOTE_INSTANTES} y cada movimiento ocupa 16 bytes: su instante y los 8 de antes.
+ *
+ * Los diarios de la versión 1 guardaban la cantidad como los bits de un double, los de la
+ * versión 2 no tenían lotes y los de la 3 solo los tenían con un instante; se siguen leyendo y
+ * escribiendo en su formato (un lote que no admiten se escribe como registros sueltos) hasta el
+ * siguiente snapshot, que los vacía y los pasa a la versión actual.
+ */
+public class DiarioMovimientos implements Closeable {
+    private static final int MAGIA = 0x434A4E4C; // "CJNL"
+    private static final int VERSION = 4;
+    private static final int VERSION_LOTES_UN_INSTANTE = 3;
+    private static final int VERSION_SIN_LOTES = 2;
+    private static final int VERSION_CANTIDAD_DOUBLE = 1;
+    // Tipo de la cabecera de un lote (no es el código de ningún TipoMovimiento)
+    private static final byte TIPO_LOTE = (byte) 0x7F;
+    private static final byte TIPO_LOTE_INSTANTES = (byte) 0x7E;
+    private static final int TAM_CABECERA = 16;
+    private static final int TAM_REGISTRO = 32;
+
+    // Escrituras en el diario (con el fsync, si toca) y fsyncs
+    private static final Metricas.Medida MEDIDA_REGISTRAR = Metricas.medida("diario.registrar");
+    private static final Metricas.Medida MEDIDA_LOTE = Metricas.medida("diario.registrarLote");
+    private static final Metricas.Medida MEDIDA_SINCRONIZAR = Metricas.medida("diario.sincronizar");
+
+    private final Path archivo;
+    // Protege el canal y los contadores. No es un monitor (synchronized): se escribe y se hace
+    // fsync con él tomado, y así un hilo virtual que espera no deja bloqueado su hilo portador
+    private final ReentrantLock cerrojo = new ReentrantLock();
+    // Se sustituye al descartar el principio del diario (ver descartarHasta)
+    private FileChannel canal;
+    // Buffer reutilizable para escribir un registro sin reservar memoria en cada operación
+    private final ByteBuffer registro = ByteBuffer.allocateDirect(TAM_REGISTRO);
+    private final CRC32 crc = new CRC32();
+    private final int tamLote;
+    private final long intervaloNanos;
+    // Hilo que fuerza a disco los registros pendientes cuando pasa el intervalo sin llegar al lote
+    private final ScheduledExecutorService sincronizador;
+
+    private int pendientesSync;
+    private long ultimoSync;
+    private long registrosDesdeSnapshot;
+    // Versión del formato de los registros que hay ahora en el archivo
+    private int version = VERSION;
+    // Cambia cada vez que se vacía o se recorta el diario: las marcas anteriores dejan de valer
+    private long generacion;
+
+    /**
+     * Abre (o crea) el diario del archivo indicado y arranca el hilo que fuerza a disco lo
+     * pendiente cada {@code intervaloMs} milisegundos.
+     */
+    public static DiarioMovimientos abrir(Path path, int tamLote, long intervaloMs) throws IOException {
+        DiarioMovimientos diario = new DiarioMovimientos(path, tamLote, intervaloMs);
+        // La tarea se programa con el diario ya construido, no desde el constructor
+        diario.sincronizador.scheduleWithFixedDelay(diario::sincronizarSiCaducado,
+                intervaloMs, intervaloMs, TimeUnit.MILLISECONDS);
+        return diario;
+    }
+
+    private DiarioMovimientos(Path path, int tamLote, long intervaloMs) throws IOException {
+        this.archivo = path;
+        this.canal = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.tamLote = Math.max(1, tamLote);
+        this.intervaloNanos = TimeUnit.MILLISECONDS.toNanos(intervaloMs);
+        this.ultimoSync = System.nanoTime();
+
+        if (canal.size() < TAM_CABECERA) {
+            escribirCabecera();
+        } else {
+            ByteBuffer cabecera = ByteBuffer.allocate(TAM_CABECERA);
+            leerCompleto(cabecera, 0);
+            cabecera.flip();
+            int magia = cabecera.getInt();
+            version = cabecera.getInt();
+            if (magia != MAGIA || (version != VERSION && version != VERSION_LOTES_UN_INSTANTE
+                    && version != VERSION_SIN_LOTES && version != VERSION_CANTIDAD_DOUBLE)) {
+                canal.close();
+                throw new IOException("El archivo " + path + " no es un diario de movimientos válido.");
+            }
+        }
+        canal.position(canal.size());
+
+        this.sincronizador = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "diario-sync");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Añade un movimiento al diario. {@code secuencia} es su posición en el historial de la cuenta.
+     * Si falla, el diario vuelve a quedar como estaba (sin el registro a medio escribir).
+     */
+    public void registrar(long secuencia, Movimiento m) throws IOException {
+        cerrojo.lock();
+        try {
+            long posicion = canal.position();
+            long registrosAntes = registrosDesdeSnapshot;
+            try {
+                escribirRegistro(secuencia, m);
+            } catch (IOException e) {
+                deshacerHasta(posicion, registrosAntes);
+                throw e;
+            }
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    private void escribirRegistro(long secuencia, Movimiento m) throws IOException {
+        long inicio = MEDIDA_REGISTRAR.iniciar();
+        registro.clear();
+        registro.putLong(secuencia);
+        registro.putLong(m.getInstante());
+        registro.putLong(version != VERSION_CANTIDAD_DOUBLE ? m.getCentimos() : Double.doubleToRawLongBits(m.getCantidad()));
+        registro.put(m.getTipoMovimiento().getCodigo());
+        registro.put((byte) 0).put((byte) 0).put((byte) 0);
+        registro.putInt(crcRegistro(registro, 0));
+        registro.flip();
+        while (registro.hasRemaining()) {
+            canal.write(registro);
+        }
+        registrosDesdeSnapshot++;
+        anotadoRegistro();
+        MEDIDA_REGISTRAR.registrar(inicio, 0, TAM_REGISTRO);
+    }
+
+    /**
+     * Añade un lote de movimientos como un único registro. Los movimientos ocupan posiciones
+     * consecutivas del historial a partir de {@code primeraSecuencia}; si no tienen todos el
+     * mismo instante, el registro lleva el de cada uno. Al reproducir el diario, un lote incompleto
+     * o dañado se descarta entero. Si falla, el diario vuelve a quedar como estaba.
+     */
+    public void registrarLote(long primeraSecuencia, Movimiento[] lote) throws IOException {
+        if (lote.length == 0) return;
+        cerrojo.lock();
+        try {
+            long posicion = canal.position();
+            long registrosAntes = registrosDesdeSnapshot;
+            try {
+                escribirLote(primeraSecuencia, lote);
+            } catch (IOException e) {
+                deshacerHasta(posicion, registrosAntes);
+                throw e;
+            }
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    private void escribirLote(long primeraSecuencia, Movimiento[] lote) throws IOException {
+        long instante = lote[0].getInstante();
+        boolean unInstante = true;
+        boolean cabenEnLote = true;
+        for (Movimiento m : lote) {
+            unInstante &= m.getInstante() == instante;
+            // La cantidad se guarda con un bit menos para el tipo
+            cabenEnLote &= m.getCentimos() >= 0 && m.getCentimos() <= Long.MAX_VALUE >>> 1;
+        }
+        long inicio = MEDIDA_LOTE.iniciar();
+        if (version < VERSION_LOTES_UN_INSTANTE || (version < VERSION && !unInstante) || !cabenEnLote) {
+            // El formato del archivo no admite este lote: se anota cada movimiento por separado
+            for (int i = 0; i < lote.length; i++) {
+                escribirRegistro(primeraSecuencia + i, lote[i]);
+            }
+            return;
+        }
+        int ancho = unInstante ? 8 : 16;
+        ByteBuffer datos = ByteBuffer.allocate(TAM_REGISTRO + lote.length * ancho + 4);
+        datos.putLong(primeraSecuencia);
+        datos.putLong(instante);
+        datos.putLong(lote.length);
+        datos.put(unInstante ? TIPO_LOTE : TIPO_LOTE_INSTANTES);
+        datos.put((byte) 0).put((byte) 0).put((byte) 0);
+        datos.putInt(crcRegistro(datos, 0));
+        for (Movimiento m : lote) {
+            if (!unInstante) {
+                datos.putLong(m.getInstante());
+            }
+            datos.putLong(m.getCentimos() << 1 | m.getTipoMovimiento().getCodigo());
+        }
+        crc.reset();
+        crc.update(datos.array(), TAM_REGISTRO, lote.length * ancho);
+        datos.putInt((int) crc.getValue());
+        datos.flip();
+        while (datos.hasRemaining()) {
+            canal.write(datos);
+        }
+        registrosDesdeSnapshot += lote.length;
+        anotadoRegistro();
+        MEDIDA_LOTE.registrar(inicio, 0, datos.limit());
+    }
+
+    // Quita lo escrito desde posicion por una anotación que ha fallado: un registro a medias
+    // haría que al reproducir se descartase también todo lo anotado después
+    private void deshacerHasta(long posicion, long registrosAntes) {
+        try {
+            canal.truncate(posicion);
+            canal.position(posicion);
+        } catch (IOException e) {
+            System.err.println("No se pudo deshacer la anotación fallida en el diario: " + e.getMessage());
+        }
+        registrosDesdeSnapshot = registrosAntes;
+    }
+
+    // Fuerza el disco si se ha llegado al tamaño del lote de fsync o ha pasado el intervalo
+    private void anotadoRegistro() throws IOException {
+        pendientesSync++;
+        if (pendientesSync >= tamLote || System.nanoTime() - ultimoSync >= intervaloNanos) {
+            sincronizar();
+        }
+    }
+
+    /**
+     * Reproduce sobre la cuenta los registros cuya secuencia aún no está en su historial
+     * (la cola posterior al último snapshot). Los registros pueden estar desordenados si la cuenta
+     * admite operaciones concurrentes; se aplican en orden de secuencia mientras no falte ninguno.
+     * Si el final del archivo está incompleto o dañado (por ejemplo tras un corte), se descarta
+     * a partir de ese punto. Devuelve el número de movimientos aplicados.
+     */
+    public int reproducir(Cuenta cuenta) throws IOException {
+        cerrojo.lock();
+        try {
+            ByteBuffer lectura = ByteBuffer.allocateDirect(TAM_REGISTRO * 1024);
+            long posicion = TAM_CABECERA;
+            long fin = canal.size();
+            long base = cuenta.getMovimientos().size();
+            TreeMap<Long, Movimiento> cola = new TreeMap<>();
+
+            lectura.flip();
+            while (posicion + TAM_REGISTRO <= fin) {
+                if (lectura.remaining() < TAM_REGISTRO) {
+                    lectura.clear();
+                    lectura.limit((int) Math.min(lectura.capacity(), fin - posicion) / TAM_REGISTRO * TAM_REGISTRO);
+                    leerCompleto(lectura, posicion);
+                    lectura.flip();
+                }
+                int inicio = lectura.position();
+                long secuencia = lectura.getLong();
+                long instante = lectura.getLong();
+                long cantidad = lectura.getLong();
+                byte tipo = lectura.get();
+                lectura.position(lectura.position() + 3);
+                int crcGuardado = lectura.getInt();
+
+                if (crcRegistro(lectura, inicio) != crcGuardado) {
+                    break;
+                }
+                if ((tipo == TIPO_LOTE && version >= VERSION_LOTES_UN_INSTANTE)
+                        || (tipo == TIPO_LOTE_INSTANTES && version == VERSION)) {
+                    int ancho = tipo == TIPO_LOTE ? 8 : 16;
+                    long tamLote = TAM_REGISTRO + cantidad * ancho + 4;
+                    if (cantidad <= 0 || cantidad > (Integer.MAX_VALUE - 4) / ancho || posicion + tamLote > fin) {
+                        break;
+                    }
+                    ByteBuffer movimientos = ByteBuffer.allocate((int) cantidad * ancho + 4);
+                    leerCompleto(movimientos, posicion + TAM_REGISTRO);
+                    crc.reset();
+                    crc.update(movimientos.array(), 0, (int) cantidad * ancho);
+                    movimientos.flip();
+                    if ((int) crc.getValue() != movimientos.getInt((int) cantidad * ancho)) {
+                        break;
+                    }
+                    for (int k = 0; k < cantidad; k++) {
+                        long instanteMovimiento = tipo == TIPO_LOTE ? instante : movimientos.getLong();
+                        long valor = movimientos.getLong();
+                        if (secuencia + k >= base) {
+                            cola.put(secuencia + k, new Movimiento(TipoMovimiento.desdeCodigo((byte) (valor & 1)), valor >>> 1,
+                                    instanteMovimiento));
+                        }
+                    }
+                    posicion += tamLote;
+                    registrosDesdeSnapshot += cantidad;
+                    // El siguiente registro ya no está alineado con lo leído: se vuelve a llenar el buffer
+                    lectura.position(lectura.limit());
+                    continue;
+                }
+                if (secuencia >= base) {
+                    long centimos = version != VERSION_CANTIDAD_DOUBLE ? cantidad : Movimiento.centimosDesde(Double.longBitsToDouble(cantidad));
+                    cola.put(secuencia, new Movimiento(TipoMovimiento.desdeCodigo(tipo), centimos, instante));
+                }
+                posicion += TAM_REGISTRO;
+                registrosDesdeSnapshot++;
+            }
+
+            if (posicion < fin) {
+                canal.truncate(posicion);
+                canal.force(false);
+            }
+            canal.position(posicion);
+
+            // Si falta una secuencia no se puede aplicar nada posterior con seguridad
+            int aplicados = 0;
+            for (Map.Entry<Long, Movimiento> e : cola.entrySet()) {
+                if (e.getKey() != base + aplicados) {
+                    break;
+                }
+                cuenta.addMovimiento(e.getValue());
+                aplicados++;
+            }
+            return aplicados;
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Vacía el diario tras guardar un snapshot completo de la cuenta.
+     */
+    public void truncar() throws IOException {
+        cerrojo.lock();
+        try {
+            if (version != VERSION) {
+                // Con el diario vacío ya se puede pasar al formato actual
+                version = VERSION;
+                escribirCabecera();
+            }
+            canal.truncate(TAM_CABECERA);
+            canal.position(TAM_CABECERA);
+            canal.force(false);
+            registrosDesdeSnapshot = 0;
+            pendientesSync = 0;
+            ultimoSync = System.nanoTime();
+            generacion++;
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Marca el final actual del diario. Se toma junto con una copia de la cuenta que se va a
+     * guardar en otro hilo; al terminar el snapshot, {@link #descartarHasta} quita lo anterior
+     * a la marca y conserva lo anotado después.
+     */
+    public Marca marca() throws IOException {
+        cerrojo.lock();
+        try {
+            return new Marca(canal.position(), registrosDesdeSnapshot, generacion);
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Quita del diario los registros anteriores a la marca, que ya están en un snapshot, y conserva
+     * los posteriores. Si hay cola, se copia tras una cabecera nueva en un temporal que sustituye
+     * al diario de forma atómica, así que un corte a mitad deja el diario anterior entero (y al
+     * reproducirlo se saltan los movimientos que ya estén en el snapshot). Si el diario se ha
+     * vaciado o recortado después de tomar la marca, no se hace nada.
+     */
+    public void descartarHasta(Marca marca) throws IOException {
+        cerrojo.lock();
+        try {
+            if (marca.generacion != generacion || marca.posicion <= TAM_CABECERA) {
+                return;
+            }
+            long fin = canal.size();
+            if (marca.posicion >= fin) {
+                truncar();
+                return;
+            }
+            Path temporal = archivo.resolveSibling(archivo.getFileName() + ".tmp");
+            try (FileChannel nuevo = FileChannel.open(temporal, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer cabecera = ByteBuffer.allocate(TAM_CABECERA);
+                cabecera.putInt(MAGIA).putInt(version).putLong(0L);
+                cabecera.flip();
+                while (cabecera.hasRemaining()) {
+                    nuevo.write(cabecera);
+                }
+                long posicion = marca.posicion;
+                while (posicion < fin) {
+                    posicion += canal.transferTo(posicion, fin - posicion, nuevo);
+                }
+                nuevo.force(false);
+            }
+            Files.move(temporal, archivo, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            canal.close();
+            canal = FileChannel.open(archivo, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            canal.position(canal.size());
+            registrosDesdeSnapshot -= marca.registros;
+            pendientesSync = 0;
+            ultimoSync = System.nanoTime();
+            generacion++;
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /** Fuerza a disco los registros escritos. */
+    public void sincronizar() throws IOException {
+        cerrojo.lock();
+        try {
+            if (pendientesSync > 0) {
+                long inicio = MEDIDA_SINCRONIZAR.iniciar();
+                canal.force(false);
+                pendientesSync = 0;
+                MEDIDA_SINCRONIZAR.registrar(inicio);
+            }
+            ultimoSync = System.nanoTime();
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /** Número de registros en el diario desde el último snapshot. */
+    public long getRegistrosDesdeSnapshot() {
+        cerrojo.lock();
+        try {
+            return registrosDesdeSnapshot;
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        cerrojo.lock();
+        try {
+            sincronizador.shutdownNow();
+            if (canal.isOpen()) {
+                sincronizar();
+                canal.close();
+            }
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Posición del diario en un momento dado (ver {@link #marca()}).
+     */
+    public static final class Marca {
+        private final long posicion;
+        private final long registros;
+        private final long generacion;
+
+        private Marca(long posicion, long registros, long generacion) {
+            this.posicion = posicion;
+            this.registros = registros;
+            this.generacion = generacion;
+        }
+    }
+
+    private void sincronizarSiCaducado() {
+        cerrojo.lock();
+        try {
+            try {
+                if (canal.isOpen() && pendientesSync > 0 && System.nanoTime() - ultimoSync >= intervaloNanos) {
+                    sincronizar();
+                }
+            } catch (IOException e) {
+                System.err.println("Error sincronizando el diario: " + e.getMessage());
+            }
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    private void escribirCabecera() throws IOException {
+        ByteBuffer cabecera = ByteBuffer.allocate(TAM_CABECERA);
+        cabecera.putInt(MAGIA).putInt(VERSION).putLong(0L);
+        cabecera.flip();
+        canal.truncate(0);
+        while (cabecera.hasRemaining()) {
+            canal.write(cabecera, cabecera.position());
+        }
+        canal.force(false);
+    }
+
+    private void leerCompleto(ByteBuffer destino, long posicion) throws IOException {
+        while (destino.hasRemaining()) {
+            int leidos = canal.read(destino, posicion);
+            if (leidos < 0) {
+                throw new IOException("Fin de archivo inesperado en el diario.");
+            }
+            posicion += leidos;
+        }
+    }
+
+    // CRC32 de los 28 primeros bytes del registro (todo salvo el propio CRC)
+    private int crcRegistro(ByteBuffer buffer, int inicio) {
+        ByteBuffer datos = buffer.duplicate();
+        datos.limit(inicio + TAM_REGISTRO - 4).position(inicio);
+        crc.reset();
+        crc.update(datos);
+        return (int) crc.getValue();
+    }
+}
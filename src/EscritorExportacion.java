@@ -0,0 +1,210 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Escritor de texto para las exportaciones.
+ *
+ * Formatea números y escapa texto directamente sobre un buffer de caracteres reutilizable,
+ * sin crear cadenas intermedias por cada movimiento. La salida es idéntica a la que producían
+ * {@code DecimalFormat("#.##")}, los métodos de escape de {@link ExportarCuenta} y
+ * {@code BufferedWriter.newLine()}.
+ */
+public class EscritorExportacion implements Closeable {
+    private static final int TAM_BUFFER = 16 * 1024;
+    private static final String SALTO_LINEA = System.lineSeparator();
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    // Por encima de este valor el importe se formatea con DecimalFormat (evita errores de redondeo)
+    private static final double MAX_IMPORTE_RAPIDO = 1e12;
+
+    private final Writer destino;
+    private final char[] buffer = new char[TAM_BUFFER];
+    private int pos;
+
+    // Separador decimal del locale por defecto (el mismo que usa DecimalFormat)
+    private final char separadorDecimal;
+    private final boolean digitosAscii;
+    // Solo se crea si aparece un importe que no admite la vía rápida
+    private DecimalFormat formatoImporte;
+
+    public EscritorExportacion(Writer destino) {
+        this.destino = destino;
+        DecimalFormatSymbols simbolos = DecimalFormatSymbols.getInstance(Locale.getDefault(Locale.Category.FORMAT));
+        this.separadorDecimal = simbolos.getDecimalSeparator();
+        this.digitosAscii = simbolos.getZeroDigit() == '0';
+    }
+
+    /** Abre un escritor UTF-8 sobre el archivo indicado (lo crea o lo sobrescribe). */
+    public static EscritorExportacion abrir(Path path) throws IOException {
+        return new EscritorExportacion(new OutputStreamWriter(Files.newOutputStream(path), StandardCharsets.UTF_8));
+    }
+
+    /** Escribe un texto tal cual. */
+    public EscritorExportacion texto(String s) throws IOException {
+        int n = s.length();
+        int i = 0;
+        while (i < n) {
+            if (pos == buffer.length) vaciarBuffer();
+            int trozo = Math.min(n - i, buffer.length - pos);
+            s.getChars(i, i + trozo, buffer, pos);
+            pos += trozo;
+            i += trozo;
+        }
+        return this;
+    }
+
+    /** Escribe un carácter. */
+    public EscritorExportacion caracter(char c) throws IOException {
+        if (pos == buffer.length) vaciarBuffer();
+        buffer[pos++] = c;
+        return this;
+    }
+
+    /** Escribe un salto de línea del sistema (igual que {@code BufferedWriter.newLine()}). */
+    public EscritorExportacion linea() throws IOException {
+        return texto(SALTO_LINEA);
+    }
+
+    /** Escribe un entero en decimal. */
+    public EscritorExportacion entero(long valor) throws IOException {
+        if (valor == Long.MIN_VALUE) {
+            return texto(Long.toString(valor));
+        }
+        if (valor < 0) {
+            caracter('-');
+            valor = -valor;
+        }
+        if (buffer.length - pos < 20) vaciarBuffer();
+        int digitos = 1;
+        for (long v = valor / 10; v > 0; v /= 10) digitos++;
+        int fin = pos + digitos;
+        for (int i = fin - 1; i >= pos; i--) {
+            buffer[i] = (char) ('0' + (valor % 10));
+            valor /= 10;
+        }
+        pos = fin;
+        return this;
+    }
+
+    /** Escribe un importe con el mismo resultado que {@code new DecimalFormat("#.##").format(valor)}. */
+    public EscritorExportacion importe(double valor) throws IOException {
+        // Vía rápida: importes no negativos cuyo redondeo a céntimos no está cerca de un empate
+        if (digitosAscii && Double.doubleToRawLongBits(valor) >= 0 && valor < MAX_IMPORTE_RAPIDO) {
+            double escalado = valor * 100;
+            double redondeado = Math.rint(escalado);
+            if (Math.abs(escalado - redondeado) < 0.4) {
+                return centimos((long) redondeado);
+            }
+        }
+        return texto(formatoImporte().format(valor));
+    }
+
+    /**
+     * Escribe un importe en céntimos con el mismo resultado que
+     * {@code new DecimalFormat("#.##").format(centimos / 100.0)}, pero sin pasar por double.
+     */
+    public EscritorExportacion importeCentimos(long centimos) throws IOException {
+        if (digitosAscii && centimos >= 0) {
+            return centimos(centimos);
+        }
+        return texto(formatoImporte().format(BigDecimal.valueOf(centimos, 2)));
+    }
+
+    // Parte entera, separador y hasta dos decimales sin ceros a la derecha
+    private EscritorExportacion centimos(long centimos) throws IOException {
+        entero(centimos / 100);
+        int decimales = (int) (centimos % 100);
+        if (decimales != 0) {
+            caracter(separadorDecimal);
+            caracter((char) ('0' + decimales / 10));
+            if (decimales % 10 != 0) caracter((char) ('0' + decimales % 10));
+        }
+        return this;
+    }
+
+    private DecimalFormat formatoImporte() {
+        if (formatoImporte == null) formatoImporte = new DecimalFormat("#.##");
+        return formatoImporte;
+    }
+
+    /** Escribe un valor de CSV: los ';' se cambian por ',' para no romper las columnas. */
+    public EscritorExportacion csv(String s) throws IOException {
+        if (s == null) return this;
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            caracter(c == ';' ? ',' : c);
+        }
+        return this;
+    }
+
+    /** Escribe un texto escapado para XML. */
+    public EscritorExportacion xml(String s) throws IOException {
+        if (s == null) return this;
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '&': texto("&amp;"); break;
+                case '<': texto("&lt;"); break;
+                case '>': texto("&gt;"); break;
+                case '"': texto("&quot;"); break;
+                case '\'': texto("&apos;"); break;
+                default: caracter(c);
+            }
+        }
+        return this;
+    }
+
+    /** Escribe un texto escapado para una cadena JSON. */
+    public EscritorExportacion json(String s) throws IOException {
+        if (s == null) return this;
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': texto("\\\""); break;
+                case '\\': texto("\\\\"); break;
+                case '\b': texto("\\b"); break;
+                case '\f': texto("\\f"); break;
+                case '\n': texto("\\n"); break;
+                case '\r': texto("\\r"); break;
+                case '\t': texto("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        texto("\\u00").caracter(HEX[c >> 4]).caracter(HEX[c & 0xF]);
+                    } else {
+                        caracter(c);
+                    }
+            }
+        }
+        return this;
+    }
+
+    /** Pasa el contenido del buffer al destino y lo vacía. */
+    public void flush() throws IOException {
+        vaciarBuffer();
+        destino.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            vaciarBuffer();
+        } finally {
+            destino.close();
+        }
+    }
+
+    private void vaciarBuffer() throws IOException {
+        if (pos > 0) {
+            destino.write(buffer, 0, pos);
+            pos = 0;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+/**
+ * Recibe los avisos de las operaciones de una cuenta (ver {@link Cuenta#setEscucha}).
+ *
+ * Se llama desde el hilo que hace la operación, justo después de aplicarla, así que no debe
+ * bloquearse: para escribir por consola o en un log está {@link SalidaConsolaAsincrona}.
+ */
+public interface EscuchaCuenta {
+
+    /**
+     * Aviso de un ingreso o una retirada, realizado o no. {@code centimos} es la cantidad pedida
+     * ya redondeada a céntimos.
+     */
+    void operacion(TipoMovimiento tipo, long centimos, ResultadoOperacion resultado);
+}
@@ -0,0 +1,377 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Estadísticas de una cuenta que se mantienen al día con cada movimiento.
+ *
+ * Guarda totales, número de operaciones y cantidades mínima y máxima por tipo, además de un
+ * resumen por día y por mes. Como se actualizan al añadir cada movimiento (coste O(1), salvo
+ * el primer movimiento de un día nuevo), consultarlas nunca obliga a recorrer el historial.
+ *
+ * Al cargar un snapshot con historial perezoso solo se leen los totales; los resúmenes por día
+ * y por mes se leen del archivo la primera vez que hacen falta (ver {@link #resumenesEnDisco}).
+ */
+public class EstadisticasCuenta implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final long MILIS_POR_DIA = 86_400_000L;
+
+    private final Acumulado ingresos = new Acumulado();
+    private final Acumulado retiradas = new Acumulado();
+    // Claves: aaaammdd para los días y aaaamm para los meses
+    private final TreeMap<Integer, Resumen> porDia = new TreeMap<>();
+    private final TreeMap<Integer, Resumen> porMes = new TreeMap<>();
+    // Si no es null, los resúmenes aún no se han leído: están en este canal (el del snapshot)
+    private transient FileChannel canalResumenes;
+    private transient long posicionResumenes;
+    private transient int tamanoResumenes;
+
+    // Último día (en días desde 1970) y mes usados: casi siempre el siguiente movimiento cae en ellos
+    private transient long ultimoDia = Long.MIN_VALUE;
+    private transient Resumen resumenUltimoDia;
+    private transient int ultimoMes = -1;
+    private transient Resumen resumenUltimoMes;
+
+    /** Calcula las estadísticas de un historial completo (se usa con cuentas guardadas sin ellas). */
+    public static EstadisticasCuenta desde(Iterable<Movimiento> movimientos) {
+        EstadisticasCuenta e = new EstadisticasCuenta();
+        for (Movimiento m : movimientos) {
+            e.registrar(m);
+        }
+        return e;
+    }
+
+    /** Copia independiente de las estadísticas (ver {@link PlanificadorSnapshots}). */
+    public synchronized EstadisticasCuenta copia() {
+        EstadisticasCuenta c = new EstadisticasCuenta();
+        c.ingresos.copiarDe(ingresos);
+        c.retiradas.copiarDe(retiradas);
+        if (canalResumenes != null) {
+            // Como la copia de un HistorialPerezoso, comparte el archivo y los lee de él por su cuenta
+            c.resumenesEnDisco(canalResumenes, posicionResumenes, tamanoResumenes);
+            return c;
+        }
+        for (Map.Entry<Integer, Resumen> e : porDia.entrySet()) {
+            c.porDia.put(e.getKey(), e.getValue().copia());
+        }
+        for (Map.Entry<Integer, Resumen> e : porMes.entrySet()) {
+            c.porMes.put(e.getKey(), e.getValue().copia());
+        }
+        return c;
+    }
+
+    /** Añade un movimiento a las estadísticas. */
+    public synchronized void registrar(Movimiento m) {
+        boolean esRetirada = m.getTipoMovimiento() == TipoMovimiento.RETIRADA;
+        long cantidad = m.getCentimos();
+        (esRetirada ? retiradas : ingresos).sumar(cantidad);
+
+        long dia = Math.floorDiv(m.getInstante(), MILIS_POR_DIA);
+        if (dia != ultimoDia) {
+            cargarResumenes();
+            ultimoDia = dia;
+            int clave = claveDia(LocalDate.ofEpochDay(dia));
+            resumenUltimoDia = porDia.computeIfAbsent(clave, k -> new Resumen());
+            int mes = clave / 100;
+            if (mes != ultimoMes) {
+                ultimoMes = mes;
+                resumenUltimoMes = porMes.computeIfAbsent(mes, k -> new Resumen());
+            }
+        }
+        resumenUltimoDia.sumar(esRetirada, cantidad);
+        resumenUltimoMes.sumar(esRetirada, cantidad);
+    }
+
+    /** Totales de los ingresos. */
+    public synchronized Acumulado getIngresos() {
+        return ingresos.copia();
+    }
+
+    /** Totales de las retiradas. */
+    public synchronized Acumulado getRetiradas() {
+        return retiradas.copia();
+    }
+
+    /** Suma de todos los ingresos. */
+    public synchronized double getTotalIngresos() {
+        return ingresos.getTotal();
+    }
+
+    /** Suma de todas las retiradas. */
+    public synchronized double getTotalRetiradas() {
+        return retiradas.getTotal();
+    }
+
+    /** Suma de todos los ingresos, en céntimos. */
+    public synchronized long getTotalIngresosCentimos() {
+        return ingresos.totalCentimos;
+    }
+
+    /** Suma de todas las retiradas, en céntimos. */
+    public synchronized long getTotalRetiradasCentimos() {
+        return retiradas.totalCentimos;
+    }
+
+    /** Número total de movimientos. */
+    public synchronized long getNumMovimientos() {
+        return ingresos.numero + retiradas.numero;
+    }
+
+    /** Resumen de un día (vacío si ese día no hubo movimientos). */
+    public synchronized Resumen getResumenDia(LocalDate dia) {
+        cargarResumenes();
+        Resumen r = porDia.get(claveDia(dia));
+        return r != null ? r.copia() : new Resumen();
+    }
+
+    /** Resumen de un mes (vacío si ese mes no hubo movimientos). */
+    public synchronized Resumen getResumenMes(YearMonth mes) {
+        cargarResumenes();
+        Resumen r = porMes.get(mes.getYear() * 100 + mes.getMonthValue());
+        return r != null ? r.copia() : new Resumen();
+    }
+
+    /** Resúmenes de todos los días con movimientos, ordenados por fecha. */
+    public synchronized SortedMap<LocalDate, Resumen> getResumenesPorDia() {
+        cargarResumenes();
+        SortedMap<LocalDate, Resumen> copia = new TreeMap<>();
+        for (Map.Entry<Integer, Resumen> e : porDia.entrySet()) {
+            int k = e.getKey();
+            copia.put(LocalDate.of(k / 10000, k / 100 % 100, k % 100), e.getValue().copia());
+        }
+        return Collections.unmodifiableSortedMap(copia);
+    }
+
+    /** Resúmenes de todos los meses con movimientos, ordenados por fecha. */
+    public synchronized SortedMap<YearMonth, Resumen> getResumenesPorMes() {
+        cargarResumenes();
+        SortedMap<YearMonth, Resumen> copia = new TreeMap<>();
+        for (Map.Entry<Integer, Resumen> e : porMes.entrySet()) {
+            int k = e.getKey();
+            copia.put(YearMonth.of(k / 100, k % 100), e.getValue().copia());
+        }
+        return Collections.unmodifiableSortedMap(copia);
+    }
+
+    /**
+     * Escribe las estadísticas en binario (ver {@link SnapshotBinario}): los totales de ingresos
+     * y retiradas y después el número de días y de meses con sus resúmenes.
+     */
+    synchronized void escribir(DataOutput out) throws IOException {
+        cargarResumenes();
+        ingresos.escribir(out);
+        retiradas.escribir(out);
+        escribirResumenes(porDia, out);
+        escribirResumenes(porMes, out);
+    }
+
+    /** Lee unas estadísticas escritas con {@link #escribir}. */
+    static EstadisticasCuenta leer(DataInput in) throws IOException {
+        EstadisticasCuenta e = leerTotales(in);
+        e.leerResumenes(in);
+        return e;
+    }
+
+    /**
+     * Lee solo los totales de unas estadísticas escritas con {@link #escribir}; después hay que
+     * leer los resúmenes ({@link #leerResumenes}) o indicar dónde están ({@link #resumenesEnDisco}).
+     */
+    static EstadisticasCuenta leerTotales(DataInput in) throws IOException {
+        EstadisticasCuenta e = new EstadisticasCuenta();
+        e.ingresos.leer(in);
+        e.retiradas.leer(in);
+        return e;
+    }
+
+    /** Lee los resúmenes por día y por mes, que en {@link #escribir} van detrás de los totales. */
+    void leerResumenes(DataInput in) throws IOException {
+        leerResumenes(porDia, in);
+        leerResumenes(porMes, in);
+    }
+
+    /**
+     * Los resúmenes ocupan {@code tamano} bytes del canal a partir de {@code posicion}: se leerán
+     * la primera vez que hagan falta. El canal tiene que seguir abierto hasta entonces (es el del
+     * snapshot, que mantiene abierto su {@link HistorialPerezoso}).
+     */
+    void resumenesEnDisco(FileChannel canal, long posicion, int tamano) {
+        canalResumenes = canal;
+        posicionResumenes = posicion;
+        tamanoResumenes = tamano;
+    }
+
+    // Lee del snapshot los resúmenes si aún no se han leído (con el monitor ya tomado)
+    private void cargarResumenes() {
+        if (canalResumenes == null) {
+            return;
+        }
+        try {
+            ByteBuffer datos = SnapshotBinario.leer(canalResumenes, posicionResumenes, tamanoResumenes);
+            leerResumenes(new DataInputStream(new ByteArrayInputStream(datos.array(), 0, tamanoResumenes)));
+        } catch (IOException e) {
+            porDia.clear();
+            porMes.clear();
+            throw new IllegalStateException("No se pudieron leer los resúmenes de las estadísticas: " + e.getMessage(), e);
+        }
+        canalResumenes = null;
+    }
+
+    // Sin los resúmenes se serializarían los mapas vacíos
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        cargarResumenes();
+        out.defaultWriteObject();
+    }
+
+    private static void escribirResumenes(TreeMap<Integer, Resumen> resumenes, DataOutput out) throws IOException {
+        out.writeInt(resumenes.size());
+        for (Map.Entry<Integer, Resumen> r : resumenes.entrySet()) {
+            out.writeInt(r.getKey());
+            r.getValue().ingresos.escribir(out);
+            r.getValue().retiradas.escribir(out);
+        }
+    }
+
+    private static void leerResumenes(TreeMap<Integer, Resumen> resumenes, DataInput in) throws IOException {
+        int n = in.readInt();
+        if (n < 0) {
+            throw new IOException("Número de resúmenes no válido: " + n);
+        }
+        for (int i = 0; i < n; i++) {
+            Resumen r = new Resumen();
+            int clave = in.readInt();
+            r.ingresos.leer(in);
+            r.retiradas.leer(in);
+            resumenes.put(clave, r);
+        }
+    }
+
+    private static int claveDia(LocalDate dia) {
+        return dia.getYear() * 10000 + dia.getMonthValue() * 100 + dia.getDayOfMonth();
+    }
+
+    /**
+     * Número de movimientos, total y cantidades mínima y máxima de un tipo.
+     */
+    public static class Acumulado implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        // Cantidades en céntimos
+        private long numero;
+        private long totalCentimos;
+        private long minimoCentimos;
+        private long maximoCentimos;
+
+        void sumar(long centimos) {
+            if (numero == 0 || centimos < minimoCentimos) minimoCentimos = centimos;
+            if (numero == 0 || centimos > maximoCentimos) maximoCentimos = centimos;
+            numero++;
+            totalCentimos += centimos;
+        }
+
+        void escribir(DataOutput out) throws IOException {
+            out.writeLong(numero);
+            out.writeLong(totalCentimos);
+            out.writeLong(minimoCentimos);
+            out.writeLong(maximoCentimos);
+        }
+
+        void leer(DataInput in) throws IOException {
+            numero = in.readLong();
+            totalCentimos = in.readLong();
+            minimoCentimos = in.readLong();
+            maximoCentimos = in.readLong();
+        }
+
+        Acumulado copia() {
+            Acumulado c = new Acumulado();
+            c.copiarDe(this);
+            return c;
+        }
+
+        void copiarDe(Acumulado otro) {
+            numero = otro.numero;
+            totalCentimos = otro.totalCentimos;
+            minimoCentimos = otro.minimoCentimos;
+            maximoCentimos = otro.maximoCentimos;
+        }
+
+        /** Número de movimientos. */
+        public long getNumero() {
+            return numero;
+        }
+
+        /** Suma de las cantidades. */
+        public double getTotal() {
+            return totalCentimos / 100.0;
+        }
+
+        /** Suma de las cantidades, en céntimos. */
+        public long getTotalCentimos() {
+            return totalCentimos;
+        }
+
+        /** Cantidad más pequeña (0 si no hay movimientos). */
+        public double getMinimo() {
+            return minimoCentimos / 100.0;
+        }
+
+        /** Cantidad más grande (0 si no hay movimientos). */
+        public double getMaximo() {
+            return maximoCentimos / 100.0;
+        }
+
+        /** Cantidad media (0 si no hay movimientos). */
+        public double getMedia() {
+            return numero == 0 ? 0 : totalCentimos / 100.0 / numero;
+        }
+    }
+
+    /**
+     * Ingresos y retiradas de un periodo (un día o un mes).
+     */
+    public static class Resumen implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private Acumulado ingresos = new Acumulado();
+        private Acumulado retiradas = new Acumulado();
+
+        void sumar(boolean esRetirada, long cantidad) {
+            (esRetirada ? retiradas : ingresos).sumar(cantidad);
+        }
+
+        Resumen copia() {
+            Resumen c = new Resumen();
+            c.ingresos = ingresos.copia();
+            c.retiradas = retiradas.copia();
+            return c;
+        }
+
+        /** Ingresos del periodo. */
+        public Acumulado getIngresos() {
+            return ingresos;
+        }
+
+        /** Retiradas del periodo. */
+        public Acumulado getRetiradas() {
+            return retiradas;
+        }
+
+        /** Diferencia entre ingresos y retiradas del periodo. */
+        public double getNeto() {
+            return (ingresos.totalCentimos - retiradas.totalCentimos) / 100.0;
+        }
+    }
+}
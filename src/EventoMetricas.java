@@ -0,0 +1,51 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Evento JFR con el estado de una {@link Metricas.Medida}. Es periódico: lo emite
+ * {@link Metricas} una vez por medida cada segundo mientras haya una grabación activa, así que
+ * las operaciones medidas no pagan nada por él.
+ */
+@Name("cuenta.Metricas")
+@Label("Métricas de la cuenta")
+@Category("Cuenta")
+@Description("Llamadas, latencias y bytes acumulados de una operación medida")
+@Period("1 s")
+@StackTrace(false)
+class EventoMetricas extends jdk.jfr.Event {
+    @Label("Medida")
+    String medida;
+
+    @Label("Llamadas")
+    long llamadas;
+
+    @Label("Media")
+    @Timespan(Timespan.NANOSECONDS)
+    long media;
+
+    @Label("p50")
+    @Timespan(Timespan.NANOSECONDS)
+    long p50;
+
+    @Label("p99")
+    @Timespan(Timespan.NANOSECONDS)
+    long p99;
+
+    @Label("Máximo")
+    @Timespan(Timespan.NANOSECONDS)
+    long maximo;
+
+    @Label("Bytes escritos")
+    @DataAmount
+    long bytesEscritos;
+
+    @Label("Bytes reservados en el heap")
+    @DataAmount
+    long bytesAsignados;
+}
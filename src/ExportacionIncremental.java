@@ -0,0 +1,321 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Exportación incremental: solo se escriben los movimientos nuevos desde la exportación anterior.
+ *
+ * Junto a cada archivo exportado se guarda una marca ({@code <archivo>.marca}) con el número de
+ * movimientos que contiene, dónde empieza el pie y el último movimiento exportado. En la
+ * siguiente exportación, si el archivo no ha cambiado y el historial sigue empezando por lo ya
+ * exportado, se sobrescribe el pie con los movimientos nuevos y un pie actualizado, y se reescribe
+ * en su sitio la parte de la cabecera que cambia (saldo, número de movimientos, fecha). Así el
+ * coste depende de lo añadido y no del tamaño del historial.
+ *
+ * La cabecera solo se puede reescribir en su sitio si ocupa lo mismo que la anterior, y el saldo
+ * cambia de longitud con frecuencia (los importes se escriben sin ceros decimales a la derecha).
+ * Por eso en estos archivos las líneas de los metadatos que llevan cifras (fecha, saldo, número de
+ * movimientos) se rellenan con espacios al final hasta {@link #ANCHO_LINEA} caracteres, lo que
+ * cabe con cualquier saldo o número de movimientos: al final de la línea el espacio no cambia el
+ * documento en XML ni en JSON, y en CSV está en las filas de metadatos, que la importación no lee.
+ * Aparte de esos espacios, el contenido es el mismo que el de {@link ExportarCuenta}. Si la
+ * cabecera aun así cambia de longitud (otro titular, cifras que no son ASCII por el locale) o la
+ * marca falta o no coincide, se vuelve a escribir el archivo entero.
+ */
+public class ExportacionIncremental {
+    private static final int MAGIA = 0x434D524B; // "CMRK"
+    // Las versiones anteriores escribían la cabecera de otra forma: sus archivos se reescriben enteros
+    private static final int VERSION = 3;
+    /** Ancho al que se rellenan las líneas de los metadatos con cifras. */
+    static final int ANCHO_LINEA = 56;
+    private static final byte[] SALTO_LINEA = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    private static final Metricas.Medida MEDIDA_EXPORTAR = Metricas.medida("exportar.incremental");
+
+    /** Exporta la cuenta a CSV, XML y JSON de forma incremental. */
+    public static void exportarTodo(Cuenta cuenta, Path csv, Path xml, Path json) throws IOException {
+        exportar(cuenta,
+                new FormatoExportacion[] {FormatoExportacion.CSV, FormatoExportacion.XML, FormatoExportacion.JSON},
+                new Path[] {csv, xml, json});
+    }
+
+    /**
+     * Actualiza cada archivo (formatos[i] en destinos[i]) con los movimientos añadidos desde la
+     * última exportación, o lo escribe entero si no se puede continuar.
+     */
+    public static void exportar(Cuenta cuenta, FormatoExportacion[] formatos, Path[] destinos) throws IOException {
+        if (formatos.length != destinos.length) {
+            throw new IllegalArgumentException("Debe haber un destino por cada formato.");
+        }
+        List<Movimiento> movimientos = cuenta.getMovimientos();
+        int total = movimientos.size();
+        String fechaHoy = ExportarCuenta.fechaHoy();
+        long inicio = MEDIDA_EXPORTAR.iniciar();
+        long asignados = Metricas.asignados();
+        long escritos = 0;
+
+        FileChannel[] canales = new FileChannel[formatos.length];
+        byte[][] metadatos = new byte[formatos.length][];
+        Marca[] marcas = new Marca[formatos.length];
+        int[] desde = new int[formatos.length];
+        // Posición desde la que se reescribe cada archivo (los metadatos del principio se reescriben siempre)
+        long[] reescritoDesde = new long[formatos.length];
+        try {
+            for (int f = 0; f < formatos.length; f++) {
+                FormatoExportacion formato = formatos[f];
+                metadatos[f] = anchoFijo(bytes(ExportacionParalela.formatear(
+                        w -> formato.metadatos(cuenta, fechaHoy, w), 1024)));
+                Marca anterior = leerMarca(archivoMarca(destinos[f]));
+                // La marca se borra antes de tocar el archivo: si algo falla a medias, la próxima vez se reescribe entero
+                Files.deleteIfExists(archivoMarca(destinos[f]));
+                canales[f] = FileChannel.open(destinos[f], StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+                if (anterior != null && anterior.permiteContinuar(formato, canales[f].size(), movimientos,
+                        metadatos[f].length)) {
+                    marcas[f] = anterior;
+                    desde[f] = anterior.exportados;
+                    canales[f].position(anterior.inicioPie);
+                    reescritoDesde[f] = anterior.inicioPie;
+                } else {
+                    marcas[f] = new Marca();
+                    marcas[f].formato = formato;
+                    marcas[f].tamMetadatos = metadatos[f].length;
+                    desde[f] = 0;
+                    canales[f].truncate(0);
+                    ExportacionParalela.escribir(canales[f], ByteBuffer.wrap(metadatos[f]));
+                    ExportacionParalela.escribir(canales[f],
+                            ExportacionParalela.formatear(formato::inicioMovimientos, 1024));
+                }
+            }
+
+            // Los formatos que continúan desde el mismo movimiento se formatean a la vez
+            boolean[] hecho = new boolean[formatos.length];
+            for (int f = 0; f < formatos.length; f++) {
+                if (hecho[f]) continue;
+                int[] grupo = new int[formatos.length];
+                int n = 0;
+                for (int g = f; g < formatos.length; g++) {
+                    if (!hecho[g] && desde[g] == desde[f]) {
+                        grupo[n++] = g;
+                        hecho[g] = true;
+                    }
+                }
+                FormatoExportacion[] formatosGrupo = new FormatoExportacion[n];
+                FileChannel[] canalesGrupo = new FileChannel[n];
+                for (int k = 0; k < n; k++) {
+                    formatosGrupo[k] = formatos[grupo[k]];
+                    canalesGrupo[k] = canales[grupo[k]];
+                }
+                ExportacionParalela.escribirMovimientos(movimientos, formatosGrupo, canalesGrupo, desde[f], total);
+            }
+
+            EstadisticasCuenta estadisticas = cuenta.getEstadisticas();
+            long ingresos = estadisticas.getTotalIngresosCentimos();
+            long retiradas = estadisticas.getTotalRetiradasCentimos();
+            for (int f = 0; f < formatos.length; f++) {
+                FormatoExportacion formato = formatos[f];
+                FileChannel canal = canales[f];
+                Marca marca = marcas[f];
+                marca.inicioPie = canal.position();
+                ExportacionParalela.escribir(canal,
+                        ExportacionParalela.formatear(w -> formato.pie(cuenta, total, ingresos, retiradas, w), 1024));
+                canal.truncate(canal.position());
+                escribirEn(canal, ByteBuffer.wrap(metadatos[f]), 0);
+                canal.force(false);
+
+                marca.exportados = total;
+                marca.tamArchivo = canal.size();
+                long escritosFormato = marca.tamArchivo - reescritoDesde[f]
+                        + (reescritoDesde[f] > 0 ? marca.tamMetadatos : 0);
+                ExportarCuenta.anotarExportado(formato, escritosFormato);
+                escritos += escritosFormato;
+                marca.huella = total > 0 ? Huella.de(movimientos.get(total - 1)) : null;
+                escribirMarca(archivoMarca(destinos[f]), marca);
+            }
+        } finally {
+            cerrar(canales);
+        }
+        MEDIDA_EXPORTAR.registrar(inicio, asignados, escritos);
+    }
+
+    private static void escribirEn(FileChannel canal, ByteBuffer datos, long posicion) throws IOException {
+        while (datos.hasRemaining()) {
+            posicion += canal.write(datos, posicion);
+        }
+    }
+
+    private static Path archivoMarca(Path destino) {
+        return destino.resolveSibling(destino.getFileName() + ".marca");
+    }
+
+    // Rellena con espacios hasta ANCHO_LINEA las líneas que llevan alguna cifra, para que la
+    // longitud de la cabecera no dependa del saldo ni del número de movimientos
+    private static byte[] anchoFijo(byte[] metadatos) {
+        ByteArrayOutputStream salida = new ByteArrayOutputStream(metadatos.length + 4 * ANCHO_LINEA);
+        int inicio = 0;
+        while (inicio < metadatos.length) {
+            int fin = finDeLinea(metadatos, inicio);
+            boolean cifras = false;
+            for (int i = inicio; i < fin && !cifras; i++) {
+                cifras = metadatos[i] >= '0' && metadatos[i] <= '9';
+            }
+            salida.write(metadatos, inicio, fin - inicio);
+            for (int i = fin - inicio; cifras && i < ANCHO_LINEA; i++) {
+                salida.write(' ');
+            }
+            int salto = Math.min(SALTO_LINEA.length, metadatos.length - fin);
+            salida.write(metadatos, fin, salto);
+            inicio = fin + salto;
+        }
+        return salida.toByteArray();
+    }
+
+    // Posición del siguiente salto de línea desde inicio (o el final si no hay más)
+    private static int finDeLinea(byte[] datos, int inicio) {
+        for (int i = inicio; i <= datos.length - SALTO_LINEA.length; i++) {
+            if (Arrays.equals(datos, i, i + SALTO_LINEA.length, SALTO_LINEA, 0, SALTO_LINEA.length)) {
+                return i;
+            }
+        }
+        return datos.length;
+    }
+
+    private static byte[] bytes(ByteBuffer datos) {
+        byte[] b = new byte[datos.remaining()];
+        datos.get(b);
+        return b;
+    }
+
+    private static Marca leerMarca(Path archivo) throws IOException {
+        try (InputStream in = Files.newInputStream(archivo);
+             DataInputStream datos = new DataInputStream(in)) {
+            if (datos.readInt() != MAGIA || datos.readInt() != VERSION) {
+                return null;
+            }
+            Marca m = new Marca();
+            m.formato = FormatoExportacion.valueOf(datos.readUTF());
+            m.locale = datos.readUTF();
+            m.saltoLinea = datos.readUTF();
+            m.exportados = datos.readInt();
+            m.tamMetadatos = datos.readInt();
+            m.inicioPie = datos.readLong();
+            m.tamArchivo = datos.readLong();
+            if (datos.readBoolean()) {
+                m.huella = new Huella(datos.readLong(), datos.readLong(), datos.readByte());
+            }
+            return m;
+        } catch (IOException | IllegalArgumentException e) {
+            // Sin marca, o dañada o de otra versión: se exporta de nuevo el archivo entero
+            return null;
+        }
+    }
+
+    private static void escribirMarca(Path archivo, Marca m) throws IOException {
+        Path temporal = archivo.resolveSibling(archivo.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temporal);
+             DataOutputStream datos = new DataOutputStream(out)) {
+            datos.writeInt(MAGIA);
+            datos.writeInt(VERSION);
+            datos.writeUTF(m.formato.name());
+            datos.writeUTF(m.locale);
+            datos.writeUTF(m.saltoLinea);
+            datos.writeInt(m.exportados);
+            datos.writeInt(m.tamMetadatos);
+            datos.writeLong(m.inicioPie);
+            datos.writeLong(m.tamArchivo);
+            datos.writeBoolean(m.huella != null);
+            if (m.huella != null) {
+                datos.writeLong(m.huella.instante);
+                datos.writeLong(m.huella.centimos);
+                datos.writeByte(m.huella.tipo);
+            }
+        }
+        Files.move(temporal, archivo, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Cierra todos los canales abiertos; si alguno falla se relanza el primer error
+    private static void cerrar(FileChannel[] canales) throws IOException {
+        IOException error = null;
+        for (FileChannel c : canales) {
+            if (c == null) continue;
+            try {
+                c.close();
+            } catch (IOException e) {
+                if (error == null) error = e;
+            }
+        }
+        if (error != null) throw error;
+    }
+
+    // Estado de un archivo exportado tras la última exportación
+    private static final class Marca {
+        FormatoExportacion formato;
+        // Los importes y saltos de línea dependen del locale y del sistema: si cambian, se reescribe
+        String locale = Locale.getDefault(Locale.Category.FORMAT).toLanguageTag();
+        String saltoLinea = System.lineSeparator();
+        int exportados;
+        // Bytes de los metadatos
+        int tamMetadatos;
+        long inicioPie;
+        long tamArchivo;
+        // Último movimiento exportado, para comprobar que el historial no se ha sustituido
+        Huella huella;
+
+        boolean permiteContinuar(FormatoExportacion formato, long tamArchivoActual, List<Movimiento> movimientos,
+                                 int tamMetadatosNuevos) {
+            if (this.formato != formato || tamArchivo != tamArchivoActual
+                    || !locale.equals(Locale.getDefault(Locale.Category.FORMAT).toLanguageTag())
+                    || !saltoLinea.equals(System.lineSeparator())) {
+                return false;
+            }
+            if (exportados > movimientos.size() || tamMetadatosNuevos != tamMetadatos) {
+                return false;
+            }
+            if (exportados == 0) {
+                return huella == null;
+            }
+            return huella != null && huella.equals(Huella.de(movimientos.get(exportados - 1)));
+        }
+    }
+
+    private static final class Huella {
+        final long instante;
+        final long centimos;
+        final byte tipo;
+
+        Huella(long instante, long centimos, byte tipo) {
+            this.instante = instante;
+            this.centimos = centimos;
+            this.tipo = tipo;
+        }
+
+        static Huella de(Movimiento m) {
+            return new Huella(m.getInstante(), m.getCentimos(), m.getTipoMovimiento().getCodigo());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Huella)) return false;
+            Huella h = (Huella) o;
+            return instante == h.instante && centimos == h.centimos && tipo == h.tipo;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(instante) * 31 + Long.hashCode(centimos) * 7 + tipo;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Exportación de una cuenta a varios formatos a la vez, repartiendo el trabajo entre núcleos.
+ *
+ * El historial se divide en bloques de movimientos y cada bloque de cada formato se formatea como
+ * una tarea fork/join independiente (en bytes UTF-8). El hilo que llama escribe los bloques en
+ * orden en el archivo de cada formato, así que el resultado es idéntico al de
+ * {@link ExportarCuenta#exportar}. Solo se adelantan unos pocos bloques respecto al que se está
+ * escribiendo, para no tener el historial entero formateado en memoria.
+ *
+ * Con historiales pequeños (o listas sin acceso por posición) se usa directamente la exportación
+ * secuencial, que en ese caso es más rápida.
+ */
+public class ExportacionParalela {
+    private static final int MOVIMIENTOS_POR_BLOQUE = 16 * 1024;
+    // Por debajo de este tamaño repartir el trabajo no compensa
+    private static final int UMBRAL_PARALELO = 4 * MOVIMIENTOS_POR_BLOQUE;
+    // Tamaño inicial del buffer de un bloque: cubre un movimiento en XML o JSON sin tener que ampliarlo
+    private static final int BYTES_POR_MOVIMIENTO = 160;
+    private static final Metricas.Medida MEDIDA_EXPORTAR = Metricas.medida("exportar.paralela");
+
+    /** Exporta la cuenta a CSV, XML y JSON en paralelo. */
+    public static void exportarTodo(Cuenta cuenta, Path csv, Path xml, Path json) throws IOException {
+        exportar(cuenta,
+                new FormatoExportacion[] {FormatoExportacion.CSV, FormatoExportacion.XML, FormatoExportacion.JSON},
+                new Path[] {csv, xml, json});
+    }
+
+    /**
+     * Escribe la cuenta en cada formato indicado (formatos[i] en destinos[i]), con el mismo
+     * resultado que {@link ExportarCuenta#exportar}. Se exportan los movimientos que tiene la
+     * cuenta al empezar.
+     */
+    public static void exportar(Cuenta cuenta, FormatoExportacion[] formatos, Path[] destinos) throws IOException {
+        if (formatos.length != destinos.length) {
+            throw new IllegalArgumentException("Debe haber un destino por cada formato.");
+        }
+        List<Movimiento> movimientos = cuenta.getMovimientos();
+        int total = movimientos.size();
+        if (total < UMBRAL_PARALELO || !(movimientos instanceof RandomAccess)) {
+            ExportarCuenta.exportar(cuenta, formatos, destinos);
+            return;
+        }
+
+        long inicio = MEDIDA_EXPORTAR.iniciar();
+        long asignados = Metricas.asignados();
+        long escritos = 0;
+        String fechaHoy = ExportarCuenta.fechaHoy();
+        FileChannel[] canales = new FileChannel[formatos.length];
+        try {
+            for (int f = 0; f < formatos.length; f++) {
+                canales[f] = FileChannel.open(destinos[f], StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                FormatoExportacion formato = formatos[f];
+                escribir(canales[f], formatear(w -> formato.cabecera(cuenta, fechaHoy, w), 1024));
+            }
+
+            escribirMovimientos(movimientos, formatos, canales, 0, total);
+
+            // Los totales salen de las estadísticas de la cuenta, igual que en la exportación secuencial
+            EstadisticasCuenta estadisticas = cuenta.getEstadisticas();
+            long ingresos = estadisticas.getTotalIngresosCentimos();
+            long retiradas = estadisticas.getTotalRetiradasCentimos();
+            for (int f = 0; f < formatos.length; f++) {
+                FormatoExportacion formato = formatos[f];
+                escribir(canales[f], formatear(w -> formato.pie(cuenta, total, ingresos, retiradas, w), 1024));
+                ExportarCuenta.anotarExportado(formato, canales[f].position());
+                escritos += canales[f].position();
+            }
+        } finally {
+            cerrar(canales);
+        }
+        MEDIDA_EXPORTAR.registrar(inicio, asignados, escritos);
+    }
+
+    /**
+     * Escribe los movimientos [desde, hasta) en cada formato (formatos[i] en canales[i], a partir
+     * de la posición actual del canal). Si son pocos se formatean en el hilo que llama.
+     */
+    static void escribirMovimientos(List<Movimiento> movimientos, FormatoExportacion[] formatos,
+                                    FileChannel[] canales, int desde, int hasta) throws IOException {
+        if (hasta - desde < UMBRAL_PARALELO || !(movimientos instanceof RandomAccess)) {
+            for (int f = 0; f < formatos.length; f++) {
+                FormatoExportacion formato = formatos[f];
+                escribir(canales[f], formatear(w -> {
+                    int i = desde;
+                    for (Movimiento m : movimientos.subList(desde, hasta)) {
+                        formato.movimiento(i++, m, w);
+                    }
+                }, (hasta - desde) * BYTES_POR_MOVIMIENTO));
+            }
+            return;
+        }
+
+        int bloques = (hasta - desde + MOVIMIENTOS_POR_BLOQUE - 1) / MOVIMIENTOS_POR_BLOQUE;
+        int adelanto = Math.max(2, 2 * ForkJoinPool.getCommonPoolParallelism());
+        ArrayDeque<BloqueFormateado[]> pendientes = new ArrayDeque<>();
+        try {
+            int lanzados = 0;
+            for (int b = 0; b < bloques; b++) {
+                while (lanzados < bloques && lanzados < b + adelanto) {
+                    int inicio = desde + lanzados++ * MOVIMIENTOS_POR_BLOQUE;
+                    pendientes.add(lanzarBloque(movimientos, formatos, inicio, Math.min(hasta, inicio + MOVIMIENTOS_POR_BLOQUE)));
+                }
+                BloqueFormateado[] bloque = pendientes.poll();
+                for (int f = 0; f < formatos.length; f++) {
+                    escribir(canales[f], unir(bloque[f]));
+                }
+            }
+        } finally {
+            for (BloqueFormateado[] bloque : pendientes) {
+                for (BloqueFormateado tarea : bloque) tarea.cancel(true);
+            }
+        }
+    }
+
+    private static BloqueFormateado[] lanzarBloque(List<Movimiento> movimientos, FormatoExportacion[] formatos,
+                                                   int desde, int hasta) {
+        BloqueFormateado[] tareas = new BloqueFormateado[formatos.length];
+        for (int f = 0; f < formatos.length; f++) {
+            tareas[f] = new BloqueFormateado(movimientos, formatos[f], desde, hasta);
+            tareas[f].fork();
+        }
+        return tareas;
+    }
+
+    // Espera a que termine la tarea y devuelve su resultado, con el IOException original si falla
+    private static ByteBuffer unir(BloqueFormateado tarea) throws IOException {
+        try {
+            return tarea.join();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    static void escribir(FileChannel canal, ByteBuffer datos) throws IOException {
+        while (datos.hasRemaining()) {
+            canal.write(datos);
+        }
+    }
+
+    // Cierra todos los canales abiertos; si alguno falla se relanza el primer error
+    private static void cerrar(FileChannel[] canales) throws IOException {
+        IOException error = null;
+        for (FileChannel c : canales) {
+            if (c == null) continue;
+            try {
+                c.close();
+            } catch (IOException e) {
+                if (error == null) error = e;
+            }
+        }
+        if (error != null) throw error;
+    }
+
+    /** Parte de una exportación que se escribe con un {@link EscritorExportacion}. */
+    interface Parte {
+        void escribir(EscritorExportacion w) throws IOException;
+    }
+
+    // Formatea una parte en memoria y devuelve sus bytes en UTF-8
+    static ByteBuffer formatear(Parte parte, int tamanoEstimado) throws IOException {
+        Bytes bytes = new Bytes(tamanoEstimado);
+        try (EscritorExportacion w = new EscritorExportacion(new OutputStreamWriter(bytes, StandardCharsets.UTF_8))) {
+            parte.escribir(w);
+        }
+        return bytes.comoBuffer();
+    }
+
+    // Tarea fork/join que formatea los movimientos [desde, hasta) en un formato
+    private static final class BloqueFormateado extends RecursiveTask<ByteBuffer> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient List<Movimiento> movimientos;
+        private final FormatoExportacion formato;
+        private final int desde;
+        private final int hasta;
+
+        BloqueFormateado(List<Movimiento> movimientos, FormatoExportacion formato, int desde, int hasta) {
+            this.movimientos = movimientos;
+            this.formato = formato;
+            this.desde = desde;
+            this.hasta = hasta;
+        }
+
+        @Override
+        protected ByteBuffer compute() {
+            try {
+                return formatear(w -> {
+                    for (int i = desde; i < hasta; i++) {
+                        formato.movimiento(i, movimientos.get(i), w);
+                    }
+                }, (hasta - desde) * BYTES_POR_MOVIMIENTO);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // ByteArrayOutputStream cuyo contenido se puede escribir sin copiarlo antes
+    private static final class Bytes extends ByteArrayOutputStream {
+        Bytes(int tamano) {
+            super(tamano);
+        }
+
+        ByteBuffer comoBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
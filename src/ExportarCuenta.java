@@ -1,235 +1,158 @@
 // Exporta un objeto Cuenta a CSV, XML y JSON.
 
-import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.text.DecimalFormat;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
+import java.util.Locale;
 
 public class ExportarCuenta {
+    private static final Metricas.Medida MEDIDA_EXPORTAR = Metricas.medida("exportar.secuencial");
 
     // Exporta la cuenta a CSV (separador ';'), incluye movimientos y resumen.
     public static void exportarCSV(Cuenta cuenta, Path path) throws IOException {
-        DecimalFormat df = new DecimalFormat("#.##");
-
-        //listado de movimientos (ingresos y retiradas
-        List<Movimiento> movimientos = cuenta.getMovimientos();
-        double totalIngresos = 0;
-        double totalRetiradas = 0;
-        for (Movimiento m : movimientos) {
-            if ("Ingreso".equalsIgnoreCase(m.getTipo())) totalIngresos += m.getCantidad();
-            else if ("Retirada".equalsIgnoreCase(m.getTipo())) totalRetiradas += m.getCantidad();
-        }
-
-        try (BufferedWriter w = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
-            // Cabecera con información de la cuenta
-            w.write("Cliente;" + escapeCsv(cuenta.getCliente().getNombre()));
-            w.newLine();
-            w.write("Saldo;" + df.format(cuenta.getSaldo()));
-            w.newLine();
-            w.write("TotalMovimientos;" + movimientos.size());
-            w.newLine();
-            w.newLine();
-
-            // Cabecera de movimientos
-            w.write("Index;Tipo;Cantidad;Fecha");
-            w.newLine();
-
-            for (int i = 0; i < movimientos.size(); i++) {
-                Movimiento m = movimientos.get(i);
-                w.write(String.format("%d;%s;%s;%s",
-                        i + 1,
-                        escapeCsv(m.getTipo()),
-                        df.format(m.getCantidad()),
-                        escapeCsv(m.getFecha())
-                ));
-                w.newLine();
-            }
-
-            // Resumen como comentario al final
-            w.newLine();
-            w.write(String.format("# Resumen;Ingresos=%s;Retiradas=%s",
-                    df.format(totalIngresos), df.format(totalRetiradas)));
-            w.newLine();
-        }
+        exportar(cuenta, new FormatoExportacion[] {FormatoExportacion.CSV}, new Path[] {path});
     }
 
     // Exporta la cuenta a XML (estructura clara con metadata y lista de movimientos).
     public static void exportarXML(Cuenta cuenta, Path path) throws IOException {
-        DecimalFormat df = new DecimalFormat("#.##");
-        List<Movimiento> movimientos = cuenta.getMovimientos();
+        exportar(cuenta, new FormatoExportacion[] {FormatoExportacion.XML}, new Path[] {path});
+    }
+
+    // Exporta la cuenta a JSON (con formato legible y estadísticas).
+    public static void exportarJSON(Cuenta cuenta, Path path) throws IOException {
+        exportar(cuenta, new FormatoExportacion[] {FormatoExportacion.JSON}, new Path[] {path});
+    }
+
+    // Exporta la cuenta a los tres formatos recorriendo el historial una sola vez.
+    public static void exportarTodo(Cuenta cuenta, Path csv, Path xml, Path json) throws IOException {
+        exportar(cuenta,
+                new FormatoExportacion[] {FormatoExportacion.CSV, FormatoExportacion.XML, FormatoExportacion.JSON},
+                new Path[] {csv, xml, json});
+    }
 
-        double totalIngresos = 0;
-        double totalRetiradas = 0;
-        for (Movimiento m : movimientos) {
-            if ("Ingreso".equalsIgnoreCase(m.getTipo())) totalIngresos += m.getCantidad();
-            else if ("Retirada".equalsIgnoreCase(m.getTipo())) totalRetiradas += m.getCantidad();
+    /**
+     * Escribe la cuenta en cada formato indicado (formatos[i] en destinos[i]) en una sola pasada
+     * por los movimientos. Si la cuenta no ha cambiado desde una exportación anterior, el documento
+     * se copia de su caché (ver {@link CacheExportacion}) sin volver a formatearlo.
+     */
+    public static void exportar(Cuenta cuenta, FormatoExportacion[] formatos, Path[] destinos) throws IOException {
+        if (formatos.length != destinos.length) {
+            throw new IllegalArgumentException("Debe haber un destino por cada formato.");
         }
+        long inicio = MEDIDA_EXPORTAR.iniciar();
+        long asignados = Metricas.asignados();
 
-        DateTimeFormatter fechaFmt = DateTimeFormatter.ofPattern("dd/MM/yyyy");
-        String fechaHoy = LocalDate.now().format(fechaFmt);
-
-        try (BufferedWriter w = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
-            w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-            w.newLine();
-            w.write("<cuenta>");
-            w.newLine();
-
-            w.write("  <metadata>");
-            w.newLine();
-            w.write("    <fecha>" + escapeXml(fechaHoy) + "</fecha>");
-            w.newLine();
-            w.write("    <cliente>" + escapeXml(cuenta.getCliente().getNombre()) + "</cliente>");
-            w.newLine();
-            w.write("    <saldo>" + df.format(cuenta.getSaldo()) + "</saldo>");
-            w.newLine();
-            w.write("    <totalMovimientos>" + movimientos.size() + "</totalMovimientos>");
-            w.newLine();
-            w.write("  </metadata>");
-            w.newLine();
-
-            w.write("  <movimientos>");
-            w.newLine();
-            for (Movimiento m : movimientos) {
-                w.write(String.format("    <movimiento tipo=\"%s\">", escapeXml(m.getTipo())));
-                w.newLine();
-                w.write("      <cantidad>" + df.format(m.getCantidad()) + "</cantidad>");
-                w.newLine();
-                w.write("      <fecha>" + escapeXml(m.getFecha()) + "</fecha>");
-                w.newLine();
-                w.write("    </movimiento>");
-                w.newLine();
+        List<Movimiento> movimientos = cuenta.getMovimientos();
+        String fechaHoy = fechaHoy();
+        CacheExportacion cache = cuenta.getCache();
+        int esperados = movimientos.size();
+        String clave = CacheExportacion.claveDocumento(cuenta, esperados, fechaHoy);
+
+        // Los documentos que ya están en la caché se escriben tal cual; el resto se formatean
+        long escritos = 0;
+        boolean[] pendiente = new boolean[formatos.length];
+        int pendientes = 0;
+        for (int f = 0; f < formatos.length; f++) {
+            byte[] guardado = cache.documento(formatos[f], clave);
+            if (guardado != null) {
+                Files.write(destinos[f], guardado);
+                anotarExportado(formatos[f], guardado.length);
+                escritos += guardado.length;
+            } else {
+                pendiente[f] = true;
+                pendientes++;
             }
-            w.write("  </movimientos>");
-            w.newLine();
-
-            w.write("  <resumen>");
-            w.newLine();
-            w.write("    <ingresos>" + df.format(totalIngresos) + "</ingresos>");
-            w.newLine();
-            w.write("    <retiradas>" + df.format(totalRetiradas) + "</retiradas>");
-            w.newLine();
-            w.write("  </resumen>");
-            w.newLine();
-
-            w.write("</cuenta>");
-            w.newLine();
         }
+        if (pendientes > 0) {
+            FormatoExportacion[] restantes = new FormatoExportacion[pendientes];
+            Path[] destinosRestantes = new Path[pendientes];
+            for (int f = 0, r = 0; f < formatos.length; f++) {
+                if (pendiente[f]) {
+                    restantes[r] = formatos[f];
+                    destinosRestantes[r++] = destinos[f];
+                }
+            }
+            escritos += formatear(cuenta, movimientos, fechaHoy, restantes, destinosRestantes, cache, clave, esperados);
+        }
+        MEDIDA_EXPORTAR.registrar(inicio, asignados, escritos);
     }
 
-    // Exporta la cuenta a JSON (con formato legible y estadísticas).
-    public static void exportarJSON(Cuenta cuenta, Path path) throws IOException {
-        DecimalFormat df = new DecimalFormat("#.##");
-        List<Movimiento> movimientos = cuenta.getMovimientos();
+    // Escribe los formatos indicados recorriendo el historial una vez y guarda en la caché los que
+    // quepan; devuelve los bytes escritos
+    private static long formatear(Cuenta cuenta, List<Movimiento> movimientos, String fechaHoy,
+                                  FormatoExportacion[] formatos, Path[] destinos, CacheExportacion cache,
+                                  String clave, int esperados) throws IOException {
+        EscritorExportacion[] escritores = new EscritorExportacion[formatos.length];
+        CacheExportacion.Copia[] copias = new CacheExportacion.Copia[formatos.length];
+        int total = 0;
+        try {
+            for (int f = 0; f < formatos.length; f++) {
+                copias[f] = cache.copiar(Files.newOutputStream(destinos[f]), esperados);
+                escritores[f] = new EscritorExportacion(new OutputStreamWriter(copias[f], StandardCharsets.UTF_8));
+                formatos[f].cabecera(cuenta, fechaHoy, escritores[f]);
+            }
 
-        double totalIngresos = 0;
-        double totalRetiradas = 0;
-        for (Movimiento m : movimientos) {
-            if ("Ingreso".equalsIgnoreCase(m.getTipo())) totalIngresos += m.getCantidad();
-            else if ("Retirada".equalsIgnoreCase(m.getTipo())) totalRetiradas += m.getCantidad();
+            for (Movimiento m : movimientos) {
+                for (int f = 0; f < formatos.length; f++) {
+                    formatos[f].movimiento(total, m, escritores[f]);
+                }
+                total++;
+            }
+
+            // Los totales salen de las estadísticas de la cuenta, sin volver a recorrer el historial
+            EstadisticasCuenta estadisticas = cuenta.getEstadisticas();
+            for (int f = 0; f < formatos.length; f++) {
+                formatos[f].pie(cuenta, total, estadisticas.getTotalIngresosCentimos(),
+                        estadisticas.getTotalRetiradasCentimos(),
+                        escritores[f]);
+            }
+        } finally {
+            cerrar(escritores);
         }
 
-        DateTimeFormatter fechaFmt = DateTimeFormatter.ofPattern("dd/MM/yyyy");
-        String fechaHoy = LocalDate.now().format(fechaFmt);
-
-        try (BufferedWriter w = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
-            w.write("{");
-            w.newLine();
-            w.write("  \"cuenta\": {");
-            w.newLine();
-
-            // Metadata
-            w.write("    \"metadata\": {");
-            w.newLine();
-            w.write("      \"fecha\": \"" + escapeJson(fechaHoy) + "\",");
-            w.newLine();
-            w.write("      \"cliente\": \"" + escapeJson(cuenta.getCliente().getNombre()) + "\",");
-            w.newLine();
-            w.write("      \"saldo\": " + df.format(cuenta.getSaldo()) + ",");
-            w.newLine();
-            w.write("      \"totalMovimientos\": " + movimientos.size());
-            w.newLine();
-            w.write("    },");
-            w.newLine();
-
-            // Movimientos
-            w.write("    \"movimientos\": [");
-            w.newLine();
-            for (int i = 0; i < movimientos.size(); i++) {
-                Movimiento m = movimientos.get(i);
-                w.write("      {");
-                w.newLine();
-                w.write("        \"tipo\": \"" + escapeJson(m.getTipo()) + "\",");
-                w.newLine();
-                w.write("        \"cantidad\": " + df.format(m.getCantidad()) + ",");
-                w.newLine();
-                w.write("        \"fecha\": \"" + escapeJson(m.getFecha()) + "\"");
-                w.newLine();
-                w.write("      }" + (i < movimientos.size() - 1 ? "," : ""));
-                w.newLine();
+        long escritos = 0;
+        for (int f = 0; f < formatos.length; f++) {
+            long tam = Files.size(destinos[f]);
+            anotarExportado(formatos[f], tam);
+            escritos += tam;
+            // Si se han añadido movimientos mientras se exportaba, el documento ya no es el de la clave
+            byte[] contenido = copias[f].contenido();
+            if (contenido != null && total == esperados) {
+                cache.guardarDocumento(formatos[f], clave, contenido);
             }
-            w.write("    ],");
-            w.newLine();
-
-            // Estadísticas
-            w.write("    \"estadisticas\": {");
-            w.newLine();
-            w.write("      \"ingresosTotales\": " + df.format(totalIngresos) + ",");
-            w.newLine();
-            w.write("      \"retiradasTotales\": " + df.format(totalRetiradas) + ",");
-            w.newLine();
-            w.write("      \"saldo\": " + df.format(cuenta.getSaldo()));
-            w.newLine();
-            w.write("    }");
-            w.newLine();
-
-            w.write("  }");
-            w.newLine();
-            w.write("}");
-            w.newLine();
         }
+        return escritos;
     }
 
-    // Pequeñas utilidades de escape (CSV, XML, JSON)
-    private static String escapeCsv(String s) {
-        if (s == null) return "";
-        // Se reemplazan ';' por ',' para no romper CSV y quotes si existen
-        return s.replace(";", ",");
+    // Suma los bytes escritos en un formato al contador de ese formato (las exportaciones escriben
+    // todos los formatos en la misma pasada, así que el tiempo solo se mide para la llamada entera)
+    static void anotarExportado(FormatoExportacion formato, long bytes) {
+        if (Metricas.ACTIVAS) {
+            Metricas.contador("exportar.bytes." + formato.name().toLowerCase(Locale.ROOT)).add(bytes);
+        }
     }
 
-    private static String escapeXml(String s) {
-        if (s == null) return "";
-        return s.replace("&", "&amp;")
-                .replace("<", "&lt;")
-                .replace(">", "&gt;")
-                .replace("\"", "&quot;")
-                .replace("'", "&apos;");
+    // Fecha de la exportación tal como aparece en la cabecera
+    static String fechaHoy() {
+        return LocalDate.now().format(DateTimeFormatter.ofPattern("dd/MM/yyyy"));
     }
 
-    private static String escapeJson(String s) {
-        if (s == null) return "";
-        StringBuilder sb = new StringBuilder();
-        for (char c : s.toCharArray()) {
-            switch (c) {
-                case '"': sb.append("\\\""); break;
-                case '\\': sb.append("\\\\"); break;
-                case '\b': sb.append("\\b"); break;
-                case '\f': sb.append("\\f"); break;
-                case '\n': sb.append("\\n"); break;
-                case '\r': sb.append("\\r"); break;
-                case '\t': sb.append("\\t"); break;
-                default:
-                    if (c < 0x20) {
-                        sb.append(String.format("\\u%04x", (int) c));
-                    } else {
-                        sb.append(c);
-                    }
+    // Cierra todos los escritores abiertos; si alguno falla se relanza el primer error
+    private static void cerrar(EscritorExportacion[] escritores) throws IOException {
+        IOException error = null;
+        for (EscritorExportacion w : escritores) {
+            if (w == null) continue;
+            try {
+                w.close();
+            } catch (IOException e) {
+                if (error == null) error = e;
             }
         }
-        return sb.toString();
+        if (error != null) throw error;
     }
-}
\ No newline at end of file
+}
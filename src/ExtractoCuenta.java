@@ -0,0 +1,107 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Iterator;
+
+/**
+ * Extractos de una cuenta: los movimientos de un periodo (y, si se indica, de un tipo) en CSV, XML
+ * o JSON, con la misma estructura que las exportaciones de {@link ExportarCuenta}.
+ *
+ * Los movimientos se leen con el cursor de la cuenta ({@link Cuenta#recorrerMovimientos}), que los
+ * pide por páginas, y se escriben según se leen a través de un único buffer grande, así que la
+ * memoria no depende del número de filas. Se puede pedir una página del extracto (saltar los
+ * primeros y limitar cuántos se escriben). La cabecera lleva el número de movimientos del extracto
+ * y el saldo actual de la cuenta; el pie, los ingresos y retiradas del extracto.
+ */
+public class ExtractoCuenta {
+    private static final int TAM_BUFFER = 256 * 1024;
+    private static final Metricas.Medida MEDIDA_EXTRACTO = Metricas.medida("exportar.extracto");
+
+    /**
+     * Escribe en el archivo el extracto de los movimientos entre dos fechas (desde incluida, hasta
+     * excluida) y del tipo indicado; cualquiera de los filtros puede ser null. Devuelve el número
+     * de movimientos escritos.
+     */
+    public static int escribir(Cuenta cuenta, FormatoExportacion formato, LocalDateTime desde, LocalDateTime hasta,
+                               String tipo, Path destino) throws IOException {
+        return escribir(cuenta, formato, desde, hasta, tipo, 0, Integer.MAX_VALUE, destino);
+    }
+
+    /** Como el anterior, pero solo con los movimientos del número {@code saltar} al {@code saltar + limite}. */
+    public static int escribir(Cuenta cuenta, FormatoExportacion formato, LocalDateTime desde, LocalDateTime hasta,
+                               String tipo, int saltar, int limite, Path destino) throws IOException {
+        try (OutputStream salida = Files.newOutputStream(destino)) {
+            return escribir(cuenta, formato, desde, hasta, tipo, saltar, limite, salida);
+        }
+    }
+
+    /**
+     * Escribe el extracto en el flujo indicado, que no se cierra. Devuelve el número de
+     * movimientos escritos.
+     */
+    public static int escribir(Cuenta cuenta, FormatoExportacion formato, LocalDateTime desde, LocalDateTime hasta,
+                               String tipo, int saltar, int limite, OutputStream destino) throws IOException {
+        long inicio = MEDIDA_EXTRACTO.iniciar();
+        long asignados = Metricas.asignados();
+        saltar = Math.max(0, saltar);
+        int total = Math.max(0, Math.min(limite, cuenta.contarMovimientos(desde, hasta, tipo) - saltar));
+
+        Contador contador = new Contador(destino);
+        EscritorExportacion w = new EscritorExportacion(new OutputStreamWriter(
+                new BufferedOutputStream(contador, TAM_BUFFER), StandardCharsets.UTF_8));
+        formato.cabecera(cuenta, ExportarCuenta.fechaHoy(), total, w);
+
+        // Los totales se acumulan al escribir: solo cuentan los movimientos del extracto
+        long ingresos = 0;
+        long retiradas = 0;
+        int escritos = 0;
+        Iterator<Movimiento> movimientos = cuenta.recorrerMovimientos(desde, hasta, tipo, saltar);
+        while (escritos < total && movimientos.hasNext()) {
+            Movimiento m = movimientos.next();
+            formato.movimiento(escritos++, m, w);
+            if (m.getTipoMovimiento() == TipoMovimiento.RETIRADA) {
+                retiradas += m.getCentimos();
+            } else {
+                ingresos += m.getCentimos();
+            }
+        }
+        formato.pie(cuenta, escritos, ingresos, retiradas, w);
+        w.flush();
+
+        ExportarCuenta.anotarExportado(formato, contador.bytes);
+        MEDIDA_EXTRACTO.registrar(inicio, asignados, contador.bytes);
+        return escritos;
+    }
+
+    // Cuenta los bytes que pasan al destino, sin cerrarlo
+    private static final class Contador extends OutputStream {
+        private final OutputStream destino;
+        long bytes;
+
+        Contador(OutputStream destino) {
+            this.destino = destino;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            destino.write(b);
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            destino.write(b, off, len);
+            bytes += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            destino.flush();
+        }
+    }
+}
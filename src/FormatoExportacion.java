@@ -0,0 +1,180 @@
+import java.io.IOException;
+
+/**
+ * Formatos de exportación de una cuenta.
+ *
+ * Cada formato se escribe en tres partes: cabecera, un bloque por movimiento y pie con el resumen.
+ * Así la exportación puede recorrer el historial una sola vez, e incluso escribir varios
+ * formatos en el mismo recorrido (ver {@link ExportarCuenta#exportarTodo}).
+ */
+public enum FormatoExportacion {
+
+    // CSV (separador ';'), incluye movimientos y resumen.
+    CSV {
+        @Override
+        public void metadatos(Cuenta cuenta, String fechaHoy, int totalMovimientos, EscritorExportacion w) throws IOException {
+            // Cabecera con información de la cuenta
+            w.texto("Cliente;").csv(cuenta.getCliente().getNombre()).linea();
+            w.texto("Saldo;").importeCentimos(cuenta.getSaldoCentimos()).linea();
+            w.texto("TotalMovimientos;").entero(totalMovimientos).linea();
+            w.linea();
+        }
+
+        @Override
+        public void inicioMovimientos(EscritorExportacion w) throws IOException {
+            // Cabecera de movimientos
+            w.texto("Index;Tipo;Cantidad;Fecha").linea();
+        }
+
+        @Override
+        public void movimiento(int indice, Movimiento m, EscritorExportacion w) throws IOException {
+            w.entero(indice + 1).caracter(';')
+                    .csv(m.getTipo()).caracter(';')
+                    .importeCentimos(m.getCentimos()).caracter(';')
+                    .csv(m.getFecha()).linea();
+        }
+
+        @Override
+        public void pie(Cuenta cuenta, int total, long totalIngresos, long totalRetiradas,
+                        EscritorExportacion w) throws IOException {
+            // Resumen como comentario al final
+            w.linea();
+            w.texto("# Resumen;Ingresos=").importeCentimos(totalIngresos)
+                    .texto(";Retiradas=").importeCentimos(totalRetiradas).linea();
+        }
+    },
+
+    // XML (estructura clara con metadata y lista de movimientos).
+    XML {
+        @Override
+        public void metadatos(Cuenta cuenta, String fechaHoy, int totalMovimientos, EscritorExportacion w) throws IOException {
+            w.texto("<?xml version=\"1.0\" encoding=\"UTF-8\"?>").linea();
+            w.texto("<cuenta>").linea();
+
+            w.texto("  <metadata>").linea();
+            w.texto("    <fecha>").xml(fechaHoy).texto("</fecha>").linea();
+            w.texto("    <cliente>").xml(cuenta.getCliente().getNombre()).texto("</cliente>").linea();
+            w.texto("    <saldo>").importeCentimos(cuenta.getSaldoCentimos()).texto("</saldo>").linea();
+            w.texto("    <totalMovimientos>").entero(totalMovimientos).texto("</totalMovimientos>").linea();
+            w.texto("  </metadata>").linea();
+        }
+
+        @Override
+        public void inicioMovimientos(EscritorExportacion w) throws IOException {
+            w.texto("  <movimientos>").linea();
+        }
+
+        @Override
+        public void movimiento(int indice, Movimiento m, EscritorExportacion w) throws IOException {
+            w.texto("    <movimiento tipo=\"").xml(m.getTipo()).texto("\">").linea();
+            w.texto("      <cantidad>").importeCentimos(m.getCentimos()).texto("</cantidad>").linea();
+            w.texto("      <fecha>").xml(m.getFecha()).texto("</fecha>").linea();
+            w.texto("    </movimiento>").linea();
+        }
+
+        @Override
+        public void pie(Cuenta cuenta, int total, long totalIngresos, long totalRetiradas,
+                        EscritorExportacion w) throws IOException {
+            w.texto("  </movimientos>").linea();
+
+            w.texto("  <resumen>").linea();
+            w.texto("    <ingresos>").importeCentimos(totalIngresos).texto("</ingresos>").linea();
+            w.texto("    <retiradas>").importeCentimos(totalRetiradas).texto("</retiradas>").linea();
+            w.texto("  </resumen>").linea();
+
+            w.texto("</cuenta>").linea();
+        }
+    },
+
+    // JSON (con formato legible y estadísticas).
+    JSON {
+        @Override
+        public void metadatos(Cuenta cuenta, String fechaHoy, int totalMovimientos, EscritorExportacion w) throws IOException {
+            w.texto("{").linea();
+            w.texto("  \"cuenta\": {").linea();
+
+            // Metadata
+            w.texto("    \"metadata\": {").linea();
+            w.texto("      \"fecha\": \"").json(fechaHoy).texto("\",").linea();
+            w.texto("      \"cliente\": \"").json(cuenta.getCliente().getNombre()).texto("\",").linea();
+            w.texto("      \"saldo\": ").importeCentimos(cuenta.getSaldoCentimos()).texto(",").linea();
+            w.texto("      \"totalMovimientos\": ").entero(totalMovimientos).linea();
+            w.texto("    },").linea();
+        }
+
+        @Override
+        public void inicioMovimientos(EscritorExportacion w) throws IOException {
+            // Movimientos
+            w.texto("    \"movimientos\": [").linea();
+        }
+
+        @Override
+        public void movimiento(int indice, Movimiento m, EscritorExportacion w) throws IOException {
+            // La coma separa del elemento anterior, de modo que el último queda sin ella
+            if (indice > 0) {
+                w.caracter(',').linea();
+            }
+            w.texto("      {").linea();
+            w.texto("        \"tipo\": \"").json(m.getTipo()).texto("\",").linea();
+            w.texto("        \"cantidad\": ").importeCentimos(m.getCentimos()).texto(",").linea();
+            w.texto("        \"fecha\": \"").json(m.getFecha()).texto("\"").linea();
+            w.texto("      }");
+        }
+
+        @Override
+        public void pie(Cuenta cuenta, int total, long totalIngresos, long totalRetiradas,
+                        EscritorExportacion w) throws IOException {
+            if (total > 0) {
+                w.linea();
+            }
+            w.texto("    ],").linea();
+
+            // Estadísticas
+            w.texto("    \"estadisticas\": {").linea();
+            w.texto("      \"ingresosTotales\": ").importeCentimos(totalIngresos).texto(",").linea();
+            w.texto("      \"retiradasTotales\": ").importeCentimos(totalRetiradas).texto(",").linea();
+            w.texto("      \"saldo\": ").importeCentimos(cuenta.getSaldoCentimos()).linea();
+            w.texto("    }").linea();
+
+            w.texto("  }").linea();
+            w.texto("}").linea();
+        }
+    };
+
+    /** Escribe la parte anterior a la lista de movimientos. */
+    public void cabecera(Cuenta cuenta, String fechaHoy, EscritorExportacion w) throws IOException {
+        cabecera(cuenta, fechaHoy, cuenta.getMovimientos().size(), w);
+    }
+
+    /**
+     * Escribe la parte anterior a la lista de movimientos de un documento con
+     * {@code totalMovimientos} movimientos (menos que el historial en un extracto, ver {@link ExtractoCuenta}).
+     */
+    public void cabecera(Cuenta cuenta, String fechaHoy, int totalMovimientos, EscritorExportacion w) throws IOException {
+        metadatos(cuenta, fechaHoy, totalMovimientos, w);
+        inicioMovimientos(w);
+    }
+
+    /** Escribe la primera parte de la cabecera para el historial completo de la cuenta. */
+    public void metadatos(Cuenta cuenta, String fechaHoy, EscritorExportacion w) throws IOException {
+        metadatos(cuenta, fechaHoy, cuenta.getMovimientos().size(), w);
+    }
+
+    /**
+     * Escribe la primera parte de la cabecera, la que depende del estado de la cuenta (saldo,
+     * número de movimientos...). Termina siempre con un salto de línea.
+     */
+    public abstract void metadatos(Cuenta cuenta, String fechaHoy, int totalMovimientos,
+                                   EscritorExportacion w) throws IOException;
+
+    /** Escribe el resto de la cabecera, que no cambia entre exportaciones. */
+    public abstract void inicioMovimientos(EscritorExportacion w) throws IOException;
+
+    /** Escribe un movimiento; {@code indice} es su posición (desde 0) en el historial exportado. */
+    public abstract void movimiento(int indice, Movimiento m, EscritorExportacion w) throws IOException;
+
+    /** Escribe el cierre de la lista de movimientos y el resumen. {@code total} es el número de movimientos escritos
+     * y los totales de ingresos y retiradas van en céntimos. */
+    public abstract void pie(Cuenta cuenta, int total, long totalIngresos, long totalRetiradas,
+                             EscritorExportacion w) throws IOException;
+}
@@ -0,0 +1,887 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Historial por niveles: los movimientos recientes en memoria y los antiguos en segmentos en disco.
+ *
+ * Se mantienen en el heap los últimos {@link #VENTANA} movimientos (y los que aún no se han
+ * sellado). Cada {@link #MOVIMIENTOS_POR_SEGMENTO} movimientos nuevos se sellan en un segmento:
+ * un archivo inmutable de la carpeta del historial con sus movimientos en bloques comprimidos
+ * como los de {@link SnapshotBinario} y, en la cabecera, el rango de posiciones, los instantes
+ * mínimo y máximo y el número y la suma de ingresos y retiradas. El índice de bloques guarda
+ * también el instante mínimo y máximo de cada bloque. Al guardar un snapshot
+ * ({@link #sincronizar()}) se sella lo que falte, aunque sea poco, y el snapshot solo guarda la
+ * carpeta, como con un {@link HistorialMapeado}.
+ *
+ * El sellado y la compactación se hacen en un hilo aparte: los movimientos se copian al pedir el
+ * sellado y siguen en memoria hasta que su segmento está escrito. El compactador junta cada
+ * {@value #SEGMENTOS_POR_MEZCLA} segmentos seguidos de tamaño parecido en uno (por ejemplo los
+ * pequeños que deja cada snapshot), así que el número de segmentos crece con el logaritmo del
+ * historial. El segmento mezclado se escribe en un temporal y se renombra antes de borrar los
+ * originales; si un corte deja ambos, al abrir se queda el que los contiene.
+ *
+ * Las consultas por intervalo ({@link #contar}, {@link #buscar}) descartan por sus metadatos los
+ * segmentos y bloques que no pueden tener movimientos del intervalo, y los segmentos que caen
+ * dentro se cuentan sin leerlos. Devuelven los movimientos en orden de posición, que es el de
+ * fecha si el historial está ordenado ({@link #isOrdenado()}).
+ */
+public class HistorialEscalonado extends AbstractList<Movimiento> implements RandomAccess, Serializable, Closeable {
+    private static final long serialVersionUID = 1L;
+
+    /** Movimientos recientes que se mantienen en memoria ({@code -Dcuenta.historial.ventana}). */
+    public static final int VENTANA = Math.max(0, Integer.getInteger("cuenta.historial.ventana", 16 * 1024));
+    /** Movimientos de cada segmento que se sella al crecer el historial. */
+    public static final int MOVIMIENTOS_POR_SEGMENTO = 16 * SnapshotBinario.MOVIMIENTOS_POR_BLOQUE;
+
+    private static final int MAGIA = 0x48534547; // "HSEG"
+    private static final int VERSION = 1;
+    // magia, versión, primero, número, bloques, indicadores, instantes mínimo y máximo, número de
+    // ingresos y de retiradas, sus sumas, posición del índice y CRC32
+    private static final int TAM_CABECERA = 76;
+    // Posición, instante mínimo e instante máximo de cada bloque
+    private static final int TAM_ENTRADA_INDICE = 24;
+    private static final int TAM_CRC = 4;
+    private static final int ORDENADO = 1;
+    private static final int BLOQUE = SnapshotBinario.MOVIMIENTOS_POR_BLOQUE;
+    private static final String EXTENSION = ".seg";
+
+    // Segmentos seguidos del mismo nivel que se juntan en uno, y tamaño máximo del resultado
+    private static final int SEGMENTOS_POR_MEZCLA = 4;
+    private static final int MAX_MOVIMIENTOS_MEZCLA = 64 * MOVIMIENTOS_POR_SEGMENTO;
+    // Movimientos que se quitan de memoria de una vez (para no desplazar la ventana en cada add)
+    private static final int RECORTE_MINIMO = Math.max(1024, VENTANA / 4);
+    private static final int BLOQUES_EN_MEMORIA = 64;
+
+    private static final Metricas.Medida MEDIDA_SELLAR = Metricas.medida("historial.sellar");
+    private static final Metricas.Medida MEDIDA_COMPACTAR = Metricas.medida("historial.compactar");
+
+    private final transient Path carpeta;
+    // Hilo que sella y compacta los segmentos
+    private final transient ExecutorService compactador;
+
+    // Segmentos en orden, contiguos desde la posición 0; solo los sustituye el compactador
+    private transient volatile Segmento[] segmentos = new Segmento[0];
+    private transient volatile IOException error;
+    private transient volatile boolean cerrado;
+
+    // Parte en memoria: movimientos desde la posición inicioMemoria (los usa el hilo de la cuenta)
+    private final transient ArrayList<Movimiento> recientes = new ArrayList<>();
+    private transient int inicioMemoria;
+    // Movimientos ya pasados al compactador para sellar
+    private transient int entregados;
+    private transient boolean ordenado = true;
+    private transient long ultimoInstante = Long.MIN_VALUE;
+
+    // Bloques leídos de los segmentos, por posición del primer movimiento y tamaño
+    private final transient Map<Long, Bloque> bloques = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Bloque> mayor) {
+            return size() > BLOQUES_EN_MEMORIA;
+        }
+    };
+    private transient volatile Bloque ultimo;
+
+    private HistorialEscalonado(Path carpeta) throws IOException {
+        this.carpeta = carpeta;
+        Files.createDirectories(carpeta);
+        this.compactador = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "historial-compactador");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Crea un historial vacío en la carpeta indicada, descartando segmentos anteriores si los hubiera.
+     */
+    public static HistorialEscalonado crear(Path carpeta) throws IOException {
+        HistorialEscalonado h = new HistorialEscalonado(carpeta);
+        for (Path p : archivos(carpeta)) {
+            Files.delete(p);
+        }
+        return h;
+    }
+
+    /**
+     * Abre el historial guardado en la carpeta indicada limitado a sus {@code tamano} primeros
+     * movimientos (los que recoge un snapshot). Los segmentos sellados después se descartan (lo
+     * que contienen se recupera del diario), igual que los que quedaron repetidos por una
+     * compactación interrumpida.
+     */
+    public static HistorialEscalonado reabrir(Path carpeta, int tamano) throws IOException {
+        HistorialEscalonado h = new HistorialEscalonado(carpeta);
+        try {
+            h.cargarSegmentos(tamano);
+        } catch (IOException | RuntimeException e) {
+            h.close();
+            throw e;
+        }
+        return h;
+    }
+
+    /** Devuelve la carpeta de los segmentos. */
+    public Path getCarpeta() {
+        return carpeta;
+    }
+
+    @Override
+    public int size() {
+        return inicioMemoria + recientes.size();
+    }
+
+    @Override
+    public Movimiento get(int indice) {
+        if (indice >= inicioMemoria) {
+            return recientes.get(indice - inicioMemoria);
+        }
+        if (indice < 0) {
+            throw new IndexOutOfBoundsException("Índice: " + indice + ", tamaño: " + size());
+        }
+        Bloque b = ultimo;
+        if (b == null || indice < b.inicio || indice >= b.inicio + b.valores.length) {
+            b = bloqueCon(indice);
+            ultimo = b;
+        }
+        return b.movimiento(indice - b.inicio);
+    }
+
+    @Override
+    public boolean add(Movimiento m) {
+        recientes.add(m);
+        modCount++;
+        if (m.getInstante() < ultimoInstante) {
+            ordenado = false;
+        }
+        ultimoInstante = Math.max(ultimoInstante, m.getInstante());
+        if (size() - entregados >= MOVIMIENTOS_POR_SEGMENTO && error == null) {
+            entregar(entregados + MOVIMIENTOS_POR_SEGMENTO);
+        }
+        recortar();
+        return true;
+    }
+
+    /** Indica si los movimientos están en orden de fecha (no hay ninguno anterior a otro previo). */
+    public boolean isOrdenado() {
+        return ordenado;
+    }
+
+    /**
+     * Sella lo que aún no está en un segmento y espera a que estén escritos todos, de modo que la
+     * carpeta contiene el historial entero (se llama antes de guardar un snapshot).
+     */
+    public void sincronizar() throws IOException {
+        if (error != null) {
+            // Se vuelve a sellar desde el último segmento bueno: lo posterior sigue en memoria
+            error = null;
+            entregados = persistidos(segmentos);
+        }
+        if (entregados < size()) {
+            entregar(size());
+        }
+        try {
+            compactador.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrumpido mientras se sellaba el historial.", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error sellando el historial: " + e.getCause().getMessage(), e.getCause());
+        }
+        IOException e = error;
+        if (e != null) {
+            throw new IOException("No se pudo sellar el historial: " + e.getMessage(), e);
+        }
+        recortar();
+    }
+
+    /** Número de segmentos en disco. */
+    public int getNumSegmentos() {
+        return segmentos.length;
+    }
+
+    /** Número de movimientos que hay ahora en memoria. */
+    public int getEnMemoria() {
+        return recientes.size();
+    }
+
+    /**
+     * Saldo de todo el historial en céntimos. La parte sellada se calcula con las sumas de la
+     * cabecera de cada segmento, sin leer sus movimientos.
+     */
+    public long saldoCentimos() {
+        Segmento[] segs = segmentos;
+        long saldo = 0;
+        for (Segmento s : segs) {
+            saldo += s.ingresos - s.retiradas;
+        }
+        for (int i = Math.max(persistidos(segs), inicioMemoria); i < size(); i++) {
+            Movimiento m = recientes.get(i - inicioMemoria);
+            saldo += m.getTipoMovimiento() == TipoMovimiento.RETIRADA ? -m.getCentimos() : m.getCentimos();
+        }
+        return saldo;
+    }
+
+    /**
+     * Número de movimientos con instante en [desde, hasta) y del tipo indicado (o
+     * {@link IndiceMovimientos#TODOS}).
+     */
+    public int contar(long desde, long hasta, int tipo) {
+        return recorrerRango(desde, hasta, tipo, 0, 0, null);
+    }
+
+    /**
+     * Movimientos con instante en [desde, hasta) y del tipo indicado (o {@link IndiceMovimientos#TODOS})
+     * en orden de posición, saltando los {@code saltar} primeros y devolviendo como mucho {@code limite}.
+     */
+    public List<Movimiento> buscar(long desde, long hasta, int tipo, int saltar, int limite) {
+        List<Movimiento> resultado = new ArrayList<>(Math.max(0, Math.min(limite, 1024)));
+        if (limite > 0) {
+            // recorrerRango suma saltar y limite en long, así que Integer.MAX_VALUE vale como "sin límite"
+            recorrerRango(desde, hasta, tipo, Math.max(0, saltar), limite, resultado);
+        }
+        return resultado;
+    }
+
+    /**
+     * Espera a que termine lo que esté sellando el compactador (sin empezar más mezclas) y cierra
+     * los segmentos. Lo que no se haya sincronizado queda solo en memoria (y en el diario).
+     */
+    @Override
+    public void close() throws IOException {
+        cerrado = true;
+        compactador.shutdown();
+        try {
+            compactador.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Segmento s : segmentos) {
+            s.canal.close();
+        }
+    }
+
+    // Las cuentas que aún se guardan con la serialización de Java guardan una lista normal
+    private Object writeReplace() {
+        return new ArrayList<>(this);
+    }
+
+    // Pasa al compactador una copia de los movimientos [entregados, hasta) para sellarlos
+    private void entregar(int hasta) {
+        int primero = entregados;
+        int n = hasta - primero;
+        long[] instantes = new long[n];
+        long[] valores = new long[n];
+        for (int k = 0; k < n; k++) {
+            Movimiento m = recientes.get(primero + k - inicioMemoria);
+            instantes[k] = m.getInstante();
+            valores[k] = m.getCentimos() << 1 | m.getTipoMovimiento().getCodigo();
+        }
+        entregados = hasta;
+        compactador.execute(() -> sellar(primero, instantes, valores));
+    }
+
+    // Quita de memoria los movimientos ya sellados que quedan fuera de la ventana
+    private void recortar() {
+        int limite = Math.min(persistidos(segmentos), size() - VENTANA);
+        if (limite - inicioMemoria >= RECORTE_MINIMO) {
+            recientes.subList(0, limite - inicioMemoria).clear();
+            inicioMemoria = limite;
+        }
+    }
+
+    // Hilo del compactador: escribe el segmento y lo publica
+    private void sellar(int primero, long[] instantes, long[] valores) {
+        Segmento[] segs = segmentos;
+        if (error != null || primero != persistidos(segs)) {
+            // Tras un error, sincronizar vuelve a entregar desde el último segmento bueno
+            return;
+        }
+        long inicio = MEDIDA_SELLAR.iniciar();
+        try {
+            Segmento s = escribirSegmento(primero, w -> {
+                for (int k = 0; k < instantes.length; k++) {
+                    w.anadir(instantes[k], valores[k]);
+                }
+            });
+            Segmento[] nuevos = Arrays.copyOf(segs, segs.length + 1);
+            nuevos[segs.length] = s;
+            segmentos = nuevos;
+            MEDIDA_SELLAR.registrar(inicio, 0, Files.size(s.archivo));
+        } catch (IOException e) {
+            error = e;
+            System.out.println("Error sellando movimientos del historial: " + e.getMessage());
+            return;
+        }
+        compactar();
+    }
+
+    // Junta segmentos seguidos del mismo nivel mientras los haya
+    private void compactar() {
+        while (!cerrado) {
+            Segmento[] segs = segmentos;
+            int desde = buscarMezcla(segs);
+            if (desde < 0) return;
+            long inicio = MEDIDA_COMPACTAR.iniciar();
+            Segmento mezclado;
+            long bytes;
+            try {
+                mezclado = mezclar(segs, desde, desde + SEGMENTOS_POR_MEZCLA);
+                bytes = Files.size(mezclado.archivo);
+            } catch (IOException | RuntimeException e) {
+                // Los segmentos originales siguen valiendo; se reintentará con el siguiente sellado
+                if (!cerrado) {
+                    System.out.println("Error compactando el historial: " + e.getMessage());
+                }
+                return;
+            }
+            Segmento[] nuevos = new Segmento[segs.length - SEGMENTOS_POR_MEZCLA + 1];
+            System.arraycopy(segs, 0, nuevos, 0, desde);
+            nuevos[desde] = mezclado;
+            System.arraycopy(segs, desde + SEGMENTOS_POR_MEZCLA, nuevos, desde + 1, segs.length - desde - SEGMENTOS_POR_MEZCLA);
+            segmentos = nuevos;
+            // Una lectura que aún use un segmento cerrado se repite con la lista nueva (ver bloqueCon)
+            for (int i = desde; i < desde + SEGMENTOS_POR_MEZCLA; i++) {
+                try {
+                    segs[i].canal.close();
+                    Files.deleteIfExists(segs[i].archivo);
+                } catch (IOException e) {
+                    System.out.println("No se pudo borrar el segmento " + segs[i].archivo + ": " + e.getMessage());
+                }
+            }
+            MEDIDA_COMPACTAR.registrar(inicio, 0, bytes);
+        }
+    }
+
+    // Primer grupo de segmentos seguidos del mismo nivel que cabe en una mezcla, o -1
+    private static int buscarMezcla(Segmento[] segs) {
+        for (int i = 0; i + SEGMENTOS_POR_MEZCLA <= segs.length; i++) {
+            int nivel = nivel(segs[i].numero);
+            long total = segs[i].numero;
+            int j = i + 1;
+            while (j < i + SEGMENTOS_POR_MEZCLA && nivel(segs[j].numero) == nivel) {
+                total += segs[j].numero;
+                j++;
+            }
+            if (j == i + SEGMENTOS_POR_MEZCLA && total <= MAX_MOVIMIENTOS_MEZCLA) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Nivel de tamaño de un segmento: cada nivel es cuatro veces mayor que el anterior
+    private static int nivel(int numero) {
+        return (31 - Integer.numberOfLeadingZeros(Math.max(1, numero / 1024))) / 2;
+    }
+
+    // Escribe un segmento con los movimientos de segs[desde, hasta)
+    private Segmento mezclar(Segmento[] segs, int desde, int hasta) throws IOException {
+        return escribirSegmento(segs[desde].primero, w -> {
+            for (int i = desde; i < hasta; i++) {
+                Segmento s = segs[i];
+                long[] indice = s.indice();
+                for (int b = 0; b < s.numBloques; b++) {
+                    if (cerrado) {
+                        throw new IOException("El historial se ha cerrado durante la compactación.");
+                    }
+                    int n = s.tamBloque(b);
+                    long[] instantes = new long[n];
+                    long[] valores = new long[n];
+                    SnapshotBinario.leerBloque(s.canal, indice[b * 3], instantes, valores);
+                    for (int k = 0; k < n; k++) {
+                        w.anadir(instantes[k], valores[k]);
+                    }
+                }
+            }
+        });
+    }
+
+    // Escribe un segmento que empieza en la posición primero; si algo falla se borra el temporal
+    private Segmento escribirSegmento(int primero, Contenido contenido) throws IOException {
+        EscritorSegmento w = new EscritorSegmento(carpeta, primero);
+        try {
+            contenido.escribir(w);
+            return w.terminar();
+        } catch (IOException | RuntimeException e) {
+            w.descartar();
+            throw e;
+        }
+    }
+
+    private interface Contenido {
+        void escribir(EscritorSegmento w) throws IOException;
+    }
+
+    // Bloque que contiene la posición indice (de la parte sellada)
+    private Bloque bloqueCon(int indice) {
+        while (true) {
+            Segmento[] segs = segmentos;
+            Segmento s = segs[segmentoCon(segs, indice)];
+            try {
+                return bloque(s, (indice - s.primero) / BLOQUE);
+            } catch (ClosedChannelException e) {
+                if (segmentos == segs) {
+                    throw new IllegalStateException("El historial está cerrado.", e);
+                }
+                // El compactador ha sustituido el segmento mientras se leía
+            } catch (IOException e) {
+                throw new IllegalStateException("No se pudo leer el historial: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private Bloque bloque(Segmento s, int b) throws IOException {
+        int inicio = s.primero + b * BLOQUE;
+        int n = s.tamBloque(b);
+        // Un bloque de un segmento mezclado y el del original que empieza igual tienen los mismos datos
+        Long clave = (long) inicio << 13 | n;
+        synchronized (bloques) {
+            Bloque bloque = bloques.get(clave);
+            if (bloque != null) return bloque;
+        }
+        long[] instantes = new long[n];
+        long[] valores = new long[n];
+        SnapshotBinario.leerBloque(s.canal, s.indice()[b * 3], instantes, valores);
+        Bloque bloque = new Bloque(inicio, instantes, valores);
+        synchronized (bloques) {
+            bloques.put(clave, bloque);
+        }
+        return bloque;
+    }
+
+    // Posición en segs del segmento que contiene la posición indice
+    private static int segmentoCon(Segmento[] segs, int indice) {
+        int lo = 0;
+        int hi = segs.length - 1;
+        while (lo < hi) {
+            int medio = (lo + hi + 1) >>> 1;
+            if (segs[medio].primero <= indice) lo = medio;
+            else hi = medio - 1;
+        }
+        return lo;
+    }
+
+    private static int persistidos(Segmento[] segs) {
+        return segs.length == 0 ? 0 : segs[segs.length - 1].fin();
+    }
+
+    /*
+     * Cuenta los movimientos del intervalo y tipo indicados o, con destino, añade los que van
+     * del número saltar al saltar + limite. La parte anterior a inicioMemoria se lee de los
+     * segmentos; el resto, de memoria. Si el compactador sustituye un segmento durante la lectura,
+     * se empieza de nuevo.
+     */
+    private int recorrerRango(long desde, long hasta, int tipo, int saltar, int limite, List<Movimiento> destino) {
+        while (true) {
+            try {
+                return recorrerRangoUnaVez(desde, hasta, tipo, saltar, limite, destino);
+            } catch (ClosedChannelException e) {
+                if (destino != null) destino.clear();
+            } catch (IOException e) {
+                throw new IllegalStateException("No se pudo leer el historial: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private int recorrerRangoUnaVez(long desde, long hasta, int tipo, int saltar, int limite,
+                                    List<Movimiento> destino) throws IOException {
+        // Posición (entre los que coinciden) tras el último que se devuelve; en long para que no desborde
+        long fin = (long) saltar + limite;
+        int vistos = 0;
+        int enDisco = inicioMemoria;
+        for (Segmento s : segmentos) {
+            if (s.primero >= enDisco) break;
+            if (s.maxInstante < desde || s.minInstante >= hasta) {
+                contarDescartado();
+                continue;
+            }
+            int deTipo = tipo == IndiceMovimientos.TODOS ? s.numero
+                    : tipo == TipoMovimiento.RETIRADA.getCodigo() ? s.numRetiradas : s.numIngresos;
+            if (s.fin() <= enDisco && s.minInstante >= desde && s.maxInstante < hasta
+                    && (destino == null || vistos + deTipo <= saltar)) {
+                // Todo el segmento está en el intervalo y no hace falta ninguno de sus movimientos
+                vistos += deTipo;
+                continue;
+            }
+            long[] indice = s.indice();
+            for (int b = 0; b < s.numBloques; b++) {
+                int inicioBloque = s.primero + b * BLOQUE;
+                if (inicioBloque >= enDisco) break;
+                if (indice[b * 3 + 2] < desde || indice[b * 3 + 1] >= hasta) continue;
+                int enBloque = Math.min(s.tamBloque(b), enDisco - inicioBloque);
+                if (tipo == IndiceMovimientos.TODOS && indice[b * 3 + 1] >= desde && indice[b * 3 + 2] < hasta
+                        && (destino == null || vistos + enBloque <= saltar)) {
+                    // Todo el bloque está en el intervalo y no hace falta ninguno de sus movimientos
+                    vistos += enBloque;
+                    continue;
+                }
+                Bloque bloque = bloque(s, b);
+                int n = Math.min(bloque.valores.length, enDisco - inicioBloque);
+                for (int k = 0; k < n; k++) {
+                    long instante = bloque.instantes[k];
+                    if (instante < desde || instante >= hasta
+                            || (tipo != IndiceMovimientos.TODOS && (bloque.valores[k] & 1) != tipo)) continue;
+                    if (destino != null && vistos >= saltar) {
+                        destino.add(bloque.movimiento(k));
+                        if (vistos + 1 >= fin) return vistos + 1;
+                    }
+                    vistos++;
+                }
+            }
+        }
+        for (Movimiento m : recientes) {
+            long instante = m.getInstante();
+            if (instante < desde || instante >= hasta
+                    || (tipo != IndiceMovimientos.TODOS && m.getTipoMovimiento().getCodigo() != tipo)) continue;
+            if (destino != null && vistos >= saltar) {
+                destino.add(m);
+                if (vistos + 1 >= fin) return vistos + 1;
+            }
+            vistos++;
+        }
+        return vistos;
+    }
+
+    private static void contarDescartado() {
+        if (Metricas.ACTIVAS) {
+            Metricas.contador("historial.segmentos.descartados").increment();
+        }
+    }
+
+    // Lee los segmentos de la carpeta que forman el historial hasta la posición tamano
+    private void cargarSegmentos(int tamano) throws IOException {
+        List<Segmento> encontrados = new ArrayList<>();
+        try {
+            for (Path p : archivos(carpeta)) {
+                encontrados.add(Segmento.abrir(p));
+            }
+        } catch (IOException e) {
+            for (Segmento s : encontrados) s.canal.close();
+            throw e;
+        }
+        // A igual comienzo, primero el más largo: contiene a los que se mezclaron en él
+        encontrados.sort(Comparator.comparingInt((Segmento s) -> s.primero)
+                .thenComparing(Comparator.comparingInt((Segmento s) -> s.numero).reversed()));
+        List<Segmento> elegidos = new ArrayList<>();
+        List<Segmento> sobrantes = new ArrayList<>();
+        int cubiertos = 0;
+        for (Segmento s : encontrados) {
+            if (s.primero == cubiertos && cubiertos < tamano) {
+                elegidos.add(s);
+                cubiertos = s.fin();
+            } else if (s.fin() <= cubiertos || s.primero >= tamano) {
+                sobrantes.add(s);
+            } else {
+                for (Segmento e : encontrados) e.canal.close();
+                throw new IOException("Los segmentos del historial " + carpeta + " se solapan o falta alguno.");
+            }
+        }
+        if (cubiertos < tamano) {
+            for (Segmento e : encontrados) e.canal.close();
+            throw new IOException("Faltan movimientos en el historial " + carpeta + ": tiene "
+                    + cubiertos + " y el snapshot " + tamano + ".");
+        }
+        // Un segmento sellado después del snapshot que empieza antes de su final: su principio
+        // pasa a memoria para volver a sellarlo
+        Segmento[] segs = elegidos.toArray(new Segmento[0]);
+        if (cubiertos > tamano) {
+            Segmento ultimoSeg = segs[segs.length - 1];
+            segs = Arrays.copyOf(segs, segs.length - 1);
+            long[] indice = ultimoSeg.indice();
+            for (int b = 0; b < ultimoSeg.numBloques && ultimoSeg.primero + b * BLOQUE < tamano; b++) {
+                int n = ultimoSeg.tamBloque(b);
+                long[] instantes = new long[n];
+                long[] valores = new long[n];
+                SnapshotBinario.leerBloque(ultimoSeg.canal, indice[b * 3], instantes, valores);
+                Bloque bloque = new Bloque(ultimoSeg.primero + b * BLOQUE, instantes, valores);
+                for (int k = 0; k < n && bloque.inicio + k < tamano; k++) {
+                    recientes.add(bloque.movimiento(k));
+                }
+            }
+            sobrantes.add(ultimoSeg);
+        }
+        segmentos = segs;
+        inicioMemoria = persistidos(segs);
+        entregados = inicioMemoria;
+        for (Segmento s : sobrantes) {
+            s.canal.close();
+            Files.deleteIfExists(s.archivo);
+        }
+
+        long anterior = Long.MIN_VALUE;
+        for (Segmento s : segs) {
+            if (!s.ordenado || s.minInstante < anterior) ordenado = false;
+            anterior = Math.max(anterior, s.maxInstante);
+        }
+        for (Movimiento m : recientes) {
+            if (m.getInstante() < anterior) ordenado = false;
+            anterior = Math.max(anterior, m.getInstante());
+        }
+        ultimoInstante = anterior;
+    }
+
+    // Segmentos de la carpeta; los temporales de una escritura interrumpida se borran
+    private static List<Path> archivos(Path carpeta) throws IOException {
+        List<Path> archivos = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(carpeta)) {
+            for (Path p : ds) {
+                String nombre = p.getFileName().toString();
+                if (nombre.endsWith(EXTENSION)) {
+                    archivos.add(p);
+                } else if (nombre.endsWith(EXTENSION + ".tmp")) {
+                    Files.delete(p);
+                }
+            }
+        }
+        return archivos;
+    }
+
+    // Movimientos de un bloque: instante y (céntimos * 2 + código de tipo)
+    private static final class Bloque {
+        final int inicio;
+        final long[] instantes;
+        final long[] valores;
+
+        Bloque(int inicio, long[] instantes, long[] valores) {
+            this.inicio = inicio;
+            this.instantes = instantes;
+            this.valores = valores;
+        }
+
+        Movimiento movimiento(int k) {
+            long valor = valores[k];
+            return new Movimiento(TipoMovimiento.desdeCodigo((byte) (valor & 1)), valor >> 1, instantes[k]);
+        }
+    }
+
+    // Segmento sellado: sus metadatos y el archivo abierto para leer sus bloques
+    private static final class Segmento {
+        final Path archivo;
+        final FileChannel canal;
+        final int primero;
+        final int numero;
+        final int numBloques;
+        final boolean ordenado;
+        final long minInstante;
+        final long maxInstante;
+        final int numIngresos;
+        final int numRetiradas;
+        final long ingresos;
+        final long retiradas;
+        final long posicionIndice;
+        // Posición, instante mínimo y máximo de cada bloque: se lee la primera vez que hace falta
+        private long[] indice;
+
+        private Segmento(Path archivo, FileChannel canal, ByteBuffer cabecera) {
+            this.archivo = archivo;
+            this.canal = canal;
+            this.primero = cabecera.getInt(8);
+            this.numero = cabecera.getInt(12);
+            this.numBloques = cabecera.getInt(16);
+            this.ordenado = (cabecera.getInt(20) & ORDENADO) != 0;
+            this.minInstante = cabecera.getLong(24);
+            this.maxInstante = cabecera.getLong(32);
+            this.numIngresos = cabecera.getInt(40);
+            this.numRetiradas = cabecera.getInt(44);
+            this.ingresos = cabecera.getLong(48);
+            this.retiradas = cabecera.getLong(56);
+            this.posicionIndice = cabecera.getLong(64);
+        }
+
+        static Segmento abrir(Path archivo) throws IOException {
+            FileChannel canal = FileChannel.open(archivo, StandardOpenOption.READ);
+            try {
+                ByteBuffer cabecera = ByteBuffer.allocate(TAM_CABECERA);
+                leerCompleto(canal, cabecera, 0);
+                CRC32 crc = new CRC32();
+                crc.update(cabecera.array(), 0, TAM_CABECERA - TAM_CRC);
+                if (cabecera.getInt(0) != MAGIA || cabecera.getInt(4) != VERSION
+                        || (int) crc.getValue() != cabecera.getInt(TAM_CABECERA - TAM_CRC)) {
+                    throw new IOException("El segmento " + archivo + " no es válido o está dañado.");
+                }
+                Segmento s = new Segmento(archivo, canal, cabecera);
+                if (s.primero < 0 || s.numero <= 0 || s.numBloques != (s.numero + BLOQUE - 1) / BLOQUE
+                        || s.numIngresos + s.numRetiradas != s.numero
+                        || s.posicionIndice + (long) s.numBloques * TAM_ENTRADA_INDICE + TAM_CRC != canal.size()) {
+                    throw new IOException("El segmento " + archivo + " está incompleto o dañado.");
+                }
+                return s;
+            } catch (IOException e) {
+                canal.close();
+                throw e;
+            }
+        }
+
+        int fin() {
+            return primero + numero;
+        }
+
+        int tamBloque(int b) {
+            return Math.min(BLOQUE, numero - b * BLOQUE);
+        }
+
+        synchronized long[] indice() throws IOException {
+            if (indice == null) {
+                int tam = numBloques * TAM_ENTRADA_INDICE;
+                ByteBuffer datos = ByteBuffer.allocate(tam + TAM_CRC);
+                leerCompleto(canal, datos, posicionIndice);
+                CRC32 crc = new CRC32();
+                crc.update(datos.array(), 0, tam);
+                if ((int) crc.getValue() != datos.getInt(tam)) {
+                    throw new IOException("El CRC del índice del segmento " + archivo + " no coincide.");
+                }
+                long[] leido = new long[numBloques * 3];
+                datos.rewind().asLongBuffer().get(leido);
+                indice = leido;
+            }
+            return indice;
+        }
+    }
+
+    /*
+     * Escribe un segmento: cabecera (se rellena al final), bloques y el índice con su CRC. Se
+     * escribe en un temporal que se renombra al terminar.
+     */
+    private static final class EscritorSegmento {
+        final Path carpeta;
+        final Path temporal;
+        final FileChannel canal;
+        final int primero;
+        final long[] instantes = new long[BLOQUE];
+        final long[] valores = new long[BLOQUE];
+        final byte[] registros = new byte[SnapshotBinario.MAX_TAM_BLOQUE];
+        final ByteArrayOutputStream indiceBytes = new ByteArrayOutputStream();
+        final DataOutputStream indice = new DataOutputStream(indiceBytes);
+        int enBloque;
+        long posicion = TAM_CABECERA;
+        int numero;
+        int numBloques;
+        int numIngresos;
+        int numRetiradas;
+        long ingresos;
+        long retiradas;
+        long minInstante = Long.MAX_VALUE;
+        long maxInstante = Long.MIN_VALUE;
+        boolean ordenado = true;
+
+        EscritorSegmento(Path carpeta, int primero) throws IOException {
+            this.carpeta = carpeta;
+            this.primero = primero;
+            this.temporal = carpeta.resolve("segmento-" + primero + EXTENSION + ".tmp");
+            this.canal = FileChannel.open(temporal, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        void anadir(long instante, long valor) throws IOException {
+            if (instante < maxInstante) ordenado = false;
+            minInstante = Math.min(minInstante, instante);
+            maxInstante = Math.max(maxInstante, instante);
+            if ((valor & 1) == TipoMovimiento.RETIRADA.getCodigo()) {
+                numRetiradas++;
+                retiradas += valor >> 1;
+            } else {
+                numIngresos++;
+                ingresos += valor >> 1;
+            }
+            instantes[enBloque] = instante;
+            valores[enBloque] = valor;
+            numero++;
+            if (++enBloque == BLOQUE) {
+                volcarBloque();
+            }
+        }
+
+        private void volcarBloque() throws IOException {
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (int k = 0; k < enBloque; k++) {
+                min = Math.min(min, instantes[k]);
+                max = Math.max(max, instantes[k]);
+            }
+            int tam = SnapshotBinario.codificarBloque(instantes, valores, enBloque, registros);
+            indice.writeLong(posicion);
+            indice.writeLong(min);
+            indice.writeLong(max);
+            escribir(ByteBuffer.wrap(registros, 0, tam), posicion);
+            posicion += tam;
+            numBloques++;
+            enBloque = 0;
+        }
+
+        Segmento terminar() throws IOException {
+            if (enBloque > 0) {
+                volcarBloque();
+            }
+            byte[] datosIndice = indiceBytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(datosIndice);
+            ByteBuffer finIndice = ByteBuffer.allocate(datosIndice.length + TAM_CRC);
+            finIndice.put(datosIndice).putInt((int) crc.getValue()).flip();
+            escribir(finIndice, posicion);
+
+            ByteBuffer cabecera = ByteBuffer.allocate(TAM_CABECERA);
+            cabecera.putInt(MAGIA).putInt(VERSION).putInt(primero).putInt(numero).putInt(numBloques)
+                    .putInt(ordenado ? ORDENADO : 0).putLong(minInstante).putLong(maxInstante)
+                    .putInt(numIngresos).putInt(numRetiradas).putLong(ingresos).putLong(retiradas)
+                    .putLong(posicion);
+            crc.reset();
+            crc.update(cabecera.array(), 0, TAM_CABECERA - TAM_CRC);
+            cabecera.putInt((int) crc.getValue()).flip();
+            escribir(cabecera, 0);
+            canal.force(true);
+            canal.close();
+
+            Path destino = carpeta.resolve(String.format("%010d-%010d%s", primero, numero, EXTENSION));
+            Files.move(temporal, destino, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return Segmento.abrir(destino);
+        }
+
+        void descartar() {
+            try {
+                canal.close();
+                Files.deleteIfExists(temporal);
+            } catch (IOException e) {
+                // Si no se puede borrar, se borra al volver a abrir el historial
+            }
+        }
+
+        private void escribir(ByteBuffer datos, long desde) throws IOException {
+            while (datos.hasRemaining()) {
+                desde += canal.write(datos, desde);
+            }
+        }
+    }
+
+    private static void leerCompleto(FileChannel canal, ByteBuffer destino, long posicion) throws IOException {
+        while (destino.hasRemaining()) {
+            int leidos = canal.read(destino, posicion);
+            if (leidos < 0) {
+                throw new IOException("Fin de archivo inesperado en el segmento.");
+            }
+            posicion += leidos;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * Historial de movimientos guardado por columnas en archivos mapeados en memoria.
+ *
+ * En lugar de un objeto {@link Movimiento} por entrada, se guardan tres columnas primitivas en
+ * la carpeta indicada: tipo (1 byte), cantidad en céntimos (long) e instante (long, ver
+ * {@link Movimiento#getInstante()}). Los datos viven fuera del heap y los objetos
+ * {@code Movimiento} solo se crean cuando se piden con {@link #get(int)}.
+ *
+ * Solo admite añadir al final (como el historial de una cuenta). Al serializarse se guarda
+ * la carpeta y el número de movimientos; al deserializarse se reabre con ese tamaño, de modo que
+ * lo añadido después del snapshot se vuelve a aplicar desde el diario.
+ * Las cantidades se redondean a céntimos.
+ */
+public final class HistorialMapeado extends AbstractList<Movimiento> implements RandomAccess, Serializable, Closeable {
+    private static final long serialVersionUID = 1L;
+
+    private static final int MAGIA = 0x48434F4C; // "HCOL"
+    private static final int VERSION = 1;
+    // La cabecera va al principio del archivo de tipos: magia, versión y número de movimientos
+    private static final int TAM_CABECERA = 16;
+    private static final int CAPACIDAD_INICIAL = 1024;
+    // Límite de un MappedByteBuffer (las columnas de long ocupan 8 bytes por movimiento)
+    private static final int CAPACIDAD_MAXIMA = (Integer.MAX_VALUE - TAM_CABECERA) / 8;
+
+    private final String carpeta;
+    private int tamano;
+
+    private transient FileChannel canalTipos;
+    private transient FileChannel canalCentimos;
+    private transient FileChannel canalInstantes;
+    private transient MappedByteBuffer tipos;
+    private transient MappedByteBuffer centimos;
+    private transient MappedByteBuffer instantes;
+    private transient int capacidad;
+
+    /**
+     * Abre (o crea) el historial guardado en la carpeta indicada.
+     */
+    public HistorialMapeado(Path carpeta) throws IOException {
+        this(carpeta, -1);
+    }
+
+    private HistorialMapeado(Path carpeta, int tamanoSnapshot) throws IOException {
+        this.carpeta = carpeta.toString();
+        abrir(tamanoSnapshot);
+    }
+
+    /**
+     * Crea un historial vacío en la carpeta indicada, descartando columnas anteriores si las hubiera.
+     */
+    public static HistorialMapeado crear(Path carpeta) throws IOException {
+        for (String columna : new String[] {"tipos.col", "centimos.col", "instantes.col"}) {
+            Files.deleteIfExists(carpeta.resolve(columna));
+        }
+        return new HistorialMapeado(carpeta);
+    }
+
+    /**
+     * Abre el historial guardado en la carpeta indicada limitado a sus {@code tamano} primeros
+     * movimientos (los que recoge un snapshot); lo añadido después se descarta.
+     */
+    public static HistorialMapeado reabrir(Path carpeta, int tamano) throws IOException {
+        return new HistorialMapeado(carpeta, tamano);
+    }
+
+    /** Devuelve la carpeta donde están las columnas. */
+    public Path getCarpeta() {
+        return Paths.get(carpeta);
+    }
+
+    @Override
+    public int size() {
+        return tamano;
+    }
+
+    @Override
+    public Movimiento get(int indice) {
+        comprobarIndice(indice);
+        return new Movimiento(TipoMovimiento.desdeCodigo(getCodigoTipo(indice)),
+                getCentimos(indice), getInstante(indice));
+    }
+
+    /** Devuelve el código del tipo del movimiento sin crear el objeto. */
+    public byte getCodigoTipo(int indice) {
+        comprobarIndice(indice);
+        return tipos.get(TAM_CABECERA + indice);
+    }
+
+    /** Devuelve la cantidad en céntimos del movimiento sin crear el objeto. */
+    public long getCentimos(int indice) {
+        comprobarIndice(indice);
+        return centimos.getLong(indice * 8);
+    }
+
+    /** Devuelve el instante del movimiento sin crear el objeto. */
+    public long getInstante(int indice) {
+        comprobarIndice(indice);
+        return instantes.getLong(indice * 8);
+    }
+
+    @Override
+    public boolean add(Movimiento m) {
+        if (tamano == capacidad) {
+            if (capacidad == CAPACIDAD_MAXIMA) {
+                throw new IllegalStateException("El historial mapeado ha alcanzado su capacidad máxima.");
+            }
+            try {
+                mapear((int) Math.min((long) capacidad * 2, CAPACIDAD_MAXIMA));
+            } catch (IOException e) {
+                throw new IllegalStateException("No se pudo ampliar el historial mapeado: " + e.getMessage(), e);
+            }
+        }
+        tipos.put(TAM_CABECERA + tamano, m.getTipoMovimiento().getCodigo());
+        centimos.putLong(tamano * 8, m.getCentimos());
+        instantes.putLong(tamano * 8, m.getInstante());
+        tamano++;
+        tipos.putLong(8, tamano);
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Amplía las columnas para que quepan al menos {@code capacidadMinima} movimientos, de modo
+     * que al añadir muchos seguidos no haya que volver a mapearlas varias veces.
+     */
+    public void reservar(int capacidadMinima) throws IOException {
+        int nueva = Math.min(capacidadMinima, CAPACIDAD_MAXIMA);
+        if (nueva > capacidad) {
+            mapear(nueva);
+        }
+    }
+
+    /** Fuerza a disco las páginas modificadas de las tres columnas. */
+    public void sincronizar() {
+        tipos.force();
+        centimos.force();
+        instantes.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (canalTipos != null && canalTipos.isOpen()) {
+            sincronizar();
+            canalTipos.close();
+            canalCentimos.close();
+            canalInstantes.close();
+        }
+    }
+
+    // Abre los archivos; si tamanoSnapshot >= 0 el historial se limita a ese número de movimientos
+    private void abrir(int tamanoSnapshot) throws IOException {
+        Path dir = Paths.get(carpeta);
+        Files.createDirectories(dir);
+        canalTipos = abrirCanal(dir.resolve("tipos.col"));
+        canalCentimos = abrirCanal(dir.resolve("centimos.col"));
+        canalInstantes = abrirCanal(dir.resolve("instantes.col"));
+
+        boolean nuevo = canalTipos.size() < TAM_CABECERA;
+        int guardados = 0;
+        if (!nuevo) {
+            long disponibles = Math.min(canalTipos.size() - TAM_CABECERA,
+                    Math.min(canalCentimos.size(), canalInstantes.size()) / 8);
+            capacidad = (int) Math.max(CAPACIDAD_INICIAL, Math.min(disponibles, CAPACIDAD_MAXIMA));
+        } else {
+            capacidad = CAPACIDAD_INICIAL;
+        }
+        mapear(capacidad);
+
+        if (nuevo) {
+            tipos.putInt(0, MAGIA).putInt(4, VERSION).putLong(8, 0L);
+        } else {
+            if (tipos.getInt(0) != MAGIA || tipos.getInt(4) != VERSION) {
+                close();
+                throw new IOException("La carpeta " + carpeta + " no contiene un historial mapeado válido.");
+            }
+            guardados = (int) Math.min(tipos.getLong(8), capacidad);
+        }
+        tamano = tamanoSnapshot >= 0 ? Math.min(tamanoSnapshot, guardados) : guardados;
+        tipos.putLong(8, tamano);
+    }
+
+    private void mapear(int nuevaCapacidad) throws IOException {
+        tipos = canalTipos.map(FileChannel.MapMode.READ_WRITE, 0, TAM_CABECERA + (long) nuevaCapacidad);
+        centimos = canalCentimos.map(FileChannel.MapMode.READ_WRITE, 0, nuevaCapacidad * 8L);
+        instantes = canalInstantes.map(FileChannel.MapMode.READ_WRITE, 0, nuevaCapacidad * 8L);
+        capacidad = nuevaCapacidad;
+    }
+
+    private static FileChannel abrirCanal(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private void comprobarIndice(int indice) {
+        if (indice < 0 || indice >= tamano) {
+            throw new IndexOutOfBoundsException("Índice " + indice + " fuera del historial (tamaño " + tamano + ")");
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        sincronizar();
+        out.defaultWriteObject();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        abrir(tamano);
+    }
+}
@@ -0,0 +1,172 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Historial de una cuenta cargada de un {@link SnapshotBinario} sin leer sus movimientos.
+ *
+ * Al cargar solo se leen la cabecera y el resumen del snapshot (saldo y estadísticas), así que
+ * arrancar cuesta lo mismo tenga la cuenta el historial que tenga. Los movimientos guardados se
+ * leen del archivo por bloques la primera vez que se piden (al listarlos, exportar o consultar) y
+ * se conservan los últimos bloques usados; los que se añaden después se guardan en memoria.
+ * Al leer cada bloque se comprueba su CRC.
+ *
+ * El archivo del snapshot queda abierto hasta {@link #close()}. Si se guarda otro snapshot
+ * encima, se sigue leyendo el anterior, que el sistema mantiene mientras esté abierto.
+ */
+public class HistorialPerezoso extends AbstractList<Movimiento> implements RandomAccess, Serializable, Closeable {
+    private static final long serialVersionUID = 1L;
+
+    private static final int BLOQUES_EN_MEMORIA = 64;
+
+    private final transient FileChannel canal;
+    // Movimientos que hay en el archivo y dónde está el índice de sus bloques
+    private final int enDisco;
+    private final int numBloques;
+    private final long posicionIndice;
+    // Fin de la zona de bloques (donde empieza el resumen)
+    private final long finBloques;
+    // Posición de cada bloque: se lee la primera vez que se accede a un movimiento del archivo
+    private transient long[] posiciones;
+    private final ArrayList<Movimiento> nuevos = new ArrayList<>();
+    private final transient Map<Integer, Bloque> bloques = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Bloque> mayor) {
+            return size() > BLOQUES_EN_MEMORIA;
+        }
+    };
+    // Último bloque usado: al recorrer el historial casi siempre es el siguiente movimiento
+    private transient volatile Bloque ultimo;
+
+    HistorialPerezoso(FileChannel canal, int enDisco, int numBloques, long finBloques, long posicionIndice) {
+        this.canal = canal;
+        this.enDisco = enDisco;
+        this.numBloques = numBloques;
+        this.finBloques = finBloques;
+        this.posicionIndice = posicionIndice;
+    }
+
+    @Override
+    public int size() {
+        return enDisco + nuevos.size();
+    }
+
+    @Override
+    public Movimiento get(int indice) {
+        if (indice >= enDisco) {
+            return nuevos.get(indice - enDisco);
+        }
+        if (indice < 0) {
+            throw new IndexOutOfBoundsException("Índice: " + indice + ", tamaño: " + size());
+        }
+        int b = indice / SnapshotBinario.MOVIMIENTOS_POR_BLOQUE;
+        Bloque bloque = ultimo;
+        if (bloque == null || bloque.numero != b) {
+            bloque = bloque(b);
+            ultimo = bloque;
+        }
+        int k = indice - b * SnapshotBinario.MOVIMIENTOS_POR_BLOQUE;
+        long valor = bloque.valores[k];
+        return new Movimiento(TipoMovimiento.desdeCodigo((byte) (valor & 1)), valor >> 1, bloque.instantes[k]);
+    }
+
+    @Override
+    public boolean add(Movimiento m) {
+        nuevos.add(m);
+        modCount++;
+        return true;
+    }
+
+    /** Prepara la parte en memoria para que quepan {@code capacidadMinima} movimientos en total. */
+    public void reservar(int capacidadMinima) {
+        nuevos.ensureCapacity(capacidadMinima - enDisco);
+    }
+
+    /** Número de movimientos que están en el archivo (el resto se han añadido después). */
+    public int getEnDisco() {
+        return enDisco;
+    }
+
+    /**
+     * Copia del historial que comparte el archivo (y se lee de él por su cuenta) y tiene su propia
+     * parte en memoria: lo que se añada a una no aparece en la otra. Solo se debe cerrar una de
+     * las dos, cuando ninguna se vaya a usar más.
+     */
+    public HistorialPerezoso copia() {
+        HistorialPerezoso c = new HistorialPerezoso(canal, enDisco, numBloques, finBloques, posicionIndice);
+        c.nuevos.addAll(nuevos);
+        return c;
+    }
+
+    @Override
+    public void close() throws IOException {
+        canal.close();
+    }
+
+    /** Bloques del archivo con todos sus movimientos (todos salvo, quizá, el último). */
+    int bloquesCompletos() {
+        return enDisco / SnapshotBinario.MOVIMIENTOS_POR_BLOQUE;
+    }
+
+    /** Posición del bloque {@code b} en el archivo; con b igual al número de bloques, el fin de la zona de bloques. */
+    long posicionBloque(int b) throws IOException {
+        return b == numBloques ? finBloques : posiciones()[b];
+    }
+
+    /** Canal del snapshot, para copiar bloques sin decodificarlos (ver {@link SnapshotBinario#guardar}). */
+    FileChannel getCanal() {
+        return canal;
+    }
+
+    // Las cuentas que aún se guardan con la serialización de Java guardan una lista normal
+    private Object writeReplace() {
+        return new ArrayList<>(this);
+    }
+
+    private Bloque bloque(int b) {
+        synchronized (bloques) {
+            Bloque bloque = bloques.get(b);
+            if (bloque != null) return bloque;
+        }
+        // Se lee fuera del cerrojo: en una exportación en paralelo cada hilo lee sus bloques
+        int esperados = Math.min(SnapshotBinario.MOVIMIENTOS_POR_BLOQUE, enDisco - b * SnapshotBinario.MOVIMIENTOS_POR_BLOQUE);
+        long[] instantes = new long[esperados];
+        long[] valores = new long[esperados];
+        try {
+            SnapshotBinario.leerBloque(canal, posiciones()[b], instantes, valores);
+        } catch (IOException e) {
+            throw new IllegalStateException("No se pudo leer el bloque " + b + " del historial: " + e.getMessage(), e);
+        }
+        Bloque bloque = new Bloque(b, instantes, valores);
+        synchronized (bloques) {
+            bloques.put(b, bloque);
+        }
+        return bloque;
+    }
+
+    private synchronized long[] posiciones() throws IOException {
+        if (posiciones == null) {
+            posiciones = SnapshotBinario.leerIndice(canal, posicionIndice, numBloques);
+        }
+        return posiciones;
+    }
+
+    // Movimientos de un bloque: instante y (céntimos * 2 + código de tipo)
+    private static final class Bloque {
+        final int numero;
+        final long[] instantes;
+        final long[] valores;
+
+        Bloque(int numero, long[] instantes, long[] valores) {
+            this.numero = numero;
+            this.instantes = instantes;
+            this.valores = valores;
+        }
+    }
+}
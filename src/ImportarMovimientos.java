@@ -0,0 +1,554 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+
+/**
+ * Importación de movimientos desde los archivos CSV y JSON que escribe {@link ExportarCuenta}.
+ *
+ * El archivo se mapea en memoria y se recorre byte a byte con un analizador propio, sin crear
+ * cadenas ni objetos intermedios: tipo, cantidad (en céntimos, con ',' o '.' como separador
+ * decimal) y fecha se convierten directamente a sus valores primitivos. Los movimientos se leen
+ * por lotes y cada lote se valida (cantidades no negativas, saldo que nunca queda en descubierto).
+ *
+ * Se hacen dos pasadas: la primera valida el archivo entero y cuenta los movimientos, sin tocar
+ * la cuenta; la segunda reserva sitio en el historial y añade cada lote de una vez, anotado en
+ * el diario de la cuenta como un solo registro (cada movimiento conserva su fecha). Así un
+ * archivo con errores no deja la cuenta a medio importar. Los errores se indican con un
+ * {@link IOException} que lleva el número de línea.
+ */
+public class ImportarMovimientos {
+    private static final int MOVIMIENTOS_POR_LOTE = 64 * 1024;
+    private static final byte[] CABECERA_CSV = "Index;Tipo;Cantidad;Fecha".getBytes(StandardCharsets.US_ASCII);
+    private static final int TAM_FECHA = "yyyy-MM-dd HH:mm:ss".length();
+    private static final long MILIS_POR_DIA = 86_400_000L;
+    private static final TipoMovimiento[] TIPOS = TipoMovimiento.values();
+    private static final byte[][] NOMBRES_TIPO = new byte[TIPOS.length][];
+
+    static {
+        for (int t = 0; t < TIPOS.length; t++) {
+            NOMBRES_TIPO[t] = TIPOS[t].getNombre().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Importa los movimientos del archivo en la cuenta. El formato se deduce de la extensión
+     * (.csv o .json) o, si no la tiene, del contenido. Devuelve el número de movimientos añadidos.
+     */
+    public static int importar(Cuenta cuenta, Path origen) throws IOException {
+        return importar(cuenta, origen, null);
+    }
+
+    /**
+     * Importa los movimientos de un archivo con el formato indicado (CSV o JSON; null para
+     * deducirlo). Devuelve el número de movimientos añadidos.
+     */
+    public static int importar(Cuenta cuenta, Path origen, FormatoExportacion formato) throws IOException {
+        if (formato == FormatoExportacion.XML) {
+            throw new IllegalArgumentException("Solo se pueden importar archivos CSV o JSON.");
+        }
+        try (FileChannel canal = FileChannel.open(origen, StandardOpenOption.READ)) {
+            long tamano = canal.size();
+            if (tamano > Integer.MAX_VALUE) {
+                throw new IOException("El archivo " + origen + " es demasiado grande para importarlo de una vez.");
+            }
+            ByteBuffer datos = canal.map(FileChannel.MapMode.READ_ONLY, 0, tamano);
+            if (formato == null) {
+                formato = deducirFormato(origen, datos);
+            }
+
+            // Primera pasada: se valida todo el archivo sin tocar la cuenta
+            Lote lote = new Lote();
+            long saldo = cuenta.getSaldoCentimos();
+            int total = 0;
+            Lector lector = lector(formato, datos);
+            while (lector.leer(lote)) {
+                saldo = validar(lote, saldo);
+                total += lote.tamano;
+            }
+
+            // Segunda pasada: se añaden los movimientos, ya sabiendo cuántos son, un lote cada vez
+            cuenta.reservarMovimientos(total);
+            lector = lector(formato, datos);
+            int importados = 0;
+            while (lector.leer(lote)) {
+                Movimiento[] movimientos = new Movimiento[lote.tamano];
+                for (int i = 0; i < lote.tamano; i++) {
+                    movimientos[i] = new Movimiento(TIPOS[lote.tipos[i]], lote.centimos[i], lote.instantes[i]);
+                }
+                try {
+                    cuenta.anadirLote(movimientos);
+                } catch (IllegalStateException e) {
+                    throw new IOException("Línea " + lote.lineas[0] + ": no se ha podido añadir el lote que empieza aquí ("
+                            + e.getMessage() + "); se han importado " + importados + " movimientos.", e);
+                }
+                importados += lote.tamano;
+            }
+            return total;
+        }
+    }
+
+    private static FormatoExportacion deducirFormato(Path origen, ByteBuffer datos) {
+        String nombre = origen.getFileName().toString().toLowerCase();
+        if (nombre.endsWith(".json")) return FormatoExportacion.JSON;
+        if (nombre.endsWith(".csv")) return FormatoExportacion.CSV;
+        for (int i = inicioContenido(datos); i < datos.limit(); i++) {
+            byte b = datos.get(i);
+            if (!esEspacio(b)) {
+                return b == '{' ? FormatoExportacion.JSON : FormatoExportacion.CSV;
+            }
+        }
+        return FormatoExportacion.CSV;
+    }
+
+    private static Lector lector(FormatoExportacion formato, ByteBuffer datos) throws IOException {
+        return formato == FormatoExportacion.JSON ? new LectorJson(datos) : new LectorCsv(datos);
+    }
+
+    // Comprueba las cantidades del lote y que ninguna retirada deje la cuenta en descubierto;
+    // devuelve el saldo tras el lote
+    private static long validar(Lote lote, long saldo) throws IOException {
+        for (int i = 0; i < lote.tamano; i++) {
+            long centimos = lote.centimos[i];
+            if (centimos < 0) {
+                throw error(lote.lineas[i], "la cantidad no puede ser negativa.");
+            }
+            if (TIPOS[lote.tipos[i]] == TipoMovimiento.RETIRADA) {
+                if (centimos > saldo) {
+                    throw error(lote.lineas[i], "la retirada deja la cuenta en descubierto.");
+                }
+                saldo -= centimos;
+            } else {
+                if (centimos > Long.MAX_VALUE - saldo) {
+                    throw error(lote.lineas[i], "el saldo resultante es demasiado grande.");
+                }
+                saldo += centimos;
+            }
+        }
+        return saldo;
+    }
+
+    private static IOException error(int linea, String mensaje) {
+        return new IOException("Línea " + linea + ": " + mensaje);
+    }
+
+    // Salta la marca de orden de bytes UTF-8 si el archivo la tiene
+    private static int inicioContenido(ByteBuffer datos) {
+        if (datos.limit() >= 3 && datos.get(0) == (byte) 0xEF && datos.get(1) == (byte) 0xBB && datos.get(2) == (byte) 0xBF) {
+            return 3;
+        }
+        return 0;
+    }
+
+    private static boolean esEspacio(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    private static boolean esDigito(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    // Movimientos leídos del archivo, por columnas
+    private static final class Lote {
+        final byte[] tipos = new byte[MOVIMIENTOS_POR_LOTE];
+        final long[] centimos = new long[MOVIMIENTOS_POR_LOTE];
+        final long[] instantes = new long[MOVIMIENTOS_POR_LOTE];
+        final int[] lineas = new int[MOVIMIENTOS_POR_LOTE];
+        int tamano;
+    }
+
+    /** Analizador común: recorre el buffer mapeado y convierte los valores de cada movimiento. */
+    private abstract static class Lector {
+        final ByteBuffer datos;
+        final int fin;
+        int pos;
+        int linea = 1;
+        // Último día convertido: en un historial suele haber muchos movimientos seguidos del mismo día
+        private int ultimaFecha = -1;
+        private long ultimoDia;
+
+        Lector(ByteBuffer datos) {
+            this.datos = datos;
+            this.fin = datos.limit();
+            this.pos = inicioContenido(datos);
+        }
+
+        /** Llena el lote con los siguientes movimientos; devuelve false si no queda ninguno. */
+        final boolean leer(Lote lote) throws IOException {
+            lote.tamano = 0;
+            while (lote.tamano < MOVIMIENTOS_POR_LOTE && siguiente(lote, lote.tamano)) {
+                lote.tamano++;
+            }
+            return lote.tamano > 0;
+        }
+
+        /** Lee un movimiento en la posición {@code i} del lote; devuelve false al final de la lista. */
+        abstract boolean siguiente(Lote lote, int i) throws IOException;
+
+        IOException error(String mensaje) {
+            return ImportarMovimientos.error(linea, mensaje);
+        }
+
+        // Índice del tipo cuyo nombre ocupa [inicio, fin)
+        byte tipo(int inicio, int fin) throws IOException {
+            for (int t = 0; t < NOMBRES_TIPO.length; t++) {
+                if (iguales(inicio, fin, NOMBRES_TIPO[t])) return (byte) t;
+            }
+            throw error("tipo de movimiento desconocido: " + texto(inicio, fin));
+        }
+
+        boolean iguales(int inicio, int fin, byte[] esperado) {
+            if (fin - inicio != esperado.length) return false;
+            for (int k = 0; k < esperado.length; k++) {
+                if (datos.get(inicio + k) != esperado[k]) return false;
+            }
+            return true;
+        }
+
+        String texto(int inicio, int fin) {
+            byte[] bytes = new byte[Math.min(fin - inicio, 64)];
+            for (int k = 0; k < bytes.length; k++) bytes[k] = datos.get(inicio + k);
+            return "\"" + new String(bytes, StandardCharsets.UTF_8) + "\"";
+        }
+
+        /**
+         * Lee una cantidad desde pos: signo opcional, parte entera y hasta dos decimales tras ','
+         * o '.'. Una ',' solo se toma como separador decimal si le sigue un dígito. Deja pos
+         * detrás del número y devuelve la cantidad en céntimos.
+         */
+        long cantidad() throws IOException {
+            boolean negativa = pos < fin && datos.get(pos) == '-';
+            if (negativa) pos++;
+            int inicio = pos;
+            long entera = 0;
+            while (pos < fin && esDigito(datos.get(pos))) {
+                if (pos - inicio >= 16) throw error("cantidad demasiado grande.");
+                entera = entera * 10 + (datos.get(pos++) - '0');
+            }
+            if (pos == inicio) throw error("se esperaba una cantidad.");
+            long decimales = 0;
+            if (pos + 1 < fin && (datos.get(pos) == '.' || datos.get(pos) == ',') && esDigito(datos.get(pos + 1))) {
+                pos++;
+                decimales = (datos.get(pos++) - '0') * 10;
+                if (pos < fin && esDigito(datos.get(pos))) {
+                    decimales += datos.get(pos++) - '0';
+                }
+                if (pos < fin && esDigito(datos.get(pos))) throw error("la cantidad tiene más de dos decimales.");
+            }
+            long centimos = entera * 100 + decimales;
+            return negativa ? -centimos : centimos;
+        }
+
+        /** Convierte una fecha yyyy-MM-dd HH:mm:ss que ocupa [inicio, fin) a su instante. */
+        long fecha(int inicio, int fin) throws IOException {
+            if (fin - inicio != TAM_FECHA || datos.get(inicio + 4) != '-' || datos.get(inicio + 7) != '-'
+                    || datos.get(inicio + 10) != ' ' || datos.get(inicio + 13) != ':' || datos.get(inicio + 16) != ':') {
+                throw error("fecha no válida: " + texto(inicio, fin));
+            }
+            int anio = digitos(inicio, 4, fin);
+            int mes = digitos(inicio + 5, 2, fin);
+            int dia = digitos(inicio + 8, 2, fin);
+            int hora = digitos(inicio + 11, 2, fin);
+            int minuto = digitos(inicio + 14, 2, fin);
+            int segundo = digitos(inicio + 17, 2, fin);
+            if (hora > 23 || minuto > 59 || segundo > 59) {
+                throw error("fecha no válida: " + texto(inicio, fin));
+            }
+            int clave = anio * 10000 + mes * 100 + dia;
+            if (clave != ultimaFecha) {
+                try {
+                    ultimoDia = LocalDate.of(anio, mes, dia).toEpochDay();
+                } catch (DateTimeException e) {
+                    throw error("fecha no válida: " + texto(inicio, fin));
+                }
+                ultimaFecha = clave;
+            }
+            return ultimoDia * MILIS_POR_DIA + (hora * 3600L + minuto * 60L + segundo) * 1000L;
+        }
+
+        private int digitos(int inicio, int n, int finFecha) throws IOException {
+            int valor = 0;
+            for (int k = inicio; k < inicio + n; k++) {
+                byte b = datos.get(k);
+                if (!esDigito(b)) throw error("fecha no válida: " + texto(finFecha - TAM_FECHA, finFecha));
+                valor = valor * 10 + (b - '0');
+            }
+            return valor;
+        }
+    }
+
+    /**
+     * CSV: se saltan los metadatos hasta la línea {@code Index;Tipo;Cantidad;Fecha} y se leen
+     * líneas {@code índice;tipo;cantidad;fecha} hasta la primera línea vacía o de comentario.
+     */
+    private static final class LectorCsv extends Lector {
+        private boolean terminado;
+        private long indiceEsperado = 1;
+
+        LectorCsv(ByteBuffer datos) throws IOException {
+            super(datos);
+            while (true) {
+                if (pos >= fin) {
+                    throw error("no se encuentra la cabecera de movimientos Index;Tipo;Cantidad;Fecha.");
+                }
+                int finLinea = finLinea();
+                boolean cabecera = iguales(pos, finContenido(pos, finLinea), CABECERA_CSV);
+                saltarLinea(finLinea);
+                if (cabecera) break;
+            }
+        }
+
+        @Override
+        boolean siguiente(Lote lote, int i) throws IOException {
+            if (terminado || pos >= fin) return false;
+            int finLinea = finLinea();
+            int finDatos = finContenido(pos, finLinea);
+            if (finDatos == pos || datos.get(pos) == '#') {
+                // Tras los movimientos viene una línea vacía y el resumen
+                terminado = true;
+                return false;
+            }
+
+            int campo = pos;
+            int sep = separador(campo, finDatos);
+            long indice = 0;
+            for (int k = campo; k < sep; k++) {
+                byte b = datos.get(k);
+                if (!esDigito(b) || k - campo >= 18) throw error("índice no válido: " + texto(campo, sep));
+                indice = indice * 10 + (b - '0');
+            }
+            if (sep == campo || indice != indiceEsperado) {
+                throw error("se esperaba el índice " + indiceEsperado + " y se ha encontrado " + texto(campo, sep) + ".");
+            }
+
+            campo = sep + 1;
+            sep = separador(campo, finDatos);
+            lote.tipos[i] = tipo(campo, sep);
+
+            campo = sep + 1;
+            sep = separador(campo, finDatos);
+            pos = campo;
+            lote.centimos[i] = cantidad();
+            if (pos != sep) throw error("cantidad no válida: " + texto(campo, sep));
+
+            lote.instantes[i] = fecha(sep + 1, finDatos);
+            lote.lineas[i] = linea;
+            indiceEsperado++;
+            saltarLinea(finLinea);
+            return true;
+        }
+
+        // Posición del siguiente ';' antes de finDatos
+        private int separador(int desde, int finDatos) throws IOException {
+            for (int k = desde; k < finDatos; k++) {
+                if (datos.get(k) == ';') return k;
+            }
+            throw error("faltan campos; se esperaba índice;tipo;cantidad;fecha.");
+        }
+
+        private int finLinea() {
+            int k = pos;
+            while (k < fin && datos.get(k) != '\n') k++;
+            return k;
+        }
+
+        // Fin de la línea sin el '\r' ni los espacios finales
+        private int finContenido(int inicio, int finLinea) {
+            int k = finLinea;
+            while (k > inicio && (datos.get(k - 1) == '\r' || datos.get(k - 1) == ' ')) k--;
+            return k;
+        }
+
+        private void saltarLinea(int finLinea) {
+            pos = Math.min(finLinea + 1, fin);
+            linea++;
+        }
+    }
+
+    /**
+     * JSON: se busca el array {@code "movimientos"} (a cualquier nivel) y se lee cada objeto con
+     * los campos {@code tipo}, {@code cantidad} y {@code fecha}, en cualquier orden. El resto del
+     * documento se salta sin interpretarlo.
+     */
+    private static final class LectorJson extends Lector {
+        private static final byte[] MOVIMIENTOS = "movimientos".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] TIPO = "tipo".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] CANTIDAD = "cantidad".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] FECHA = "fecha".getBytes(StandardCharsets.US_ASCII);
+        private static final int MAX_PROFUNDIDAD = 64;
+
+        private boolean terminado;
+        private boolean primero = true;
+        // Límites de la última cadena leída (sin comillas)
+        private int inicioCadena;
+        private int finCadena;
+
+        LectorJson(ByteBuffer datos) throws IOException {
+            super(datos);
+            saltarEspacios();
+            if (!buscarMovimientos(0)) {
+                throw error("no se encuentra la lista \"movimientos\".");
+            }
+        }
+
+        // Recorre el valor que empieza en pos; si encuentra "movimientos": [ deja pos dentro del array
+        private boolean buscarMovimientos(int profundidad) throws IOException {
+            if (profundidad > MAX_PROFUNDIDAD) throw error("documento JSON demasiado anidado.");
+            if (pos >= fin || datos.get(pos) != '{') {
+                saltarValor(profundidad);
+                return false;
+            }
+            pos++;
+            saltarEspacios();
+            if (consumir('}')) return false;
+            do {
+                saltarEspacios();
+                cadena();
+                boolean esMovimientos = iguales(inicioCadena, finCadena, MOVIMIENTOS);
+                saltarEspacios();
+                esperar(':');
+                saltarEspacios();
+                if (esMovimientos && pos < fin && datos.get(pos) == '[') {
+                    pos++;
+                    return true;
+                }
+                if (buscarMovimientos(profundidad + 1)) return true;
+                saltarEspacios();
+            } while (consumir(','));
+            esperar('}');
+            return false;
+        }
+
+        @Override
+        boolean siguiente(Lote lote, int i) throws IOException {
+            if (terminado) return false;
+            saltarEspacios();
+            if (consumir(']')) {
+                terminado = true;
+                return false;
+            }
+            if (!primero) {
+                esperar(',');
+                saltarEspacios();
+            }
+            primero = false;
+            esperar('{');
+            int lineaInicio = linea;
+            boolean hayTipo = false, hayCantidad = false, hayFecha = false;
+            saltarEspacios();
+            if (!consumir('}')) {
+                do {
+                    saltarEspacios();
+                    cadena();
+                    int inicioClave = inicioCadena, finClave = finCadena;
+                    saltarEspacios();
+                    esperar(':');
+                    saltarEspacios();
+                    if (iguales(inicioClave, finClave, TIPO)) {
+                        cadena();
+                        lote.tipos[i] = tipo(inicioCadena, finCadena);
+                        hayTipo = true;
+                    } else if (iguales(inicioClave, finClave, CANTIDAD)) {
+                        lote.centimos[i] = cantidad();
+                        hayCantidad = true;
+                    } else if (iguales(inicioClave, finClave, FECHA)) {
+                        cadena();
+                        lote.instantes[i] = fecha(inicioCadena, finCadena);
+                        hayFecha = true;
+                    } else {
+                        saltarValor(0);
+                    }
+                    saltarEspacios();
+                } while (consumir(','));
+                esperar('}');
+            }
+            if (!hayTipo || !hayCantidad || !hayFecha) {
+                throw ImportarMovimientos.error(lineaInicio, "al movimiento le falta el campo "
+                        + (!hayTipo ? "tipo" : !hayCantidad ? "cantidad" : "fecha") + ".");
+            }
+            lote.lineas[i] = lineaInicio;
+            return true;
+        }
+
+        /**
+         * Lee una cadena desde pos. Los valores de este formato no llevan caracteres escapados:
+         * si aparece alguno la cadena se acepta como clave desconocida pero no se compara igual a
+         * ningún nombre, y un tipo o una fecha con escapes dan error.
+         */
+        private void cadena() throws IOException {
+            esperar('"');
+            inicioCadena = pos;
+            while (true) {
+                if (pos >= fin) throw error("cadena sin cerrar.");
+                byte b = datos.get(pos);
+                if (b == '"') break;
+                if (b == '\\') pos++;
+                else if (b == '\n') throw error("cadena sin cerrar.");
+                pos++;
+            }
+            finCadena = pos++;
+        }
+
+        // Salta un valor cualquiera (objeto, array, cadena, número o literal)
+        private void saltarValor(int profundidad) throws IOException {
+            if (profundidad > MAX_PROFUNDIDAD) throw error("documento JSON demasiado anidado.");
+            if (pos >= fin) throw error("fin de archivo inesperado.");
+            byte b = datos.get(pos);
+            if (b == '"') {
+                cadena();
+            } else if (b == '{' || b == '[') {
+                char cierre = b == '{' ? '}' : ']';
+                pos++;
+                saltarEspacios();
+                if (consumir(cierre)) return;
+                do {
+                    saltarEspacios();
+                    if (cierre == '}') {
+                        cadena();
+                        saltarEspacios();
+                        esperar(':');
+                        saltarEspacios();
+                    }
+                    saltarValor(profundidad + 1);
+                    saltarEspacios();
+                } while (consumir(','));
+                esperar(cierre);
+            } else {
+                // Número o literal; una ',' seguida de un dígito es el separador decimal de una cantidad
+                int inicio = pos;
+                while (pos < fin && !esEspacio(datos.get(pos)) && datos.get(pos) != '}' && datos.get(pos) != ']'
+                        && (datos.get(pos) != ',' || (pos + 1 < fin && esDigito(datos.get(pos + 1))))) {
+                    pos++;
+                }
+                if (pos == inicio) throw error("se esperaba un valor.");
+            }
+        }
+
+        private void saltarEspacios() {
+            while (pos < fin) {
+                byte b = datos.get(pos);
+                if (b == '\n') linea++;
+                else if (b != ' ' && b != '\t' && b != '\r') return;
+                pos++;
+            }
+        }
+
+        private boolean consumir(char c) {
+            if (pos < fin && datos.get(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void esperar(char c) throws IOException {
+            if (!consumir(c)) {
+                throw error(pos < fin ? "se esperaba '" + c + "'." : "fin de archivo inesperado; se esperaba '" + c + "'.");
+            }
+        }
+    }
+}
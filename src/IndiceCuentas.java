@@ -0,0 +1,237 @@
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Índice de cuentas por id numérico, repartido en fragmentos (shards).
+ *
+ * Cada fragmento es una tabla hash de direccionamiento abierto con claves {@code long} primitivas
+ * (sin objetos Long ni nodos por entrada) protegida por su propio {@link StampedLock}.
+ * Las búsquedas usan lectura optimista y solo toman el cerrojo si coinciden con una escritura,
+ * así que las lecturas escalan con el número de núcleos.
+ */
+public class IndiceCuentas {
+    private static final int CAPACIDAD_INICIAL = 16;
+
+    private final Fragmento[] fragmentos;
+    private final int mascaraFragmentos;
+
+    public IndiceCuentas(int fragmentosMinimos) {
+        int n = Integer.highestOneBit(Math.max(1, fragmentosMinimos - 1)) << 1;
+        fragmentos = new Fragmento[n];
+        for (int i = 0; i < n; i++) {
+            fragmentos[i] = new Fragmento();
+        }
+        mascaraFragmentos = n - 1;
+    }
+
+    /** Devuelve la cuenta con ese id, o null si no está en el índice. */
+    public CuentaConcurrente get(long id) {
+        long h = mezclar(id);
+        return fragmento(h).get(id, h);
+    }
+
+    /**
+     * Añade la cuenta si el id no estaba. Devuelve la cuenta que queda en el índice
+     * (la existente si ya había una).
+     */
+    public CuentaConcurrente putIfAbsent(long id, CuentaConcurrente cuenta) {
+        long h = mezclar(id);
+        return fragmento(h).putIfAbsent(id, h, cuenta);
+    }
+
+    /** Quita la cuenta con ese id. Devuelve la que había o null. */
+    public CuentaConcurrente remove(long id) {
+        long h = mezclar(id);
+        return fragmento(h).remove(id, h, null);
+    }
+
+    /** Quita la cuenta con ese id solo si es {@code cuenta}. Devuelve si se ha quitado. */
+    public boolean remove(long id, CuentaConcurrente cuenta) {
+        long h = mezclar(id);
+        return fragmento(h).remove(id, h, cuenta) != null;
+    }
+
+    /** Número total de cuentas en el índice. */
+    public int size() {
+        int total = 0;
+        for (Fragmento f : fragmentos) {
+            total += f.tamano();
+        }
+        return total;
+    }
+
+    /** Recorre todas las cuentas del índice (fragmento a fragmento) junto con su id. */
+    public void forEach(ObjLongConsumer<CuentaConcurrente> accion) {
+        for (Fragmento f : fragmentos) {
+            f.forEach(accion);
+        }
+    }
+
+    private Fragmento fragmento(long hash) {
+        return fragmentos[(int) (hash >>> 40) & mascaraFragmentos];
+    }
+
+    // Mezcla de bits (finalizador de MurmurHash3) para repartir bien ids consecutivos
+    private static long mezclar(long x) {
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x;
+    }
+
+    // Claves y valores van juntos para que una lectura optimista nunca mezcle tablas distintas
+    private static final class Tabla {
+        final long[] claves;
+        final CuentaConcurrente[] valores;
+
+        Tabla(int capacidad) {
+            claves = new long[capacidad];
+            valores = new CuentaConcurrente[capacidad];
+        }
+    }
+
+    private static final class Fragmento {
+        private final StampedLock cerrojo = new StampedLock();
+        private Tabla tabla = new Tabla(CAPACIDAD_INICIAL);
+        private int tamano;
+
+        CuentaConcurrente get(long id, long hash) {
+            long sello = cerrojo.tryOptimisticRead();
+            CuentaConcurrente encontrada = buscar(tabla, id, hash);
+            if (!cerrojo.validate(sello)) {
+                sello = cerrojo.readLock();
+                try {
+                    encontrada = buscar(tabla, id, hash);
+                } finally {
+                    cerrojo.unlockRead(sello);
+                }
+            }
+            return encontrada;
+        }
+
+        CuentaConcurrente putIfAbsent(long id, long hash, CuentaConcurrente cuenta) {
+            long sello = cerrojo.writeLock();
+            try {
+                CuentaConcurrente existente = buscar(tabla, id, hash);
+                if (existente != null) {
+                    return existente;
+                }
+                if ((tamano + 1) * 4 > tabla.claves.length * 3) {
+                    redimensionar(tabla.claves.length * 2);
+                }
+                insertar(tabla, id, hash, cuenta);
+                tamano++;
+                return cuenta;
+            } finally {
+                cerrojo.unlockWrite(sello);
+            }
+        }
+
+        // Con esperada distinta de null solo se quita si es la que está en el índice
+        CuentaConcurrente remove(long id, long hash, CuentaConcurrente esperada) {
+            long sello = cerrojo.writeLock();
+            try {
+                Tabla t = tabla;
+                int mascara = t.claves.length - 1;
+                int i = (int) hash & mascara;
+                while (t.valores[i] != null) {
+                    if (t.claves[i] == id) {
+                        CuentaConcurrente quitada = t.valores[i];
+                        if (esperada != null && quitada != esperada) {
+                            return null;
+                        }
+                        borrarDesplazando(t, i);
+                        tamano--;
+                        return quitada;
+                    }
+                    i = (i + 1) & mascara;
+                }
+                return null;
+            } finally {
+                cerrojo.unlockWrite(sello);
+            }
+        }
+
+        int tamano() {
+            long sello = cerrojo.readLock();
+            try {
+                return tamano;
+            } finally {
+                cerrojo.unlockRead(sello);
+            }
+        }
+
+        void forEach(ObjLongConsumer<CuentaConcurrente> accion) {
+            long[] claves;
+            CuentaConcurrente[] valores;
+            long sello = cerrojo.readLock();
+            try {
+                claves = tabla.claves.clone();
+                valores = tabla.valores.clone();
+            } finally {
+                cerrojo.unlockRead(sello);
+            }
+            for (int i = 0; i < valores.length; i++) {
+                if (valores[i] != null) accion.accept(valores[i], claves[i]);
+            }
+        }
+
+        // Puede ejecutarse sin cerrojo (lectura optimista): no debe fallar aunque la tabla cambie.
+        // Como mucho da una vuelta completa a la tabla.
+        private static CuentaConcurrente buscar(Tabla t, long id, long hash) {
+            int mascara = t.claves.length - 1;
+            int i = (int) hash & mascara;
+            for (int intentos = 0; intentos <= mascara; intentos++) {
+                CuentaConcurrente v = t.valores[i];
+                if (v == null) return null;
+                if (t.claves[i] == id) return v;
+                i = (i + 1) & mascara;
+            }
+            return null;
+        }
+
+        private static void insertar(Tabla t, long id, long hash, CuentaConcurrente cuenta) {
+            int mascara = t.claves.length - 1;
+            int i = (int) hash & mascara;
+            while (t.valores[i] != null) {
+                i = (i + 1) & mascara;
+            }
+            t.claves[i] = id;
+            t.valores[i] = cuenta;
+        }
+
+        // Borrado en sondeo lineal: se recolocan las entradas siguientes para no dejar huecos
+        private static void borrarDesplazando(Tabla t, int hueco) {
+            int mascara = t.claves.length - 1;
+            int i = hueco;
+            while (true) {
+                i = (i + 1) & mascara;
+                CuentaConcurrente v = t.valores[i];
+                if (v == null) break;
+                int ideal = (int) mezclar(t.claves[i]) & mascara;
+                // Se mueve si su posición ideal no está en el tramo (hueco, i]
+                boolean mover = hueco <= i ? (ideal <= hueco || ideal > i) : (ideal <= hueco && ideal > i);
+                if (mover) {
+                    t.claves[hueco] = t.claves[i];
+                    t.valores[hueco] = v;
+                    hueco = i;
+                }
+            }
+            t.claves[hueco] = 0L;
+            t.valores[hueco] = null;
+        }
+
+        private void redimensionar(int capacidad) {
+            Tabla nueva = new Tabla(capacidad);
+            Tabla vieja = tabla;
+            for (int i = 0; i < vieja.valores.length; i++) {
+                if (vieja.valores[i] != null) {
+                    insertar(nueva, vieja.claves[i], mezclar(vieja.claves[i]), vieja.valores[i]);
+                }
+            }
+            tabla = nueva;
+        }
+    }
+}
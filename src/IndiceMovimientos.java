@@ -0,0 +1,162 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Índice del historial de una cuenta por instante y por tipo.
+ *
+ * Guarda en arrays primitivos el instante y el tipo de cada movimiento, y para cada tipo la lista
+ * de posiciones. Como los movimientos llegan casi siempre en orden de fecha, las búsquedas por
+ * intervalo son una búsqueda binaria sobre esos arrays, sin leer ni crear ningún {@link Movimiento}.
+ * Si alguna vez se añade un movimiento anterior al último (por ejemplo al importar), se construye
+ * una permutación ordenada la próxima vez que se consulta.
+ *
+ * El índice no se actualiza en cada operación: antes de cada consulta se pone al día leyendo solo
+ * los movimientos añadidos desde la anterior.
+ */
+public class IndiceMovimientos {
+    /** Valor de tipo que significa "cualquier tipo". */
+    public static final int TODOS = -1;
+    private static final int NUM_TIPOS = 2;
+
+    private long[] instantes = new long[16];
+    private byte[] tipos = new byte[16];
+    private int tamano;
+    private final int[][] porTipo = new int[NUM_TIPOS][16];
+    private final int[] tamanoPorTipo = new int[NUM_TIPOS];
+
+    private boolean ordenado = true;
+    // Solo si el historial no está ordenado: posiciones ordenadas por instante (null = por construir)
+    private int[] orden;
+    private int[][] ordenPorTipo;
+
+    /** Añade al índice los movimientos del historial que aún no tiene. */
+    public synchronized void actualizar(List<Movimiento> historial) {
+        int n = historial.size();
+        if (n < tamano) {
+            // El historial se ha sustituido por otro más corto: se indexa de nuevo
+            tamano = 0;
+            Arrays.fill(tamanoPorTipo, 0);
+            ordenado = true;
+            orden = null;
+        }
+        if (n == tamano) return;
+
+        asegurarCapacidad(n);
+        HistorialMapeado mapeado = historial instanceof HistorialMapeado ? (HistorialMapeado) historial : null;
+        for (int i = tamano; i < n; i++) {
+            long instante;
+            byte tipo;
+            if (mapeado != null) {
+                instante = mapeado.getInstante(i);
+                tipo = mapeado.getCodigoTipo(i);
+            } else {
+                Movimiento m = historial.get(i);
+                instante = m.getInstante();
+                tipo = m.getTipoMovimiento().getCodigo();
+            }
+            if (i > 0 && instante < instantes[i - 1]) {
+                ordenado = false;
+            }
+            instantes[i] = instante;
+            tipos[i] = tipo;
+            int[] lista = porTipo[tipo];
+            if (tamanoPorTipo[tipo] == lista.length) {
+                lista = porTipo[tipo] = Arrays.copyOf(lista, lista.length * 2);
+            }
+            lista[tamanoPorTipo[tipo]++] = i;
+        }
+        tamano = n;
+        orden = null;
+    }
+
+    /** Número de movimientos con instante en [desde, hasta) y del tipo indicado (o {@link #TODOS}). */
+    public synchronized int contar(long desde, long hasta, int tipo) {
+        prepararOrden();
+        return Math.max(0, limiteInferior(tipo, hasta) - limiteInferior(tipo, desde));
+    }
+
+    /**
+     * Devuelve las posiciones en el historial de los movimientos con instante en [desde, hasta)
+     * y del tipo indicado, en orden de fecha, saltando los {@code saltar} primeros y devolviendo
+     * como mucho {@code limite}.
+     */
+    public synchronized int[] buscar(long desde, long hasta, int tipo, int saltar, int limite) {
+        prepararOrden();
+        // En long: con saltar o limite cerca de Integer.MAX_VALUE (sin límite) la suma no cabe en un int
+        long inicio = (long) limiteInferior(tipo, desde) + Math.max(0, saltar);
+        int fin = (int) Math.min(limiteInferior(tipo, hasta), inicio + Math.max(0, limite));
+        if (fin <= inicio) return new int[0];
+        int primero = (int) inicio;
+        int[] resultado = new int[fin - primero];
+        for (int k = primero; k < fin; k++) {
+            resultado[k - primero] = posicion(tipo, k);
+        }
+        return resultado;
+    }
+
+    // Primera posición de la secuencia (ordenada por instante) cuyo instante es >= valor
+    private int limiteInferior(int tipo, long valor) {
+        int lo = 0;
+        int hi = longitud(tipo);
+        while (lo < hi) {
+            int medio = (lo + hi) >>> 1;
+            if (instantes[posicion(tipo, medio)] < valor) lo = medio + 1;
+            else hi = medio;
+        }
+        return lo;
+    }
+
+    private int longitud(int tipo) {
+        return tipo == TODOS ? tamano : tamanoPorTipo[tipo];
+    }
+
+    // Posición en el historial del k-ésimo movimiento (en orden de fecha) de la secuencia
+    private int posicion(int tipo, int k) {
+        if (ordenado) {
+            return tipo == TODOS ? k : porTipo[tipo][k];
+        }
+        return tipo == TODOS ? orden[k] : ordenPorTipo[tipo][k];
+    }
+
+    private void prepararOrden() {
+        if (ordenado || orden != null) return;
+        int[] todas = new int[tamano];
+        for (int i = 0; i < tamano; i++) todas[i] = i;
+        ordenarPorInstante(todas);
+        int[][] separadas = new int[NUM_TIPOS][];
+        int[] cuenta = new int[NUM_TIPOS];
+        for (int t = 0; t < NUM_TIPOS; t++) separadas[t] = new int[tamanoPorTipo[t]];
+        for (int p : todas) {
+            int t = tipos[p];
+            separadas[t][cuenta[t]++] = p;
+        }
+        orden = todas;
+        ordenPorTipo = separadas;
+    }
+
+    // Ordenación estable (mezcla) de posiciones según su instante, sin crear objetos por elemento
+    private void ordenarPorInstante(int[] posiciones) {
+        int[] auxiliar = new int[posiciones.length];
+        for (int ancho = 1; ancho < posiciones.length; ancho *= 2) {
+            for (int izq = 0; izq < posiciones.length - ancho; izq += 2 * ancho) {
+                int medio = izq + ancho;
+                int fin = Math.min(izq + 2 * ancho, posiciones.length);
+                int i = izq, j = medio, k = izq;
+                while (i < medio && j < fin) {
+                    auxiliar[k++] = instantes[posiciones[j]] < instantes[posiciones[i]] ? posiciones[j++] : posiciones[i++];
+                }
+                while (i < medio) auxiliar[k++] = posiciones[i++];
+                while (j < fin) auxiliar[k++] = posiciones[j++];
+                System.arraycopy(auxiliar, izq, posiciones, izq, fin - izq);
+            }
+        }
+    }
+
+    private void asegurarCapacidad(int n) {
+        if (n > instantes.length) {
+            int nueva = Math.max(n, instantes.length * 2);
+            instantes = Arrays.copyOf(instantes, nueva);
+            tipos = Arrays.copyOf(tipos, nueva);
+        }
+    }
+}
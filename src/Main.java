@@ -1,6 +1,16 @@
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Scanner;
 
 
@@ -9,8 +19,32 @@ public class Main {
     private static final String CARPETA_DATOS = "datos";
     // Archivo donde se serializa la instancia de Cuenta
     private static final String ARCHIVO_CUENTA = CARPETA_DATOS + File.separator + "cuenta.dat";
+    // Diario con las operaciones posteriores al último snapshot de la cuenta
+    private static final String ARCHIVO_DIARIO = CARPETA_DATOS + File.separator + "cuenta.log";
+    // Cada cuántos movimientos se guarda un snapshot nuevo (en segundo plano, ver PlanificadorSnapshots)
+    // y cada cuánto tiempo, si ha habido alguno; se pueden cambiar con -Dcuenta.snapshot.movimientos
+    // y -Dcuenta.snapshot.intervalo (en milisegundos)
+    private static final int OPERACIONES_POR_SNAPSHOT = Integer.getInteger("cuenta.snapshot.movimientos", 1000);
+    private static final long INTERVALO_SNAPSHOT_MS = Long.getLong("cuenta.snapshot.intervalo", 60_000L);
+    // Agrupación de fsync del diario: cada N registros o, como mucho, cada X milisegundos
+    private static final int DIARIO_LOTE_SYNC = 32;
+    private static final long DIARIO_INTERVALO_SYNC_MS = 200;
+    // Movimientos por página al listarlos (opciones 4 y 7); se puede cambiar con -Dcuenta.pagina
+    private static final int MOVIMIENTOS_POR_PAGINA = Math.max(1, Integer.getInteger("cuenta.pagina", 25));
+    // Buffer de la salida por consola de los listados
+    private static final int TAM_BUFFER_CONSOLA = 64 * 1024;
+    // Carpeta del historial por columnas (solo con -Dcuenta.historial=mapeado)
+    private static final String CARPETA_HISTORIAL = CARPETA_DATOS + File.separator + "historial";
+    // Carpeta de los segmentos del historial por niveles (solo con -Dcuenta.historial=escalonado)
+    private static final String CARPETA_SEGMENTOS = CARPETA_DATOS + File.separator + "segmentos";
 
     public static void main(String[] args) {
+        // Con --servidor [puerto] la cuenta se usa por un socket local en lugar del menú
+        if (args.length > 0 && args[0].equals("--servidor")) {
+            servir(args);
+            return;
+        }
+
         // Scanner para leer entradas del usuario desde consola
         Scanner scanner = new Scanner(System.in);
         // Intentamos cargar una cuenta existente; si no hay, se crea una nueva
@@ -21,10 +55,19 @@ public class Main {
             System.out.print("Introduce el nombre del cliente: ");
             String nombre = scanner.nextLine().trim();
             if (nombre.isEmpty()) nombre = "Cliente sin nombre";
-            cuenta = new Cuenta(new Cliente(nombre));
+            cuenta = crearCuenta(new Cliente(nombre));
             System.out.println("Cuenta nueva creada para: " + cuenta.getCliente().getNombre());
+            // Snapshot inicial: el diario siempre parte de un snapshot (y se descarta cualquier resto anterior)
+            cuenta.setDiario(abrirDiario());
+            guardarCuenta(cuenta);
         }
 
+        // Los avisos de ingresos y retiradas se escriben desde otro hilo, fuera de la operación
+        SalidaConsolaAsincrona salida = new SalidaConsolaAsincrona();
+        cuenta.setEscucha(salida);
+        // Los snapshots y las exportaciones se escriben en otro hilo, sin detener el menú
+        PlanificadorSnapshots planificador = crearPlanificador(cuenta);
+
         int opcion;
         do {
             // Menú principal con opciones básicas de gestión de la cuenta
@@ -34,10 +77,16 @@ public class Main {
             System.out.println("3. Consultar saldo");
             System.out.println("4. Ver movimientos");
             System.out.println("5. Exportar a CSV/XML/JSON");
+            System.out.println("6. Ver estadísticas");
+            System.out.println("7. Buscar movimientos por fecha y tipo");
+            System.out.println("8. Archivar historial en formato compacto");
+            System.out.println("9. Importar movimientos desde CSV/JSON");
+            System.out.println("10. Ver métricas");
+            System.out.println("11. Generar extracto de un periodo");
             System.out.println("0. Salir");
             System.out.print("Elige una opción: ");
 
-            //si no se introduce un numero del 0 al 5 se entrara a un loop hasta que se haga
+            //si no se introduce un numero se entrara a un loop hasta que se haga
             while (!scanner.hasNextInt()) {
                 System.out.print("Introduce un número válido para la opción: ");
                 scanner.next();
@@ -61,19 +110,38 @@ public class Main {
                     System.out.println("Saldo actual: " + String.format("%.2f", cuenta.getSaldo()) + " €");
                     break;
                 case 4:
-                    // Listado de movimientos almacenados
-                    System.out.println("--- Movimientos ---");
-                    if (cuenta.getMovimientos().isEmpty()) {
-                        System.out.println("No hay movimientos registrados.");
-                    } else {
-                        for (Movimiento m : cuenta.getMovimientos()) {
-                            System.out.println(m);
-                        }
-                    }
+                    // Listado de movimientos almacenados, por páginas
+                    verMovimientos(scanner, cuenta);
                     break;
                 case 5:
-                    // Exportar a archivos legibles
-                    exportarArchivos(cuenta);
+                    // Exportar a archivos legibles (se escriben en segundo plano)
+                    planificador.solicitarExportacion();
+                    mostrarArchivosExportados("Exportando en segundo plano a:");
+                    break;
+                case 6:
+                    // Estadísticas mantenidas por la cuenta (no recorren el historial)
+                    mostrarEstadisticas(cuenta.getEstadisticas());
+                    break;
+                case 7:
+                    // Consulta por intervalo de fechas y tipo usando el índice de la cuenta
+                    buscarMovimientos(scanner, cuenta);
+                    break;
+                case 8:
+                    // Copia comprimida del historial, pensada para guardarlo a largo plazo
+                    archivarHistorial(cuenta);
+                    break;
+                case 9:
+                    // Carga masiva de movimientos exportados (no pasa por el diario: se guarda un snapshot)
+                    importarMovimientos(scanner, cuenta, planificador);
+                    break;
+                case 10:
+                    // Llamadas, latencias y bytes escritos de las operaciones medidas
+                    System.out.println("--- Métricas ---");
+                    System.out.print(Metricas.volcado());
+                    break;
+                case 11:
+                    // Extracto de un periodo en CSV, XML o JSON, escrito según se recorre el historial
+                    generarExtracto(scanner, cuenta);
                     break;
                 case 0:
                     // Salir del programa
@@ -82,21 +150,275 @@ public class Main {
                 default:
                     System.out.println("Opción no válida.");
             }
+            // Los avisos de la operación deben salir antes que el menú siguiente
+            salida.vaciar();
+
+            // Snapshot periódico para que al cargar solo haya que reproducir la cola del diario
+            planificador.comprobar();
 
         } while (opcion != 0);
 
-        // Guardar la cuenta serializada al finalizar
-        if (guardarCuenta(cuenta)) {
+        // Al salir se exporta (CSV, XML, JSON) y se guarda lo que falte, y se espera a que termine
+        planificador.solicitarExportacion();
+        cerrarPlanificador(planificador, cuenta);
+        if (planificador.getExportados() == cuenta.getMovimientos().size()) {
+            mostrarArchivosExportados("Exportación completada:");
+        }
+
+        cerrarRecursos(cuenta);
+        cuenta.setEscucha(null);
+        salida.close();
+
+        // Cerrar el scanner para liberar recurso
+        scanner.close();
+    }
+
+    /**
+     * Modo servidor: carga (o crea) la cuenta y la expone con {@link ServidorCuenta} en el puerto
+     * indicado (por defecto {@link ServidorCuenta#PUERTO_POR_DEFECTO}) hasta que se detiene el
+     * proceso. Al detenerlo se guarda la cuenta, igual que al salir del menú.
+     */
+    private static void servir(String[] args) {
+        int puerto = ServidorCuenta.PUERTO_POR_DEFECTO;
+        if (args.length > 1) {
+            try {
+                puerto = Integer.parseInt(args[1]);
+            } catch (NumberFormatException e) {
+                System.out.println("Puerto no válido: " + args[1]);
+                return;
+            }
+        }
+        Cuenta cuenta = cargarCuenta();
+        if (cuenta == null) {
+            cuenta = crearCuenta(new Cliente("Cliente sin nombre"));
+            System.out.println("Cuenta nueva creada para: " + cuenta.getCliente().getNombre());
+            cuenta.setDiario(abrirDiario());
+            guardarCuenta(cuenta);
+        }
+
+        Cuenta servida = cuenta;
+        PlanificadorSnapshots planificador = crearPlanificador(servida);
+        ServidorCuenta servidor;
+        try {
+            servidor = new ServidorCuenta(servida, puerto, Paths.get(CARPETA_DATOS), planificador::comprobar);
+        } catch (IOException e) {
+            System.out.println("No se pudo abrir el servidor en el puerto " + puerto + ": " + e.getMessage());
+            cerrarPlanificador(planificador, servida);
+            cerrarRecursos(servida);
+            return;
+        }
+        // Al detener el proceso (Ctrl+C) se terminan las conexiones y se guarda la cuenta
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                servidor.close();
+            } catch (IOException e) {
+                System.out.println("Error al cerrar el servidor: " + e.getMessage());
+            }
+            cerrarPlanificador(planificador, servida);
+            cerrarRecursos(servida);
+        }));
+
+        System.out.println("Servidor de la cuenta escuchando en 127.0.0.1:" + servidor.getPuerto()
+                + " (Ctrl+C para terminar)");
+        try {
+            servidor.servir();
+        } catch (IOException e) {
+            System.out.println("Error en el servidor: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Crea el planificador que guarda los snapshots de la cuenta y sus exportaciones. Se considera
+     * que el archivo ya está al día si es un snapshot binario y el diario no tiene nada posterior.
+     */
+    private static PlanificadorSnapshots crearPlanificador(Cuenta cuenta) {
+        boolean guardada = false;
+        try {
+            guardada = cuenta.getDiario() != null && cuenta.getDiario().getRegistrosDesdeSnapshot() == 0
+                    && SnapshotBinario.esSnapshot(Paths.get(ARCHIVO_CUENTA));
+        } catch (IOException e) {
+            // Se guardará al cerrar
+        }
+        return new PlanificadorSnapshots(cuenta, Paths.get(ARCHIVO_CUENTA), Main::exportarArchivos,
+                OPERACIONES_POR_SNAPSHOT, INTERVALO_SNAPSHOT_MS, guardada);
+    }
+
+    /**
+     * Guarda lo que falte de la cuenta, espera a que terminen el snapshot y las exportaciones
+     * pendientes e informa de si la cuenta ha quedado guardada.
+     */
+    private static void cerrarPlanificador(PlanificadorSnapshots planificador, Cuenta cuenta) {
+        try {
+            planificador.close();
+        } catch (IOException e) {
+            System.out.println("Error al terminar de guardar la cuenta: " + e.getMessage());
+        }
+        if (planificador.getGuardados() == cuenta.getMovimientos().size()) {
             System.out.println("Cuenta guardada correctamente en: " + ARCHIVO_CUENTA);
         } else {
             System.out.println("Error al guardar la cuenta serializada.");
         }
+    }
 
-        // Exportar automáticamente al salir (CSV, XML, JSON)
-        exportarArchivos(cuenta);
+    /**
+     * Muestra totales, mínimos y máximos por tipo y el resumen de cada mes.
+     */
+    private static void mostrarEstadisticas(EstadisticasCuenta estadisticas) {
+        System.out.println("--- Estadísticas ---");
+        mostrarAcumulado("Ingresos", estadisticas.getIngresos());
+        mostrarAcumulado("Retiradas", estadisticas.getRetiradas());
+        for (Map.Entry<YearMonth, EstadisticasCuenta.Resumen> e : estadisticas.getResumenesPorMes().entrySet()) {
+            EstadisticasCuenta.Resumen r = e.getValue();
+            System.out.println(e.getKey() + ": +" + String.format("%.2f", r.getIngresos().getTotal())
+                    + " € / -" + String.format("%.2f", r.getRetiradas().getTotal())
+                    + " € (neto " + String.format("%.2f", r.getNeto()) + " €)");
+        }
+    }
 
-        // Cerrar el scanner para liberar recurso
-        scanner.close();
+    private static void mostrarAcumulado(String nombre, EstadisticasCuenta.Acumulado a) {
+        System.out.println(nombre + ": " + a.getNumero() + " movimientos, total "
+                + String.format("%.2f", a.getTotal()) + " €, mínimo " + String.format("%.2f", a.getMinimo())
+                + " €, máximo " + String.format("%.2f", a.getMaximo()) + " €");
+    }
+
+    /**
+     * Muestra el historial por páginas de {@link #MOVIMIENTOS_POR_PAGINA}. Si se pide todo lo que
+     * queda, se escribe por bloques de líneas ya formateadas (ver {@link Cuenta#textoMovimientos}).
+     */
+    private static void verMovimientos(Scanner scanner, Cuenta cuenta) {
+        System.out.println("--- Movimientos ---");
+        int total = cuenta.getMovimientos().size();
+        if (total == 0) {
+            System.out.println("No hay movimientos registrados.");
+            return;
+        }
+        PrintStream consola = consolaConBuffer();
+        int i = 0;
+        while (i < total) {
+            consola.println(cuenta.getMovimientos().get(i++));
+            if (i % MOVIMIENTOS_POR_PAGINA == 0 && i < total) {
+                char respuesta = pedirSiguientePagina(scanner, consola, i, total);
+                if (respuesta == 'Q') break;
+                if (respuesta == 'T') {
+                    // Hasta el siguiente bloque línea a línea; desde ahí, bloques enteros
+                    for (; i < total && i % CacheExportacion.LINEAS_POR_BLOQUE != 0; i++) {
+                        consola.println(cuenta.getMovimientos().get(i));
+                    }
+                    for (int b = i / CacheExportacion.LINEAS_POR_BLOQUE; i < total; b++) {
+                        consola.print(cuenta.textoMovimientos(b));
+                        i = Math.min(total, (b + 1) * CacheExportacion.LINEAS_POR_BLOQUE);
+                    }
+                }
+            }
+        }
+        consola.flush();
+    }
+
+    /**
+     * Pide un intervalo de fechas y un tipo, muestra cuántos movimientos cumplen el filtro
+     * y los lista por páginas.
+     */
+    private static void buscarMovimientos(Scanner scanner, Cuenta cuenta) {
+        LocalDate desde = pedirFecha(scanner, "Desde (aaaa-mm-dd, vacío = sin límite): ");
+        LocalDate hasta = pedirFecha(scanner, "Hasta (aaaa-mm-dd, incluido; vacío = sin límite): ");
+        String tipo = pedirTipo(scanner);
+
+        LocalDateTime inicio = desde != null ? desde.atStartOfDay() : null;
+        LocalDateTime fin = hasta != null ? hasta.plusDays(1).atStartOfDay() : null;
+        int total = cuenta.contarMovimientos(inicio, fin, tipo);
+        System.out.println("--- " + total + " movimientos encontrados ---");
+
+        // El cursor pide los movimientos por páginas según se muestran
+        PrintStream consola = consolaConBuffer();
+        Iterator<Movimiento> movimientos = cuenta.recorrerMovimientos(inicio, fin, tipo);
+        boolean todo = false;
+        for (int i = 1; movimientos.hasNext(); i++) {
+            consola.println(movimientos.next());
+            if (!todo && i % MOVIMIENTOS_POR_PAGINA == 0 && i < total) {
+                char respuesta = pedirSiguientePagina(scanner, consola, i, total);
+                if (respuesta == 'Q') break;
+                todo = respuesta == 'T';
+            }
+        }
+        consola.flush();
+    }
+
+    /**
+     * Pide un periodo, un tipo y un formato y escribe el extracto en la carpeta de datos con
+     * {@link ExtractoCuenta}. Imprime la ruta y el número de movimientos o el error.
+     */
+    private static void generarExtracto(Scanner scanner, Cuenta cuenta) {
+        LocalDate desde = pedirFecha(scanner, "Desde (aaaa-mm-dd, vacío = desde el principio): ");
+        LocalDate hasta = pedirFecha(scanner, "Hasta (aaaa-mm-dd, incluido; vacío = hasta hoy): ");
+        String tipo = pedirTipo(scanner);
+        System.out.print("Formato (CSV, XML o JSON; vacío = CSV): ");
+        String respuesta = scanner.nextLine().trim().toUpperCase(Locale.ROOT);
+        FormatoExportacion formato;
+        try {
+            formato = respuesta.isEmpty() ? FormatoExportacion.CSV : FormatoExportacion.valueOf(respuesta);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Formato no válido.");
+            return;
+        }
+
+        String nombre = "extracto-" + (desde != null ? desde : "inicio") + "-" + (hasta != null ? hasta : LocalDate.now())
+                + "." + formato.name().toLowerCase(Locale.ROOT);
+        Path destino = Paths.get(CARPETA_DATOS, nombre);
+        try {
+            int escritos = ExtractoCuenta.escribir(cuenta, formato, desde != null ? desde.atStartOfDay() : null,
+                    hasta != null ? hasta.plusDays(1).atStartOfDay() : null, tipo, destino);
+            System.out.println("Extracto con " + escritos + " movimientos guardado en: " + destino.toAbsolutePath());
+        } catch (IOException e) {
+            System.out.println("Error al escribir el extracto: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Lee el tipo de movimiento por el que filtrar: "Ingreso", "Retirada" o null para todos.
+     */
+    private static String pedirTipo(Scanner scanner) {
+        System.out.print("Tipo (I = ingresos, R = retiradas, vacío = todos): ");
+        String respuesta = scanner.nextLine().trim();
+        return respuesta.equalsIgnoreCase("I") ? "Ingreso" : respuesta.equalsIgnoreCase("R") ? "Retirada" : null;
+    }
+
+    /**
+     * Tras una página del listado pregunta cómo seguir: 'S' (siguiente página), 'T' (todo lo que
+     * queda) o 'Q' (volver al menú).
+     */
+    private static char pedirSiguientePagina(Scanner scanner, PrintStream consola, int mostrados, int total) {
+        consola.print("-- " + mostrados + " de " + total + " -- Enter = siguiente página, T = todo, Q = volver: ");
+        consola.flush();
+        String respuesta = scanner.nextLine().trim();
+        if (respuesta.equalsIgnoreCase("Q")) return 'Q';
+        if (respuesta.equalsIgnoreCase("T")) return 'T';
+        return 'S';
+    }
+
+    /**
+     * Salida por consola para listados largos: junta las líneas en un buffer grande en lugar de
+     * escribir cada una por separado. Hay que vaciarla con flush (no se cierra: escribe en System.out).
+     */
+    private static PrintStream consolaConBuffer() {
+        return new PrintStream(new BufferedOutputStream(System.out, TAM_BUFFER_CONSOLA), false, System.out.charset());
+    }
+
+    /**
+     * Lee una fecha aaaa-mm-dd desde consola. Devuelve null si se deja vacía.
+     */
+    private static LocalDate pedirFecha(Scanner scanner, String mensaje) {
+        while (true) {
+            System.out.print(mensaje);
+            String linea = scanner.nextLine().trim();
+            if (linea.isEmpty()) {
+                return null;
+            }
+            try {
+                return LocalDate.parse(linea);
+            } catch (DateTimeParseException e) {
+                System.out.println("Fecha no válida. Usa el formato aaaa-mm-dd (por ejemplo 2024-03-15).");
+            }
+        }
     }
 
     /**
@@ -123,7 +445,8 @@ public class Main {
     }
 
     /**
-     * Intenta cargar la cuenta serializada desde disco. Si la carpeta no existe la crea.
+     * Intenta cargar la cuenta serializada desde disco y reproduce sobre ella la cola del diario.
+     * Si la carpeta no existe la crea.
      * Devuelve null si no hay archivo o si ocurre un error.
      */
     private static Cuenta cargarCuenta() {
@@ -137,15 +460,22 @@ public class Main {
             return null;
         }
 
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
-            Object obj = ois.readObject();
-            if (obj instanceof Cuenta) {
-                System.out.println("Cuenta cargada correctamente desde: " + file.getAbsolutePath());
-                return (Cuenta) obj;
-            } else {
+        try {
+            Cuenta cuenta = leerCuenta(file.toPath());
+            if (cuenta == null) {
                 System.out.println("El archivo no contiene una Cuenta válida.");
                 return null;
             }
+            System.out.println("Cuenta cargada correctamente desde: " + file.getAbsolutePath());
+            DiarioMovimientos diario = abrirDiario();
+            if (diario != null) {
+                int recuperados = diario.reproducir(cuenta);
+                if (recuperados > 0) {
+                    System.out.println("Recuperados " + recuperados + " movimientos del diario.");
+                }
+                cuenta.setDiario(diario);
+            }
+            return cuenta;
         } catch (IOException | ClassNotFoundException e) {
             System.out.println("Error al cargar la cuenta: " + e.getMessage());
             return null;
@@ -153,7 +483,26 @@ public class Main {
     }
 
     /**
-     * Guarda la cuenta en disco serializada (archivo cuenta.dat). Crea la carpeta si hace falta.
+     * Lee el snapshot de la cuenta. Los archivos guardados por versiones anteriores con la
+     * serialización de Java se siguen leyendo, solo con las clases de
+     * {@link Cuenta#FILTRO_SERIALIZADA}; el siguiente guardado los pasa al formato binario.
+     * Devuelve null si el archivo serializado no contiene una Cuenta.
+     */
+    private static Cuenta leerCuenta(Path archivo) throws IOException, ClassNotFoundException {
+        if (SnapshotBinario.esSnapshot(archivo)) {
+            return SnapshotBinario.cargar(archivo);
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(archivo)))) {
+            ois.setObjectInputFilter(Cuenta.FILTRO_SERIALIZADA);
+            Object obj = ois.readObject();
+            return obj instanceof Cuenta ? (Cuenta) obj : null;
+        }
+    }
+
+    /**
+     * Guarda la cuenta en disco (archivo cuenta.dat, ver {@link SnapshotBinario}). Crea la carpeta
+     * si hace falta. Se escribe en un temporal que se renombra de forma atómica; después se vacía
+     * el diario, ya que el snapshot contiene todos sus movimientos.
      * Devuelve true si se guardó correctamente.
      */
     private static boolean guardarCuenta(Cuenta cuenta) {
@@ -162,36 +511,140 @@ public class Main {
             carpeta.mkdir();
         }
 
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(ARCHIVO_CUENTA))) {
-            oos.writeObject(cuenta);
+        // El snapshot recoge también lo que no se pudo anotar en el diario
+        boolean incompleto = cuenta.isDiarioIncompleto();
+        cuenta.setDiarioIncompleto(false);
+        try {
+            SnapshotBinario.guardar(cuenta, Paths.get(ARCHIVO_CUENTA));
+
+            if (cuenta.getDiario() != null) {
+                cuenta.getDiario().truncar();
+            }
             return true;
         } catch (IOException e) {
+            if (incompleto) cuenta.setDiarioIncompleto(true);
             System.out.println("Error al guardar la cuenta: " + e.getMessage());
             return false;
         }
     }
 
     /**
-     * Exporta la cuenta a CSV, XML y JSON dentro de la carpeta de datos.
-     * Imprime las rutas de los archivos generados o un error si falla la escritura.
+     * Abre (o crea) el diario de movimientos. Devuelve null si no se puede abrir.
      */
-    private static void exportarArchivos(Cuenta cuenta) {
+    private static DiarioMovimientos abrirDiario() {
         try {
-            Path csv = Paths.get(CARPETA_DATOS, "cuenta.csv");
-            Path xml = Paths.get(CARPETA_DATOS, "cuenta.xml");
-            Path json = Paths.get(CARPETA_DATOS, "cuenta.json");
-
-            ExportarCuenta.exportarCSV(cuenta, csv);
-            ExportarCuenta.exportarXML(cuenta, xml);
-            ExportarCuenta.exportarJSON(cuenta, json);
-
-            System.out.println("Exportación completada:");
-            System.out.println(" - " + csv.toAbsolutePath());
-            System.out.println(" - " + xml.toAbsolutePath());
-            System.out.println(" - " + json.toAbsolutePath());
+            return DiarioMovimientos.abrir(Paths.get(ARCHIVO_DIARIO), DIARIO_LOTE_SYNC, DIARIO_INTERVALO_SYNC_MS);
         } catch (IOException e) {
-            System.err.println("Error escribiendo archivos de exportación: " + e.getMessage());
-            e.printStackTrace();
+            System.out.println("Error al abrir el diario de movimientos: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Crea una cuenta nueva. Con -Dcuenta.historial=mapeado el historial se guarda por columnas
+     * en archivos mapeados en memoria en lugar de en el heap; con -Dcuenta.historial=escalonado
+     * solo los movimientos recientes quedan en el heap y el resto en segmentos en disco.
+     */
+    private static Cuenta crearCuenta(Cliente cliente) {
+        String historial = System.getProperty("cuenta.historial");
+        if ("mapeado".equalsIgnoreCase(historial)) {
+            try {
+                return new Cuenta(cliente, HistorialMapeado.crear(Paths.get(CARPETA_HISTORIAL)));
+            } catch (IOException e) {
+                System.out.println("No se pudo crear el historial mapeado, se usará memoria: " + e.getMessage());
+            }
+        } else if ("escalonado".equalsIgnoreCase(historial)) {
+            try {
+                return new Cuenta(cliente, HistorialEscalonado.crear(Paths.get(CARPETA_SEGMENTOS)));
+            } catch (IOException e) {
+                System.out.println("No se pudo crear el historial escalonado, se usará memoria: " + e.getMessage());
+            }
+        }
+        return new Cuenta(cliente);
+    }
+
+    /**
+     * Fuerza a disco y cierra el diario y, si lo tiene, el historial en disco de la cuenta.
+     */
+    private static void cerrarRecursos(Cuenta cuenta) {
+        if (cuenta.getDiario() != null) {
+            try {
+                cuenta.getDiario().close();
+            } catch (IOException e) {
+                System.out.println("Error al cerrar el diario de movimientos: " + e.getMessage());
+            }
+            cuenta.setDiario(null);
+        }
+        if (cuenta.getMovimientos() instanceof Closeable) {
+            try {
+                ((Closeable) cuenta.getMovimientos()).close();
+            } catch (IOException e) {
+                System.out.println("Error al cerrar el historial: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Exporta la cuenta a CSV, XML y JSON dentro de la carpeta de datos. Se llama desde el hilo
+     * del {@link PlanificadorSnapshots}, que informa de los errores.
+     */
+    private static void exportarArchivos(Cuenta cuenta) throws IOException {
+        // Solo se añade lo nuevo desde la exportación anterior (los tres formatos a la vez)
+        ExportacionIncremental.exportarTodo(cuenta, Paths.get(CARPETA_DATOS, "cuenta.csv"),
+                Paths.get(CARPETA_DATOS, "cuenta.xml"), Paths.get(CARPETA_DATOS, "cuenta.json"));
+    }
+
+    /**
+     * Imprime un título y las rutas de los archivos exportados.
+     */
+    private static void mostrarArchivosExportados(String titulo) {
+        System.out.println(titulo);
+        System.out.println(" - " + Paths.get(CARPETA_DATOS, "cuenta.csv").toAbsolutePath());
+        System.out.println(" - " + Paths.get(CARPETA_DATOS, "cuenta.xml").toAbsolutePath());
+        System.out.println(" - " + Paths.get(CARPETA_DATOS, "cuenta.json").toAbsolutePath());
+    }
+
+    /**
+     * Guarda el historial en datos/cuenta.arc con el formato de {@link ArchivoCompacto}.
+     * Imprime la ruta y el tamaño del archivo o un error si falla la escritura.
+     */
+    private static void archivarHistorial(Cuenta cuenta) {
+        try {
+            Path archivo = Paths.get(CARPETA_DATOS, "cuenta.arc");
+            Files.createDirectories(archivo.getParent());
+            ArchivoCompacto.escribir(cuenta, archivo);
+            System.out.println("Historial archivado (" + cuenta.getMovimientos().size() + " movimientos, "
+                    + Files.size(archivo) + " bytes): " + archivo.toAbsolutePath());
+        } catch (IOException e) {
+            System.err.println("Error archivando el historial: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Pide la ruta de un CSV o JSON exportado y añade sus movimientos a la cuenta. Si el archivo
+     * tiene algún error no se importa nada. Después se guarda un snapshot antes de seguir, ya que
+     * los movimientos importados no se anotan en el diario.
+     */
+    private static void importarMovimientos(Scanner scanner, Cuenta cuenta, PlanificadorSnapshots planificador) {
+        System.out.print("Ruta del archivo CSV o JSON: ");
+        String ruta = scanner.nextLine().trim();
+        if (ruta.isEmpty()) {
+            System.out.println("No se ha indicado ningún archivo.");
+            return;
+        }
+        try {
+            long inicio = System.nanoTime();
+            int importados = ImportarMovimientos.importar(cuenta, Paths.get(ruta));
+            long ms = (System.nanoTime() - inicio) / 1_000_000;
+            System.out.println("Importados " + importados + " movimientos en " + ms + " ms. Saldo actual: "
+                    + String.format("%.2f", cuenta.getSaldo()) + " €");
+            if (importados > 0 && !planificador.guardarAhora()) {
+                System.out.println("Los movimientos importados se guardarán en el siguiente snapshot.");
+            }
+        } catch (NoSuchFileException e) {
+            System.out.println("No existe el archivo: " + ruta);
+        } catch (IOException | InvalidPathException e) {
+            System.out.println("Error importando movimientos (no se ha añadido ninguno): " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,280 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.FlightRecorder;
+
+/**
+ * Métricas de las operaciones de la cuenta, la persistencia y las exportaciones.
+ *
+ * Cada operación medida tiene una {@link Medida} con el número de llamadas, un histograma de
+ * latencias y, si se indican, los bytes escritos y los bytes reservados en el heap. Los contadores
+ * son {@link LongAdder} y el histograma es un array de contadores atómicos, así que registrar una
+ * medida no bloquea. En las operaciones muy cortas (ingresar, retirar) leer el reloj costaría tanto
+ * como la propia operación, así que se cuentan todas las llamadas pero solo se mide el tiempo de
+ * una muestra al azar. Con {@code -Dcuenta.metricas=false} no se registra nada.
+ *
+ * Las métricas se consultan con {@link #volcado()} (opción del menú) y se publican en JFR como el
+ * evento periódico {@code cuenta.Metricas} (ver {@link EventoMetricas}), de modo que se pueden
+ * seguir en producción con {@code jcmd <pid> JFR.start} sin añadir nada más.
+ */
+public final class Metricas {
+    /** false con -Dcuenta.metricas=false. */
+    static final boolean ACTIVAS = !"false".equalsIgnoreCase(System.getProperty("cuenta.metricas"));
+
+    private static final Map<String, Medida> MEDIDAS = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> CONTADORES = new ConcurrentHashMap<>();
+    private static final com.sun.management.ThreadMXBean HILOS = hilosConMemoria();
+
+    static {
+        if (ACTIVAS) {
+            try {
+                FlightRecorder.addPeriodicEvent(EventoMetricas.class, Metricas::publicarEnJfr);
+            } catch (RuntimeException | LinkageError e) {
+                // Sin JFR en esta JVM: solo queda el volcado en texto
+            }
+        }
+    }
+
+    private Metricas() {
+    }
+
+    /** Devuelve la medida con ese nombre, creándola si no existe. Se mide el tiempo de todas las llamadas. */
+    public static Medida medida(String nombre) {
+        return medida(nombre, 1);
+    }
+
+    /**
+     * Devuelve la medida con ese nombre, creándola si no existe, midiendo el tiempo de una de cada
+     * {@code muestreo} llamadas (en promedio; debe ser potencia de dos).
+     */
+    public static Medida medida(String nombre, int muestreo) {
+        if (muestreo <= 0 || Integer.bitCount(muestreo) != 1) {
+            throw new IllegalArgumentException("El muestreo debe ser una potencia de dos.");
+        }
+        return MEDIDAS.computeIfAbsent(nombre, k -> new Medida(k, muestreo - 1));
+    }
+
+    /** Devuelve el contador con ese nombre, creándolo si no existe. */
+    public static LongAdder contador(String nombre) {
+        return CONTADORES.computeIfAbsent(nombre, k -> new LongAdder());
+    }
+
+    /**
+     * Bytes reservados en el heap hasta ahora por el hilo actual (0 si no se puede saber). Leerlo
+     * cuesta unas decenas de nanosegundos: se usa en operaciones largas, no en cada ingreso.
+     */
+    public static long asignados() {
+        return ACTIVAS && HILOS != null ? HILOS.getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    /** Pone a cero todas las medidas y contadores. */
+    public static void reiniciar() {
+        for (Medida m : MEDIDAS.values()) m.reiniciar();
+        for (LongAdder c : CONTADORES.values()) c.reset();
+    }
+
+    /** Tabla en texto con todas las medidas y contadores, ordenados por nombre. */
+    public static String volcado() {
+        StringBuilder sb = new StringBuilder();
+        String salto = System.lineSeparator();
+        sb.append(String.format(Locale.ROOT, "%-30s %10s %10s %10s %10s %10s %14s %14s",
+                "medida", "llamadas", "media µs", "p50 µs", "p99 µs", "max µs", "bytes escritos", "bytes heap")).append(salto);
+        for (Medida m : new TreeMap<>(MEDIDAS).values()) {
+            long n = m.getLlamadas();
+            if (n == 0) continue;
+            boolean medida = m.getMuestras() > 0;
+            sb.append(String.format(Locale.ROOT, "%-30s %10d %10s %10s %10s %10s %14d %14d",
+                    m.getNombre(), n, micros(m.getMedia(), medida), micros(m.percentil(0.50), medida),
+                    micros(m.percentil(0.99), medida), micros(m.getMaximo(), medida),
+                    m.getBytesEscritos(), m.getBytesAsignados())).append(salto);
+        }
+        for (Map.Entry<String, LongAdder> c : new TreeMap<>(CONTADORES).entrySet()) {
+            sb.append(String.format(Locale.ROOT, "%-30s %10d", c.getKey(), c.getValue().sum())).append(salto);
+        }
+        if (!ACTIVAS) {
+            sb.append("(métricas desactivadas con -Dcuenta.metricas=false)").append(salto);
+        }
+        return sb.toString();
+    }
+
+    // Nanosegundos en microsegundos con un decimal, o "-" si aún no se ha medido ninguna llamada
+    private static String micros(long nanos, boolean medida) {
+        return medida ? String.format(Locale.ROOT, "%.1f", nanos / 1000.0) : "-";
+    }
+
+    // Un evento por medida con llamadas, cada vez que JFR lo pide (ver @Period en EventoMetricas)
+    private static void publicarEnJfr() {
+        for (Medida m : MEDIDAS.values()) {
+            long n = m.getLlamadas();
+            if (n == 0) continue;
+            EventoMetricas e = new EventoMetricas();
+            e.medida = m.getNombre();
+            e.llamadas = n;
+            e.media = m.getMedia();
+            e.p50 = m.percentil(0.50);
+            e.p99 = m.percentil(0.99);
+            e.maximo = m.getMaximo();
+            e.bytesEscritos = m.getBytesEscritos();
+            e.bytesAsignados = m.getBytesAsignados();
+            e.commit();
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean hilosConMemoria() {
+        ThreadMXBean hilos = ManagementFactory.getThreadMXBean();
+        if (hilos instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean h = (com.sun.management.ThreadMXBean) hilos;
+            if (h.isThreadAllocatedMemorySupported() && h.isThreadAllocatedMemoryEnabled()) {
+                return h;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Medida de una operación. El histograma de latencias es logarítmico-lineal, como los de
+     * HdrHistogram: cada potencia de dos se divide en 64 intervalos iguales, así que cualquier
+     * latencia se guarda con un error relativo menor del 1,6 % usando un array fijo de contadores.
+     */
+    public static final class Medida {
+        private static final int BITS_SUBINTERVALO = 7;
+        private static final int SUBINTERVALOS = 1 << BITS_SUBINTERVALO;
+        private static final int MITAD = SUBINTERVALOS / 2;
+        // Con valores positivos de un long el exponente llega a 63 - 7 = 56
+        private static final int NUM_INTERVALOS = (63 - BITS_SUBINTERVALO) * MITAD + SUBINTERVALOS;
+
+        // Valor de inicio de las llamadas cuyo tiempo no se mide
+        private static final long SIN_MUESTRA = Long.MIN_VALUE;
+
+        private final String nombre;
+        private final int mascaraMuestreo;
+        private final LongAdder llamadas = new LongAdder();
+        private final LongAdder muestras = new LongAdder();
+        private final LongAdder nanosTotales = new LongAdder();
+        private final LongAdder bytesEscritos = new LongAdder();
+        private final LongAdder bytesAsignados = new LongAdder();
+        private final LongAccumulator maximo = new LongAccumulator(Math::max, 0);
+        private final AtomicLongArray histograma = new AtomicLongArray(NUM_INTERVALOS);
+
+        private Medida(String nombre, int mascaraMuestreo) {
+            this.nombre = nombre;
+            this.mascaraMuestreo = mascaraMuestreo;
+        }
+
+        /** Empieza una llamada: devuelve el valor que hay que pasar después a {@code registrar}. */
+        public long iniciar() {
+            if (!ACTIVAS || (mascaraMuestreo != 0 && (ThreadLocalRandom.current().nextInt() & mascaraMuestreo) != 0)) {
+                return SIN_MUESTRA;
+            }
+            return System.nanoTime();
+        }
+
+        /** Registra una llamada empezada con {@link #iniciar()}. */
+        public void registrar(long inicio) {
+            if (!ACTIVAS) return;
+            llamadas.increment();
+            if (inicio != SIN_MUESTRA) {
+                anotar(System.nanoTime() - inicio);
+            }
+        }
+
+        /**
+         * Registra una llamada empezada con {@link #iniciar()}, con los bytes reservados en el heap
+         * desde {@code asignadosInicio} (ver {@link Metricas#asignados()}; 0 para no medirlos) y
+         * los bytes que escribió.
+         */
+        public void registrar(long inicio, long asignadosInicio, long escritos) {
+            if (!ACTIVAS) return;
+            registrar(inicio);
+            if (asignadosInicio > 0) {
+                bytesAsignados.add(asignados() - asignadosInicio);
+            }
+            bytesEscritos.add(escritos);
+        }
+
+        private void anotar(long nanos) {
+            if (nanos < 0) nanos = 0;
+            muestras.increment();
+            nanosTotales.add(nanos);
+            maximo.accumulate(nanos);
+            histograma.incrementAndGet(intervalo(nanos));
+        }
+
+        // Con v < 128 el intervalo es v; después, 64 intervalos por cada potencia de dos
+        static int intervalo(long v) {
+            int exponente = 64 - Long.numberOfLeadingZeros(v | (SUBINTERVALOS - 1)) - BITS_SUBINTERVALO;
+            return exponente * MITAD + (int) (v >>> exponente);
+        }
+
+        // Mayor valor que cae en el intervalo
+        static long maximoIntervalo(int i) {
+            int exponente = i < SUBINTERVALOS ? 0 : i / MITAD - 1;
+            long sub = i - (long) exponente * MITAD;
+            return ((sub + 1) << exponente) - 1;
+        }
+
+        /** Latencia (ns) por debajo de la cual está la fracción {@code p} de las llamadas medidas. */
+        public long percentil(double p) {
+            long total = 0;
+            for (int i = 0; i < NUM_INTERVALOS; i++) total += histograma.get(i);
+            if (total == 0) return 0;
+            long objetivo = Math.max(1, (long) Math.ceil(total * p));
+            long acumulado = 0;
+            for (int i = 0; i < NUM_INTERVALOS; i++) {
+                acumulado += histograma.get(i);
+                if (acumulado >= objetivo) {
+                    return Math.min(maximoIntervalo(i), getMaximo());
+                }
+            }
+            return getMaximo();
+        }
+
+        void reiniciar() {
+            llamadas.reset();
+            muestras.reset();
+            nanosTotales.reset();
+            bytesEscritos.reset();
+            bytesAsignados.reset();
+            maximo.reset();
+            for (int i = 0; i < NUM_INTERVALOS; i++) histograma.set(i, 0);
+        }
+
+        public String getNombre() {
+            return nombre;
+        }
+
+        public long getLlamadas() {
+            return llamadas.sum();
+        }
+
+        /** Número de llamadas de las que se ha medido el tiempo. */
+        public long getMuestras() {
+            return muestras.sum();
+        }
+
+        /** Latencia media (ns) de las llamadas medidas. */
+        public long getMedia() {
+            long n = muestras.sum();
+            return n == 0 ? 0 : nanosTotales.sum() / n;
+        }
+
+        public long getMaximo() {
+            return maximo.get();
+        }
+
+        public long getBytesEscritos() {
+            return bytesEscritos.sum();
+        }
+
+        public long getBytesAsignados() {
+            return bytesAsignados.sum();
+        }
+    }
+}
@@ -1,36 +1,126 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.DecimalFormatSymbols;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Locale;
 
 
 public class Movimiento implements Serializable {
     private static final long serialVersionUID = 1L;
 
-    private String tipo; // "Ingreso" o "Retirada"
-    // Importe del movimiento
-    private double cantidad;
-    // Fecha y hora en que se creó el movimiento (formato yyyy-MM-dd HH:mm:ss)
-    private String fecha;
+    // Formateador compartido: la fecha solo se convierte a texto cuando se pide
+    private static final DateTimeFormatter FORMATO_FECHA = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    // Desfase de la zona horaria local, válido hasta el próximo cambio de hora
+    private static volatile Desfase desfase;
+    // Símbolos con los que se formatean los importes en toString
+    private static volatile Simbolos simbolos;
+
+    private TipoMovimiento tipoMovimiento;
+    // Importe del movimiento en céntimos (sin errores de redondeo al sumar)
+    private long centimos;
+    // Milisegundos desde 1970-01-01 00:00 en hora local (ver getInstante)
+    private long instante;
 
     public Movimiento(String tipo, double cantidad) {
-        this.tipo = tipo;
-        this.cantidad = cantidad;
-        this.fecha = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+        this(TipoMovimiento.desdeNombre(tipo), centimosDesde(cantidad));
     }
 
-    /** Devuelve el tipo del movimiento. */
+    /** Crea un movimiento con la fecha y hora actuales. */
+    public Movimiento(TipoMovimiento tipo, long centimos) {
+        this(tipo, centimos, instanteActual());
+    }
+
+    /**
+     * Crea un movimiento con un instante ya conocido (por ejemplo al reproducir el diario).
+     */
+    public Movimiento(TipoMovimiento tipo, long centimos, long instante) {
+        this.tipoMovimiento = tipo;
+        this.centimos = centimos;
+        this.instante = instante;
+    }
+
+    /** Devuelve el tipo del movimiento ("Ingreso" o "Retirada"). */
     public String getTipo() {
-        return tipo;
+        return tipoMovimiento.getNombre();
+    }
+
+    /** Devuelve el tipo del movimiento. */
+    public TipoMovimiento getTipoMovimiento() {
+        return tipoMovimiento;
     }
 
     /** Devuelve la cantidad del movimiento. */
     public double getCantidad() {
-        return cantidad;
+        return centimos / 100.0;
     }
 
-    /** Devuelve la fecha (cadena) del movimiento. */
+    /** Devuelve la cantidad del movimiento en céntimos. */
+    public long getCentimos() {
+        return centimos;
+    }
+
+    /** Devuelve la fecha (cadena) del movimiento, con formato yyyy-MM-dd HH:mm:ss. */
     public String getFecha() {
-        return fecha;
+        return fechaDesdeInstante(instante);
+    }
+
+    /**
+     * Devuelve la fecha como milisegundos desde 1970-01-01 00:00 (hora local, sin zona).
+     */
+    public long getInstante() {
+        return instante;
+    }
+
+    /** Convierte una fecha y hora al instante equivalente (ver {@link #getInstante()}). */
+    public static long instanteDesde(LocalDateTime fecha) {
+        return fecha.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    /** Convierte un instante (ver {@link #getInstante()}) a la fecha en texto. */
+    public static String fechaDesdeInstante(long instante) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(instante, 1000L), 0, ZoneOffset.UTC).format(FORMATO_FECHA);
+    }
+
+    /**
+     * Convierte una cantidad a céntimos redondeando igual que se mostraba en las exportaciones
+     * ({@code DecimalFormat("#.##")}, redondeo al par sobre el valor exacto del double).
+     */
+    public static long centimosDesde(double cantidad) {
+        double escalado = cantidad * 100;
+        double redondeado = Math.rint(escalado);
+        // Lejos de un empate basta con el redondeo del double
+        if (Math.abs(escalado - redondeado) < 0.4 && Math.abs(escalado) < 1e15) {
+            return (long) redondeado;
+        }
+        return new BigDecimal(cantidad).setScale(2, RoundingMode.HALF_EVEN).unscaledValue().longValue();
+    }
+
+    /** Convierte una fecha en texto (yyyy-MM-dd HH:mm:ss) a su instante. */
+    public static long instanteDesdeFecha(String fecha) {
+        return instanteDesde(LocalDateTime.parse(fecha, FORMATO_FECHA));
+    }
+
+    /**
+     * Instante actual en hora local. Evita crear un LocalDateTime por movimiento: el desfase de la
+     * zona se calcula una vez y se reutiliza hasta el siguiente cambio de hora.
+     */
+    static long instanteActual() {
+        long ahora = System.currentTimeMillis();
+        Desfase d = desfase;
+        if (d == null || ahora < d.desde || ahora >= d.hasta) {
+            d = desfase = Desfase.calcular(ahora);
+        }
+        return ahora + d.milis;
     }
 
     /**
@@ -38,6 +128,84 @@ public class Movimiento implements Serializable {
      */
     @Override
     public String toString() {
-        return fecha + " - " + tipo + ": " + String.format("%.2f", cantidad) + " €";
+        return getFecha() + " - " + getTipo() + ": " + importe(centimos) + " €";
+    }
+
+    /**
+     * Importe con dos decimales, igual que {@code String.format("%.2f", centimos / 100.0)} pero sin
+     * pasar por {@link java.util.Formatter} en el caso habitual (dígitos ASCII e importes normales).
+     */
+    static String importe(long centimos) {
+        Simbolos s = simbolos();
+        if (!s.digitosAscii || centimos < 0 || centimos >= 1e15) {
+            return String.format("%.2f", centimos / 100.0);
+        }
+        long resto = centimos % 100;
+        return new StringBuilder(24).append(centimos / 100).append(s.separadorDecimal)
+                .append((char) ('0' + resto / 10)).append((char) ('0' + resto % 10)).toString();
+    }
+
+    // Símbolos del locale actual; se vuelven a leer si cambia el locale por defecto
+    private static Simbolos simbolos() {
+        Locale locale = Locale.getDefault(Locale.Category.FORMAT);
+        Simbolos s = simbolos;
+        if (s == null || !s.locale.equals(locale)) {
+            s = simbolos = new Simbolos(locale);
+        }
+        return s;
+    }
+
+    // Los movimientos guardados con la versión anterior tenían tipo (String), cantidad (double)
+    // y fecha (String); se convierten al leerlos
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField campos = in.readFields();
+        if (campos.defaulted("tipoMovimiento")) {
+            tipoMovimiento = TipoMovimiento.desdeNombre((String) campos.get("tipo", null));
+            centimos = centimosDesde(campos.get("cantidad", 0.0));
+            instante = instanteDesdeFecha((String) campos.get("fecha", null));
+        } else {
+            tipoMovimiento = (TipoMovimiento) campos.get("tipoMovimiento", null);
+            centimos = campos.get("centimos", 0L);
+            instante = campos.get("instante", 0L);
+        }
+    }
+
+    // Separador decimal y dígitos que usa String.format con un locale
+    private static final class Simbolos {
+        final Locale locale;
+        final char separadorDecimal;
+        final boolean digitosAscii;
+
+        Simbolos(Locale locale) {
+            DecimalFormatSymbols simbolos = DecimalFormatSymbols.getInstance(locale);
+            this.locale = locale;
+            this.separadorDecimal = simbolos.getDecimalSeparator();
+            this.digitosAscii = simbolos.getZeroDigit() == '0';
+        }
+    }
+
+    // Desfase de la zona local y tramo de tiempo (en milisegundos UTC) en el que es válido
+    private static final class Desfase {
+        final long milis;
+        final long desde;
+        final long hasta;
+
+        private Desfase(long milis, long desde, long hasta) {
+            this.milis = milis;
+            this.desde = desde;
+            this.hasta = hasta;
+        }
+
+        static Desfase calcular(long ahora) {
+            ZoneRules reglas = ZoneId.systemDefault().getRules();
+            Instant instante = Instant.ofEpochMilli(ahora);
+            ZoneOffsetTransition anterior = reglas.previousTransition(instante);
+            ZoneOffsetTransition siguiente = reglas.nextTransition(instante);
+            long desde = anterior != null ? anterior.toEpochSecond() * 1000 : Long.MIN_VALUE;
+            long hasta = siguiente != null ? siguiente.toEpochSecond() * 1000 : Long.MAX_VALUE;
+            // Se vuelve a comprobar cada hora por si cambia la zona horaria por defecto
+            hasta = Math.min(hasta, ahora + 3_600_000L);
+            return new Desfase(reglas.getOffset(instante).getTotalSeconds() * 1000L, desde, hasta);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,39 @@
+/**
+ * Operación de un lote (ver {@link Cuenta#aplicarLote}): un ingreso o una retirada de una
+ * cantidad en céntimos.
+ */
+public final class Operacion {
+    private final TipoMovimiento tipo;
+    private final long centimos;
+
+    public Operacion(TipoMovimiento tipo, long centimos) {
+        if (tipo == null) {
+            throw new IllegalArgumentException("La operación debe tener un tipo.");
+        }
+        this.tipo = tipo;
+        this.centimos = centimos;
+    }
+
+    /** Ingreso de una cantidad en céntimos. */
+    public static Operacion ingreso(long centimos) {
+        return new Operacion(TipoMovimiento.INGRESO, centimos);
+    }
+
+    /** Retirada de una cantidad en céntimos. */
+    public static Operacion retirada(long centimos) {
+        return new Operacion(TipoMovimiento.RETIRADA, centimos);
+    }
+
+    public TipoMovimiento getTipo() {
+        return tipo;
+    }
+
+    public long getCentimos() {
+        return centimos;
+    }
+
+    @Override
+    public String toString() {
+        return tipo.getNombre() + " de " + centimos + " céntimos";
+    }
+}
@@ -0,0 +1,345 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Guarda snapshots de una cuenta y exporta sus archivos en un hilo aparte, para que las
+ * operaciones del menú (o del servidor) no esperen a la escritura.
+ *
+ * El planificador mantiene su propia imagen de la cuenta: una copia del historial, el saldo y las
+ * estadísticas tal como estaban en el último momento capturado. Como el historial solo crece,
+ * capturar la cuenta (con {@link #comprobar()}, {@link #solicitarSnapshot()} o
+ * {@link #solicitarExportacion()}, siempre desde el hilo que la modifica) solo copia los
+ * movimientos añadidos desde la captura anterior y marca el final del diario; el hilo del
+ * planificador los añade a la imagen y la guarda o la exporta mientras la cuenta sigue cambiando.
+ * Tras cada snapshot la imagen pasa a leerse del archivo recién guardado (ver
+ * {@link HistorialPerezoso}), así que no duplica el historial en memoria, y del diario se quita
+ * lo que ya está en el snapshot, conservando lo anotado después.
+ *
+ * Las peticiones que llegan mientras el hilo está ocupado se juntan en una sola: se guarda y se
+ * exporta una vez el estado más reciente. Tampoco se repite un snapshot o una exportación si la
+ * cuenta no ha cambiado desde el anterior. {@link #close()} captura lo que falte y espera a que
+ * termine lo pendiente; {@link #guardarAhora()} hace lo mismo sin cerrar el planificador.
+ *
+ * Las cuentas con el historial en disco ({@link HistorialMapeado}, {@link HistorialEscalonado})
+ * o con operaciones concurrentes ({@link CuentaConcurrente}) no se pueden copiar así: se guardan
+ * y exportan en el mismo hilo que lo pide, como antes (con el historial en disco el snapshot
+ * solo guarda su carpeta, así que es rápido).
+ */
+public class PlanificadorSnapshots implements Closeable {
+    // Coste en primer plano de capturar la cuenta y de escribirla en el hilo del planificador
+    private static final Metricas.Medida MEDIDA_CAPTURA = Metricas.medida("planificador.captura");
+    private static final Metricas.Medida MEDIDA_ESCRITURA = Metricas.medida("planificador.escritura");
+
+    /** Exportación de la cuenta a sus archivos. */
+    public interface Exportacion {
+        void exportar(Cuenta cuenta) throws IOException;
+    }
+
+    private final Cuenta cuenta;
+    private final Path archivo;
+    private final Exportacion exportacion;
+    private final DiarioMovimientos diario;
+    private final int movimientosPorSnapshot;
+    private final long intervaloNanos;
+    private final boolean enSegundoPlano;
+    private final ExecutorService hilo;
+
+    // Estado del hilo que captura (el que modifica la cuenta)
+    private int capturados;
+    private long ultimaCaptura = System.nanoTime();
+    private boolean cerrado;
+
+    // Captura pendiente de procesar; mientras no es null hay una tarea en la cola del hilo
+    private Captura pendiente;
+
+    // Estado del hilo del planificador
+    private Cuenta imagen;
+    // Si el historial de la imagen lo ha abierto el planificador (y por tanto lo cierra)
+    private boolean imagenPropia;
+    private volatile int guardados;
+    private volatile int exportados = -1;
+
+    /**
+     * Crea el planificador de la cuenta, que se guarda en {@code archivo} (ver {@link SnapshotBinario}).
+     * Se captura un snapshot cada {@code movimientosPorSnapshot} movimientos o, si ha habido alguno,
+     * cuando han pasado {@code intervaloMs} desde la captura anterior (se comprueba con cada
+     * {@link #comprobar()}). {@code guardada} indica si el archivo ya contiene el estado actual de
+     * la cuenta; si no, al cerrar se guarda aunque no haya cambiado.
+     */
+    public PlanificadorSnapshots(Cuenta cuenta, Path archivo, Exportacion exportacion,
+                                 int movimientosPorSnapshot, long intervaloMs, boolean guardada) {
+        this.cuenta = cuenta;
+        this.archivo = archivo;
+        this.exportacion = exportacion;
+        this.diario = cuenta.getDiario();
+        this.movimientosPorSnapshot = Math.max(1, movimientosPorSnapshot);
+        this.intervaloNanos = TimeUnit.MILLISECONDS.toNanos(intervaloMs);
+        List<Movimiento> movimientos = cuenta.getMovimientos();
+        this.enSegundoPlano = !(cuenta instanceof CuentaConcurrente) && !(movimientos instanceof HistorialMapeado)
+                && !(movimientos instanceof HistorialEscalonado);
+        this.capturados = movimientos.size();
+        this.guardados = guardada ? capturados : -1;
+
+        if (enSegundoPlano) {
+            // Imagen inicial: el historial cargado del snapshot se comparte; si está en memoria, se copia
+            List<Movimiento> copia = movimientos instanceof HistorialPerezoso
+                    ? ((HistorialPerezoso) movimientos).copia() : new ArrayList<>(movimientos);
+            imagen = new Cuenta(copiaCliente(), copia, cuenta.getSaldoCentimos(), cuenta.getEstadisticas().copia());
+            hilo = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "cuenta-snapshots");
+                t.setDaemon(true);
+                return t;
+            });
+        } else {
+            hilo = null;
+        }
+    }
+
+    /**
+     * Captura un snapshot si desde la captura anterior se han añadido {@code movimientosPorSnapshot}
+     * movimientos o, habiendo alguno, ha pasado el intervalo. También si algún movimiento no se
+     * pudo anotar en el diario (ver {@link Cuenta#isDiarioIncompleto()}). Se llama tras cada operación.
+     */
+    public void comprobar() {
+        int nuevos = cuenta.getMovimientos().size() - capturados;
+        if (cuenta.isDiarioIncompleto() || nuevos >= movimientosPorSnapshot
+                || (nuevos > 0 && System.nanoTime() - ultimaCaptura >= intervaloNanos)) {
+            capturar(true, false);
+        }
+    }
+
+    /** Captura la cuenta para guardar un snapshot. */
+    public void solicitarSnapshot() {
+        capturar(true, false);
+    }
+
+    /**
+     * Guarda un snapshot de la cuenta y espera a que esté escrito. Es para los movimientos que no
+     * pasan por el diario (por ejemplo los importados): hasta que se guarde, la cuenta queda como
+     * si no se hubieran podido anotar ({@link Cuenta#isDiarioIncompleto()}), así que si falla se
+     * vuelve a intentar tras la siguiente operación. Devuelve si se ha guardado.
+     */
+    public boolean guardarAhora() {
+        cuenta.setDiarioIncompleto(true);
+        capturar(true, false);
+        esperar();
+        return !cuenta.isDiarioIncompleto();
+    }
+
+    /** Captura la cuenta para exportarla a sus archivos. */
+    public void solicitarExportacion() {
+        capturar(false, true);
+    }
+
+    /**
+     * Movimientos que contiene el último snapshot guardado (-1 si no se ha guardado ninguno y el
+     * archivo no estaba al día).
+     */
+    public int getGuardados() {
+        return guardados;
+    }
+
+    /** Movimientos que contiene la última exportación (-1 si no se ha exportado). */
+    public int getExportados() {
+        return exportados;
+    }
+
+    /**
+     * Captura lo que falte por guardar y espera a que se terminen el snapshot y las exportaciones
+     * pendientes. El diario y el historial de la cuenta no se cierran.
+     */
+    @Override
+    public void close() throws IOException {
+        if (cerrado) return;
+        if (cuenta.getMovimientos().size() != guardados || cuenta.isDiarioIncompleto()) {
+            capturar(true, false);
+        }
+        cerrado = true;
+        if (hilo != null) {
+            hilo.shutdown();
+            try {
+                while (!hilo.awaitTermination(1, TimeUnit.MINUTES)) {
+                    System.out.println("Esperando a que termine de guardarse la cuenta...");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrumpido mientras se guardaba la cuenta.", e);
+            }
+            if (imagenPropia) {
+                ((Closeable) imagen.getMovimientos()).close();
+            }
+        }
+    }
+
+    // Copia lo añadido desde la captura anterior y lo deja para el hilo del planificador
+    private void capturar(boolean snapshot, boolean exportar) {
+        if (cerrado) {
+            throw new IllegalStateException("El planificador de snapshots está cerrado.");
+        }
+        long inicio = MEDIDA_CAPTURA.iniciar();
+        List<Movimiento> movimientos = cuenta.getMovimientos();
+        int total = movimientos.size();
+        ultimaCaptura = System.nanoTime();
+        if (!enSegundoPlano) {
+            capturados = total;
+            if (snapshot) guardar(cuenta, null);
+            if (exportar) exportar(cuenta);
+            MEDIDA_CAPTURA.registrar(inicio);
+            return;
+        }
+
+        Movimiento[] nuevos = movimientos.subList(capturados, total).toArray(new Movimiento[0]);
+        capturados = total;
+        DiarioMovimientos.Marca marca = null;
+        boolean incompleto = snapshot && cuenta.isDiarioIncompleto();
+        if (snapshot && diario != null) {
+            try {
+                marca = diario.marca();
+            } catch (IOException e) {
+                // Sin marca se guarda igual; el diario se vacía en el siguiente snapshot
+                System.out.println("Error al leer la posición del diario: " + e.getMessage());
+            }
+        }
+        synchronized (this) {
+            if (pendiente == null) {
+                pendiente = new Captura();
+                hilo.execute(this::procesar);
+            }
+            pendiente.juntar(nuevos, copiaCliente(), marca, snapshot, incompleto, exportar);
+        }
+        MEDIDA_CAPTURA.registrar(inicio);
+    }
+
+    // Espera a que el hilo del planificador termine lo que tiene en cola
+    private void esperar() {
+        if (hilo == null) return;
+        try {
+            hilo.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // La tarea está vacía: no puede fallar
+        }
+    }
+
+    // El titular se copia para que un cambio de nombre no altere un snapshot a medio escribir
+    private Cliente copiaCliente() {
+        Cliente cliente = cuenta.getCliente();
+        return cliente != null ? new Cliente(cliente.getNombre()) : null;
+    }
+
+    // Hilo del planificador: aplica a la imagen lo capturado y la guarda o la exporta
+    private void procesar() {
+        Captura c;
+        synchronized (this) {
+            c = pendiente;
+            pendiente = null;
+        }
+        for (Movimiento[] nuevos : c.movimientos) {
+            for (Movimiento m : nuevos) {
+                imagen.addMovimiento(m);
+            }
+        }
+        imagen.setCliente(c.cliente);
+        int total = imagen.getMovimientos().size();
+        if (c.snapshot && total != guardados && guardar(imagen, c.marca)) {
+            reabrirImagen(total);
+        }
+        // Lo que no estaba en el diario ya está en el snapshot
+        if (c.incompleto && guardados == total) {
+            cuenta.setDiarioIncompleto(false);
+        }
+        if (c.exportar && total != exportados) {
+            exportar(imagen);
+        }
+    }
+
+    // Guarda el snapshot y quita del diario lo que ya contiene (todo si es la cuenta en vivo)
+    private boolean guardar(Cuenta origen, DiarioMovimientos.Marca marca) {
+        long inicio = MEDIDA_ESCRITURA.iniciar();
+        // Lo que falte en el diario queda en el snapshot de la cuenta en vivo; si otra anotación
+        // falla mientras se guarda, se vuelve a marcar
+        boolean incompleto = origen == cuenta && cuenta.isDiarioIncompleto();
+        if (incompleto) cuenta.setDiarioIncompleto(false);
+        try {
+            int total = origen.getMovimientos().size();
+            SnapshotBinario.guardar(origen, archivo);
+            guardados = total;
+            if (origen == cuenta) {
+                if (diario != null) diario.truncar();
+            } else if (marca != null) {
+                diario.descartarHasta(marca);
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            if (incompleto) cuenta.setDiarioIncompleto(true);
+            System.out.println("Error al guardar la cuenta: " + e.getMessage());
+            return false;
+        } finally {
+            MEDIDA_ESCRITURA.registrar(inicio);
+        }
+    }
+
+    private void exportar(Cuenta origen) {
+        long inicio = MEDIDA_ESCRITURA.iniciar();
+        try {
+            int total = origen.getMovimientos().size();
+            exportacion.exportar(origen);
+            exportados = total;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error escribiendo archivos de exportación: " + e.getMessage());
+        } finally {
+            MEDIDA_ESCRITURA.registrar(inicio);
+        }
+    }
+
+    // La imagen pasa a leerse del snapshot recién guardado: deja de ocupar memoria y el siguiente
+    // snapshot copia sus bloques sin decodificarlos
+    private void reabrirImagen(int total) {
+        try {
+            Cuenta reabierta = SnapshotBinario.cargar(archivo, true);
+            if (!(reabierta.getMovimientos() instanceof HistorialPerezoso) || reabierta.getMovimientos().size() != total) {
+                if (reabierta.getMovimientos() instanceof Closeable) {
+                    ((Closeable) reabierta.getMovimientos()).close();
+                }
+                return;
+            }
+            if (imagenPropia) {
+                ((Closeable) imagen.getMovimientos()).close();
+            }
+            imagen = reabierta;
+            imagenPropia = true;
+        } catch (IOException e) {
+            // Se sigue con la imagen en memoria
+            System.out.println("No se pudo reabrir el snapshot guardado: " + e.getMessage());
+        }
+    }
+
+    // Capturas que se han juntado mientras el hilo estaba ocupado
+    private static final class Captura {
+        final List<Movimiento[]> movimientos = new ArrayList<>();
+        Cliente cliente;
+        DiarioMovimientos.Marca marca;
+        boolean snapshot;
+        // Si la cuenta tenía movimientos sin anotar en el diario al capturarla
+        boolean incompleto;
+        boolean exportar;
+
+        void juntar(Movimiento[] nuevos, Cliente cliente, DiarioMovimientos.Marca marca, boolean snapshot,
+                    boolean incompleto, boolean exportar) {
+            if (nuevos.length > 0) movimientos.add(nuevos);
+            this.cliente = cliente;
+            if (marca != null) this.marca = marca;
+            this.snapshot |= snapshot;
+            this.incompleto |= incompleto;
+            this.exportar |= exportar;
+        }
+    }
+}
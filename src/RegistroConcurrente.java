@@ -0,0 +1,106 @@
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Historial de movimientos en el que varios hilos pueden añadir a la vez sin bloqueos.
+ *
+ * Cada hilo reserva una posición con un contador atómico y publica allí su movimiento.
+ * Las posiciones se guardan en bloques que crecen al doble (16, 32, 64...), creados bajo demanda,
+ * así que nunca hay que copiar el historial para ampliarlo. La vista de lista ({@link #size()},
+ * {@link #get(int)}) solo muestra el prefijo contiguo de movimientos ya publicados.
+ */
+public class RegistroConcurrente extends AbstractList<Movimiento> implements RandomAccess, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final int TAM_PRIMER_BLOQUE = 16;
+    // Con 27 bloques se cubren todas las posiciones que admite un int
+    private static final int MAX_BLOQUES = 27;
+
+    private final AtomicReferenceArray<AtomicReferenceArray<Movimiento>> bloques = new AtomicReferenceArray<>(MAX_BLOQUES);
+    // Posiciones reservadas (algunas pueden estar aún sin publicar)
+    private final AtomicInteger reservados = new AtomicInteger();
+    // Longitud del prefijo contiguo ya publicado
+    private final AtomicInteger publicados = new AtomicInteger();
+
+    /**
+     * Añade un movimiento y devuelve la posición que ocupa en el historial.
+     */
+    public int anadir(Movimiento m) {
+        int indice = reservados.getAndIncrement();
+        if (indice < 0) {
+            throw new IllegalStateException("El historial ha alcanzado su capacidad máxima.");
+        }
+        bloque(indice, true).set(desplazamiento(indice), m);
+        avanzarPublicados();
+        return indice;
+    }
+
+    /**
+     * Añade varios movimientos en posiciones consecutivas y devuelve la primera de ellas.
+     */
+    public int anadirTodos(Movimiento[] lote) {
+        int primero = reservados.getAndAdd(lote.length);
+        if (primero < 0 || primero + lote.length < 0) {
+            throw new IllegalStateException("El historial ha alcanzado su capacidad máxima.");
+        }
+        for (int i = 0; i < lote.length; i++) {
+            bloque(primero + i, true).set(desplazamiento(primero + i), lote[i]);
+        }
+        avanzarPublicados();
+        return primero;
+    }
+
+    @Override
+    public boolean add(Movimiento m) {
+        anadir(m);
+        return true;
+    }
+
+    @Override
+    public Movimiento get(int indice) {
+        if (indice < 0 || indice >= publicados.get()) {
+            throw new IndexOutOfBoundsException("Índice " + indice + " fuera del historial (tamaño " + size() + ")");
+        }
+        return bloque(indice, false).get(desplazamiento(indice));
+    }
+
+    @Override
+    public int size() {
+        return publicados.get();
+    }
+
+    // Mueve el final del prefijo publicado mientras la siguiente posición ya tenga movimiento.
+    // Cualquier hilo puede ayudar a avanzarlo, así que ninguno espera a otro.
+    private void avanzarPublicados() {
+        while (true) {
+            int p = publicados.get();
+            if (p >= reservados.get()) return;
+            AtomicReferenceArray<Movimiento> b = bloques.get(numeroBloque(p));
+            if (b == null || b.get(desplazamiento(p)) == null) return;
+            publicados.compareAndSet(p, p + 1);
+        }
+    }
+
+    private AtomicReferenceArray<Movimiento> bloque(int indice, boolean crear) {
+        int k = numeroBloque(indice);
+        AtomicReferenceArray<Movimiento> b = bloques.get(k);
+        if (b == null && crear) {
+            bloques.compareAndSet(k, null, new AtomicReferenceArray<>(TAM_PRIMER_BLOQUE << k));
+            b = bloques.get(k);
+        }
+        return b;
+    }
+
+    // El bloque k empieza en la posición 16 * (2^k - 1)
+    private static int numeroBloque(int indice) {
+        return 31 - Integer.numberOfLeadingZeros(indice / TAM_PRIMER_BLOQUE + 1);
+    }
+
+    private static int desplazamiento(int indice) {
+        int k = numeroBloque(indice);
+        return indice - TAM_PRIMER_BLOQUE * ((1 << k) - 1);
+    }
+}
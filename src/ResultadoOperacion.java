@@ -0,0 +1,31 @@
+/**
+ * Resultado de un ingreso o una retirada pedidos a una {@link Cuenta}.
+ */
+public enum ResultadoOperacion {
+    /** La operación se ha realizado y está en el historial. */
+    REALIZADA,
+    /** La cantidad no es positiva (una vez redondeada a céntimos). */
+    CANTIDAD_NO_VALIDA,
+    /** La retirada supera el saldo disponible. */
+    SALDO_INSUFICIENTE,
+    /** El ingreso haría que el saldo superase el máximo representable en céntimos. */
+    SALDO_MAXIMO_SUPERADO,
+    /** No se ha podido anotar la operación en el diario, así que no se ha realizado. */
+    NO_ANOTADA,
+    /**
+     * La operación se ha realizado pero no se ha podido anotar en el diario (en una
+     * {@link CuentaConcurrente} el movimiento ya está en el historial al anotarlo): queda guardada
+     * con el siguiente snapshot.
+     */
+    REALIZADA_SIN_DIARIO,
+    /**
+     * La cuenta está cerrada porque el {@link Banco} la está descargando de memoria: no se ha
+     * realizado. Hay que volver a pedir la cuenta al banco ({@link Banco#obtener(long)}).
+     */
+    CUENTA_CERRADA;
+
+    /** true si la operación se ha realizado. */
+    public boolean realizada() {
+        return this == REALIZADA || this == REALIZADA_SIN_DIARIO;
+    }
+}
@@ -0,0 +1,167 @@
+import java.io.Closeable;
+import java.io.PrintStream;
+
+/**
+ * Escucha que escribe los avisos de una cuenta en consola (o en otro PrintStream) desde un hilo
+ * aparte, con los mismos mensajes que escribían antes {@code ingresar} y {@code retirar}.
+ *
+ * Los avisos se guardan en un buffer circular de tamaño fijo, por columnas de tipos primitivos,
+ * así que avisar solo cuesta copiar tres valores bajo un cerrojo muy breve: el formateo y la
+ * escritura se hacen en el hilo de salida, que vacía todo lo pendiente de una vez y escribe un
+ * único bloque de texto. Si el buffer se llena (la consola no da abasto) los avisos nuevos se
+ * descartan y se indica cuántos se han perdido, en lugar de frenar a quien opera con la cuenta.
+ *
+ * Quien intercala otros mensajes en la misma consola puede llamar a {@link #vaciar()} para
+ * esperar a que todo lo anterior se haya escrito y conservar el orden.
+ */
+public class SalidaConsolaAsincrona implements EscuchaCuenta, Closeable {
+    private static final int CAPACIDAD_POR_DEFECTO = 4096;
+    private static final TipoMovimiento[] TIPOS = TipoMovimiento.values();
+    private static final ResultadoOperacion[] RESULTADOS = ResultadoOperacion.values();
+
+    private final PrintStream destino;
+    private final int capacidad;
+    private final byte[] tipos;
+    private final long[] centimos;
+    private final byte[] resultados;
+    private final Thread hilo;
+
+    // Avisos recibidos y avisos ya escritos (el buffer contiene los que hay entre ambos)
+    private long recibidos;
+    private long escritos;
+    // Avisos descartados con el buffer lleno, pendientes de indicar
+    private long descartados;
+    private boolean cerrada;
+
+    /** Salida a {@code System.out} con el tamaño de buffer por defecto. */
+    public SalidaConsolaAsincrona() {
+        this(System.out, CAPACIDAD_POR_DEFECTO);
+    }
+
+    public SalidaConsolaAsincrona(PrintStream destino, int capacidad) {
+        if (capacidad <= 0) {
+            throw new IllegalArgumentException("La capacidad debe ser positiva.");
+        }
+        this.destino = destino;
+        this.capacidad = capacidad;
+        this.tipos = new byte[capacidad];
+        this.centimos = new long[capacidad];
+        this.resultados = new byte[capacidad];
+        this.hilo = new Thread(this::escribirPendientes, "salida-consola");
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
+    @Override
+    public synchronized void operacion(TipoMovimiento tipo, long centimos, ResultadoOperacion resultado) {
+        if (cerrada) return;
+        if (recibidos - escritos == capacidad) {
+            descartados++;
+            return;
+        }
+        int i = (int) (recibidos % capacidad);
+        this.tipos[i] = (byte) tipo.ordinal();
+        this.centimos[i] = centimos;
+        this.resultados[i] = (byte) resultado.ordinal();
+        recibidos++;
+        // Solo hace falta despertar al hilo de salida si estaba todo escrito
+        if (recibidos - escritos == 1) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Espera a que se hayan escrito todos los avisos recibidos hasta ahora.
+     */
+    public synchronized void vaciar() {
+        long objetivo = recibidos;
+        try {
+            while (escritos < objetivo && hilo.isAlive()) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Escribe lo pendiente y para el hilo de salida. Los avisos posteriores se ignoran. */
+    @Override
+    public void close() {
+        synchronized (this) {
+            cerrada = true;
+            notifyAll();
+        }
+        try {
+            hilo.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Mensaje de consola de un aviso. */
+    static String mensaje(TipoMovimiento tipo, long centimos, ResultadoOperacion resultado) {
+        switch (resultado) {
+            case REALIZADA:
+                return (tipo == TipoMovimiento.INGRESO ? "Ingreso realizado" : "Retirada realizada")
+                        + " correctamente: " + String.format("%.2f", centimos / 100.0) + " €";
+            case SALDO_INSUFICIENTE:
+                return "No hay saldo suficiente para retirar esa cantidad.";
+            case SALDO_MAXIMO_SUPERADO:
+                return "El ingreso superaría el saldo máximo de la cuenta.";
+            case NO_ANOTADA:
+                return "No se ha podido anotar la operación en el diario; no se ha realizado.";
+            case REALIZADA_SIN_DIARIO:
+                return (tipo == TipoMovimiento.INGRESO ? "Ingreso realizado" : "Retirada realizada")
+                        + " (" + String.format("%.2f", centimos / 100.0) + " €), pero no se ha podido anotar"
+                        + " en el diario: se guardará con el siguiente snapshot.";
+            case CUENTA_CERRADA:
+                return "La cuenta se está guardando y cerrando; vuelva a intentarlo.";
+            default:
+                return "La cantidad debe ser positiva.";
+        }
+    }
+
+    // Bucle del hilo de salida: toma todos los avisos pendientes y los escribe de una vez
+    private void escribirPendientes() {
+        StringBuilder texto = new StringBuilder();
+        String salto = System.lineSeparator();
+        while (true) {
+            long desde;
+            long hasta;
+            long perdidos;
+            synchronized (this) {
+                try {
+                    while (escritos == recibidos && descartados == 0 && !cerrada) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (escritos == recibidos && descartados == 0) {
+                    return;
+                }
+                desde = escritos;
+                hasta = recibidos;
+                perdidos = descartados;
+                descartados = 0;
+            }
+
+            // Las posiciones [desde, hasta) no se reutilizan hasta que avance escritos
+            texto.setLength(0);
+            for (long k = desde; k < hasta; k++) {
+                int i = (int) (k % capacidad);
+                texto.append(mensaje(TIPOS[tipos[i]], centimos[i], RESULTADOS[resultados[i]])).append(salto);
+            }
+            if (perdidos > 0) {
+                texto.append("(").append(perdidos).append(" avisos no mostrados: la consola no daba abasto)").append(salto);
+            }
+            destino.print(texto);
+            destino.flush();
+
+            synchronized (this) {
+                escritos = hasta;
+                notifyAll();
+            }
+        }
+    }
+}
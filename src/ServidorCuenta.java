@@ -0,0 +1,299 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Servidor que expone las operaciones de una cuenta por un socket TCP local, para que otros
+ * servicios o un generador de carga (ver {@code ClienteCarga}) puedan usarla sin el menú.
+ *
+ * Cada conexión se atiende en su propio hilo virtual. El protocolo es binario y con tramas: cada
+ * petición y cada respuesta empiezan con su longitud (int, sin contarse a sí misma). Una petición
+ * es el código de la operación (byte) y sus argumentos; una respuesta es un estado (byte) y sus
+ * datos. El cliente puede enviar varias peticiones seguidas sin esperar las respuestas, que llegan
+ * en el mismo orden: el servidor solo vacía su buffer de salida cuando no le quedan peticiones
+ * recibidas por atender, así que un lote de peticiones sale en pocos paquetes.
+ *
+ * <pre>
+ *   OP_INGRESAR     céntimos (long)            -> estado, saldo en céntimos (long)
+ *   OP_RETIRAR      céntimos (long)            -> estado, saldo en céntimos (long)
+ *   OP_SALDO                                   -> estado, saldo en céntimos (long)
+ *   OP_MOVIMIENTOS  desde (int), máximo (int)  -> estado, total (int), n (int) y n movimientos:
+ *                                                 instante (long), tipo (byte), céntimos (long)
+ *   OP_EXPORTAR                                -> estado, rutas de CSV, XML y JSON (writeUTF)
+ * </pre>
+ * El estado de ingresos y retiradas es el ordinal de su {@link ResultadoOperacion}; el resto
+ * responden {@link #ESTADO_OK}, {@link #ESTADO_PETICION_NO_VALIDA} o {@link #ESTADO_ERROR}
+ * seguido del mensaje (writeUTF).
+ *
+ * Si la cuenta es una {@link CuentaConcurrente}, los ingresos y retiradas de varias conexiones se
+ * aplican a la vez; si no, se aplican de uno en uno. Las exportaciones y el mantenimiento (por
+ * ejemplo guardar un snapshot) se hacen sin ninguna otra operación en curso.
+ */
+public class ServidorCuenta implements Closeable {
+    public static final int PUERTO_POR_DEFECTO = 7070;
+
+    public static final byte OP_INGRESAR = 1;
+    public static final byte OP_RETIRAR = 2;
+    public static final byte OP_SALDO = 3;
+    public static final byte OP_MOVIMIENTOS = 4;
+    public static final byte OP_EXPORTAR = 5;
+
+    public static final byte ESTADO_OK = 0;
+    public static final byte ESTADO_PETICION_NO_VALIDA = 0x40;
+    public static final byte ESTADO_ERROR = 0x41;
+
+    /** Máximo de movimientos en una respuesta de {@link #OP_MOVIMIENTOS}. */
+    public static final int MAX_MOVIMIENTOS_POR_RESPUESTA = 1000;
+    // Ninguna petición válida ocupa más; una longitud mayor es que la conexión no habla este protocolo
+    private static final int MAX_PETICION = 64;
+    private static final int TAM_BUFFER = 64 * 1024;
+    // Cada cuántos ingresos o retiradas se ejecuta el mantenimiento
+    private static final int ESCRITURAS_POR_MANTENIMIENTO = 256;
+
+    private static final Metricas.Medida MEDIDA_PETICION = Metricas.medida("servidor.peticion", 16);
+
+    private final Cuenta cuenta;
+    private final boolean concurrente;
+    private final Path carpetaExportacion;
+    private final Runnable mantenimiento;
+    private final ServerSocket servidor;
+    private final ExecutorService conexiones;
+    private final Set<Socket> abiertas = ConcurrentHashMap.newKeySet();
+    // Lectura: operaciones que pueden ir a la vez; escritura: las que necesitan la cuenta para sí
+    private final ReentrantReadWriteLock cerrojo = new ReentrantReadWriteLock();
+    private final AtomicLong escrituras = new AtomicLong();
+    private volatile boolean cerrado;
+
+    /**
+     * Abre el servidor en el puerto indicado de la interfaz local (0 = cualquiera libre). Las
+     * exportaciones se escriben en {@code carpetaExportacion}; {@code mantenimiento} (puede ser
+     * null) se ejecuta cada cierto número de ingresos y retiradas, sin otras operaciones en curso.
+     */
+    public ServidorCuenta(Cuenta cuenta, int puerto, Path carpetaExportacion, Runnable mantenimiento) throws IOException {
+        this.cuenta = cuenta;
+        this.concurrente = cuenta instanceof CuentaConcurrente;
+        this.carpetaExportacion = carpetaExportacion;
+        this.mantenimiento = mantenimiento;
+        this.servidor = new ServerSocket(puerto, 128, InetAddress.getLoopbackAddress());
+        this.conexiones = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("cuenta-conexion-", 0).factory());
+    }
+
+    /** Puerto en el que escucha el servidor. */
+    public int getPuerto() {
+        return servidor.getLocalPort();
+    }
+
+    /**
+     * Acepta conexiones hasta que se cierra el servidor. Bloquea el hilo que la llama.
+     */
+    public void servir() throws IOException {
+        while (!cerrado) {
+            Socket socket;
+            try {
+                socket = servidor.accept();
+            } catch (SocketException e) {
+                if (cerrado) return;
+                throw e;
+            }
+            socket.setTcpNoDelay(true);
+            abiertas.add(socket);
+            Metricas.contador("servidor.conexiones").increment();
+            conexiones.execute(() -> atender(socket));
+        }
+    }
+
+    /**
+     * Deja de aceptar conexiones, cierra las abiertas y espera a que terminen sus operaciones.
+     */
+    @Override
+    public void close() throws IOException {
+        cerrado = true;
+        servidor.close();
+        for (Socket socket : abiertas) {
+            socket.close();
+        }
+        conexiones.shutdown();
+        try {
+            conexiones.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Atiende las peticiones de una conexión, en orden, hasta que el cliente la cierra
+    private void atender(Socket socket) {
+        byte[] peticion = new byte[MAX_PETICION];
+        ByteArrayOutputStream respuesta = new ByteArrayOutputStream(256);
+        DataOutputStream datos = new DataOutputStream(respuesta);
+        try (socket;
+             DataInputStream entrada = new DataInputStream(new BufferedInputStream(socket.getInputStream(), TAM_BUFFER));
+             DataOutputStream salida = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), TAM_BUFFER))) {
+            while (true) {
+                // Antes de quedarse esperando se envían las respuestas acumuladas
+                if (entrada.available() == 0) {
+                    salida.flush();
+                }
+                int longitud;
+                try {
+                    longitud = entrada.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (longitud < 1 || longitud > MAX_PETICION) {
+                    return;
+                }
+                entrada.readFully(peticion, 0, longitud);
+                long inicio = MEDIDA_PETICION.iniciar();
+                try {
+                    ejecutar(ByteBuffer.wrap(peticion, 0, longitud), datos);
+                } catch (IOException | RuntimeException e) {
+                    // Error de la operación, no de la conexión: se descarta lo escrito y se informa
+                    respuesta.reset();
+                    datos.writeByte(ESTADO_ERROR);
+                    datos.writeUTF(String.valueOf(e.getMessage()));
+                }
+                MEDIDA_PETICION.registrar(inicio);
+                salida.writeInt(respuesta.size());
+                respuesta.writeTo(salida);
+                respuesta.reset();
+            }
+        } catch (IOException e) {
+            // Conexión cortada por el cliente o al cerrar el servidor
+        } finally {
+            abiertas.remove(socket);
+        }
+    }
+
+    // Ejecuta una petición y escribe su respuesta (sin la longitud)
+    private void ejecutar(ByteBuffer peticion, DataOutputStream respuesta) throws IOException {
+        byte operacion = peticion.get();
+        switch (operacion) {
+            case OP_INGRESAR:
+            case OP_RETIRAR:
+                if (peticion.remaining() != 8) break;
+                operar(operacion == OP_INGRESAR ? TipoMovimiento.INGRESO : TipoMovimiento.RETIRADA,
+                        peticion.getLong(), respuesta);
+                return;
+            case OP_SALDO:
+                if (peticion.hasRemaining()) break;
+                respuesta.writeByte(ESTADO_OK);
+                respuesta.writeLong(saldo());
+                return;
+            case OP_MOVIMIENTOS:
+                if (peticion.remaining() != 8) break;
+                movimientos(peticion.getInt(), peticion.getInt(), respuesta);
+                return;
+            case OP_EXPORTAR:
+                if (peticion.hasRemaining()) break;
+                exportar(respuesta);
+                return;
+            default:
+                break;
+        }
+        respuesta.writeByte(ESTADO_PETICION_NO_VALIDA);
+    }
+
+    private void operar(TipoMovimiento tipo, long centimos, DataOutputStream respuesta) throws IOException {
+        Lock lock = concurrente ? cerrojo.readLock() : cerrojo.writeLock();
+        ResultadoOperacion resultado;
+        long saldo;
+        lock.lock();
+        try {
+            resultado = tipo == TipoMovimiento.INGRESO ? cuenta.ingresarCentimos(centimos) : cuenta.retirarCentimos(centimos);
+            saldo = cuenta.getSaldoCentimos();
+        } finally {
+            lock.unlock();
+        }
+        if (resultado.realizada() && mantenimiento != null
+                && escrituras.incrementAndGet() % ESCRITURAS_POR_MANTENIMIENTO == 0) {
+            mantener();
+        }
+        respuesta.writeByte(resultado.ordinal());
+        respuesta.writeLong(saldo);
+    }
+
+    private long saldo() {
+        Lock lock = cerrojo.readLock();
+        lock.lock();
+        try {
+            return cuenta.getSaldoCentimos();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void movimientos(int desde, int maximo, DataOutputStream respuesta) throws IOException {
+        if (desde < 0 || maximo < 0) {
+            respuesta.writeByte(ESTADO_PETICION_NO_VALIDA);
+            return;
+        }
+        Lock lock = cerrojo.readLock();
+        lock.lock();
+        try {
+            List<Movimiento> movimientos = cuenta.getMovimientos();
+            int total = movimientos.size();
+            int hasta = (int) Math.min(total, (long) desde + Math.min(maximo, MAX_MOVIMIENTOS_POR_RESPUESTA));
+            int n = Math.max(0, hasta - desde);
+            respuesta.writeByte(ESTADO_OK);
+            respuesta.writeInt(total);
+            respuesta.writeInt(n);
+            for (int i = desde; i < hasta; i++) {
+                Movimiento m = movimientos.get(i);
+                respuesta.writeLong(m.getInstante());
+                respuesta.writeByte(m.getTipoMovimiento().getCodigo());
+                respuesta.writeLong(m.getCentimos());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void exportar(DataOutputStream respuesta) throws IOException {
+        Path csv = carpetaExportacion.resolve("cuenta.csv");
+        Path xml = carpetaExportacion.resolve("cuenta.xml");
+        Path json = carpetaExportacion.resolve("cuenta.json");
+        Lock lock = cerrojo.writeLock();
+        lock.lock();
+        try {
+            ExportacionIncremental.exportarTodo(cuenta, csv, xml, json);
+        } finally {
+            lock.unlock();
+        }
+        respuesta.writeByte(ESTADO_OK);
+        respuesta.writeUTF(csv.toAbsolutePath().toString());
+        respuesta.writeUTF(xml.toAbsolutePath().toString());
+        respuesta.writeUTF(json.toAbsolutePath().toString());
+    }
+
+    private void mantener() {
+        Lock lock = cerrojo.writeLock();
+        lock.lock();
+        try {
+            mantenimiento.run();
+        } catch (RuntimeException e) {
+            System.err.println("Error en el mantenimiento de la cuenta: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+}
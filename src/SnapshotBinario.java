@@ -0,0 +1,745 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Formato binario propio para los snapshots de una {@link Cuenta} (sustituye a la serialización de Java).
+ *
+ * No guarda descriptores de clases ni crea objetos que no sean de la cuenta, así que no expone
+ * la deserialización de Java a archivos manipulados y se lee y escribe por bloques con un
+ * {@link FileChannel} y buffers directos. Formato (big-endian):
+ * <pre>
+ *   cabecera:    magia (int), versión (int), indicadores (int), tamaño de la cabecera (int),
+ *                nombre del cliente (cadena), número de movimientos (long), la carpeta del
+ *                historial si es un {@link HistorialMapeado} o un {@link HistorialEscalonado}
+ *                (cadena) y CRC32 de la cabecera (int)
+ *   bloques:     los movimientos, de {@value #MOVIMIENTOS_POR_BLOQUE} en {@value #MOVIMIENTOS_POR_BLOQUE}
+ *                (el último puede tener menos). Cada bloque lleva su número de movimientos (int),
+ *                el tamaño (int) y el CRC32 (int) de sus registros, y un registro por movimiento
+ *                con dos varints (7 bits por byte, zigzag para los negativos): diferencia de
+ *                instante con el movimiento anterior (el primero del bloque, con 0) y
+ *                (céntimos * 2 + código de tipo). Con un historial mapeado o escalonado no hay
+ *                bloques (los movimientos están en su carpeta)
+ *   resumen:     saldo en céntimos (long), un byte a 1 seguido de las estadísticas (ver
+ *                {@link EstadisticasCuenta}) o a 0 si no se guardan, y CRC32 (int)
+ *   índice:      posición de cada bloque (long) y CRC32 (int)
+ *   pie:         posición del resumen (long), posición del índice (long), número de bloques (int), magia (int)
+ * </pre>
+ * Las cadenas se guardan como longitud en bytes (int, -1 si es null) seguida de su UTF-8.
+ *
+ * Para crear la cuenta basta con la cabecera, el pie y el resumen: al cargar, los movimientos
+ * se dejan en el archivo y un {@link HistorialPerezoso} los lee por bloques cuando se piden, así
+ * que cargar cuesta lo mismo sea cual sea el tamaño del historial. Con {@code -Dcuenta.carga=completa}
+ * (y siempre en las cuentas concurrentes, que no guardan estadísticas) se leen todos al cargar.
+ * Al guardar un historial perezoso sus bloques completos se copian sin decodificarlos.
+ *
+ * Los snapshots de la versión 1 (sin bloques, resumen ni índice, con un único CRC32 al final)
+ * se siguen leyendo, siempre enteros.
+ */
+public class SnapshotBinario {
+    private static final int MAGIA = 0x43534E50; // "CSNP"
+    private static final int VERSION = 2;
+    private static final int VERSION_SIN_BLOQUES = 1;
+    private static final int TAM_CABECERA = 16;
+    // Máximo que ocupa un registro de movimiento (dos varints de 64 bits)
+    private static final int MAX_MOVIMIENTO = 20;
+    // Rango de céntimos que cabe en (céntimos * 2 + tipo)
+    private static final long MAX_CENTIMOS = Long.MAX_VALUE >> 1;
+    private static final int TAM_CRC = 4;
+    private static final int TAM_BUFFER = 256 * 1024;
+    // Límite de longitud de una cadena, para no reservar memoria con un archivo dañado
+    private static final int MAX_CADENA = 64 * 1024;
+    // La cabecera más grande posible: dos cadenas, el número de movimientos y el CRC
+    private static final int MAX_TAM_CABECERA = TAM_CABECERA + 2 * (4 + MAX_CADENA) + 8 + TAM_CRC;
+    /** Movimientos por bloque: todos los bloques tienen este número salvo el último. */
+    static final int MOVIMIENTOS_POR_BLOQUE = 4096;
+    // Número de movimientos, tamaño y CRC de los registros de un bloque
+    private static final int TAM_CABECERA_BLOQUE = 12;
+    /** Máximo que ocupa un bloque completo con su cabecera (ver {@link #codificarBloque}). */
+    static final int MAX_TAM_BLOQUE = TAM_CABECERA_BLOQUE + MOVIMIENTOS_POR_BLOQUE * MAX_MOVIMIENTO;
+    private static final int TAM_PIE = 24;
+    // Límite del resumen (unos 70 bytes por cada día con movimientos)
+    private static final int MAX_RESUMEN = 64 * 1024 * 1024;
+
+    // Indicadores de la cabecera
+    private static final int HISTORIAL_MAPEADO = 1;
+    private static final int CONCURRENTE = 2;
+    private static final int HISTORIAL_ESCALONADO = 4;
+
+    // Con -Dcuenta.carga=completa los movimientos se leen todos al cargar
+    private static final boolean CARGA_PEREZOSA = !"completa".equalsIgnoreCase(System.getProperty("cuenta.carga"));
+
+    private static final Metricas.Medida MEDIDA_GUARDAR = Metricas.medida("snapshot.guardar");
+    private static final Metricas.Medida MEDIDA_CARGAR = Metricas.medida("snapshot.cargar");
+
+    /** Indica si el archivo empieza con la cabecera de un snapshot binario. */
+    public static boolean esSnapshot(Path archivo) throws IOException {
+        try (FileChannel canal = FileChannel.open(archivo, StandardOpenOption.READ)) {
+            ByteBuffer magia = ByteBuffer.allocate(4);
+            while (magia.hasRemaining() && canal.read(magia) >= 0) {
+                // hasta leer los 4 bytes o llegar al final
+            }
+            return !magia.hasRemaining() && magia.getInt(0) == MAGIA;
+        }
+    }
+
+    /**
+     * Guarda la cuenta en {@code destino}. Se escribe en un temporal, se fuerza a disco y se
+     * renombra de forma atómica, así que un corte a mitad deja intacto el snapshot anterior.
+     */
+    public static void guardar(Cuenta cuenta, Path destino) throws IOException {
+        long inicio = MEDIDA_GUARDAR.iniciar();
+        long asignados = Metricas.asignados();
+        long escritos;
+        Path temporal = destino.resolveSibling(destino.getFileName() + ".tmp");
+        List<Movimiento> movimientos = cuenta.getMovimientos();
+        HistorialMapeado mapeado = movimientos instanceof HistorialMapeado ? (HistorialMapeado) movimientos : null;
+        HistorialEscalonado escalonado = movimientos instanceof HistorialEscalonado ? (HistorialEscalonado) movimientos : null;
+        boolean enCarpeta = mapeado != null || escalonado != null;
+        boolean concurrente = cuenta instanceof CuentaConcurrente;
+        int indicadores = (mapeado != null ? HISTORIAL_MAPEADO : 0) | (escalonado != null ? HISTORIAL_ESCALONADO : 0)
+                | (concurrente ? CONCURRENTE : 0);
+        // Se guardan los movimientos que hay ahora; si la cuenta admite operaciones concurrentes,
+        // lo que se añada durante el recorrido queda para el siguiente snapshot
+        int numero = movimientos.size();
+        int numBloques = enCarpeta ? 0 : (numero + MOVIMIENTOS_POR_BLOQUE - 1) / MOVIMIENTOS_POR_BLOQUE;
+
+        try (FileChannel canal = FileChannel.open(temporal, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Escritor w = new Escritor(canal);
+            Seccion cabecera = new Seccion();
+            cabecera.out.writeInt(MAGIA);
+            cabecera.out.writeInt(VERSION);
+            cabecera.out.writeInt(indicadores);
+            cabecera.out.writeInt(0);
+            cabecera.cadena(cuenta.getCliente() != null ? cuenta.getCliente().getNombre() : null);
+            cabecera.out.writeLong(numero);
+            if (mapeado != null) {
+                mapeado.sincronizar();
+                cabecera.cadena(mapeado.getCarpeta().toString());
+            } else if (escalonado != null) {
+                // Los movimientos que aún estaban solo en memoria se sellan antes de guardar
+                escalonado.sincronizar();
+                cabecera.cadena(escalonado.getCarpeta().toString());
+            }
+            cabecera.fijarEntero(12, cabecera.size() + TAM_CRC);
+            cabecera.escribirEn(w);
+
+            // En una cuenta concurrente el saldo puede incluir movimientos posteriores a los
+            // guardados: se guarda el de los movimientos escritos, así el archivo siempre es coherente
+            long saldo = concurrente ? 0 : cuenta.getSaldoCentimos();
+            long[] posiciones = new long[numBloques];
+            if (!enCarpeta) {
+                int b = 0;
+                if (movimientos instanceof HistorialPerezoso && ((HistorialPerezoso) movimientos).bloquesCompletos() > 0) {
+                    // Los bloques completos del snapshot anterior se copian tal cual, sin decodificarlos
+                    HistorialPerezoso anterior = (HistorialPerezoso) movimientos;
+                    b = anterior.bloquesCompletos();
+                    long desde = anterior.posicionBloque(0);
+                    long base = w.posicion();
+                    for (int i = 0; i < b; i++) {
+                        posiciones[i] = base + anterior.posicionBloque(i) - desde;
+                    }
+                    w.copiar(anterior.getCanal(), desde, anterior.posicionBloque(b) - desde);
+                }
+
+                byte[] registros = new byte[MOVIMIENTOS_POR_BLOQUE * MAX_MOVIMIENTO];
+                CRC32 crc = new CRC32();
+                int i = b * MOVIMIENTOS_POR_BLOQUE;
+                Iterator<Movimiento> it = movimientos.listIterator(i);
+                for (; b < numBloques; b++) {
+                    int n = Math.min(MOVIMIENTOS_POR_BLOQUE, numero - i);
+                    int tam = 0;
+                    long anterior = 0;
+                    for (int k = 0; k < n; k++, i++) {
+                        Movimiento m = it.next();
+                        long centimos = m.getCentimos();
+                        if (centimos > MAX_CENTIMOS || centimos < -MAX_CENTIMOS) {
+                            throw new IOException("Cantidad fuera de rango en el movimiento " + i + ": " + centimos);
+                        }
+                        tam = varint(registros, tam, m.getInstante() - anterior);
+                        tam = varint(registros, tam, centimos * 2 + m.getTipoMovimiento().getCodigo());
+                        anterior = m.getInstante();
+                        if (concurrente) {
+                            saldo += m.getTipoMovimiento() == TipoMovimiento.RETIRADA ? -centimos : centimos;
+                        }
+                    }
+                    crc.reset();
+                    crc.update(registros, 0, tam);
+                    posiciones[b] = w.posicion();
+                    w.entero(n);
+                    w.entero(tam);
+                    w.entero((int) crc.getValue());
+                    w.poner(registros, 0, tam);
+                }
+            }
+
+            long posicionResumen = w.posicion();
+            Seccion resumen = new Seccion();
+            resumen.out.writeLong(saldo);
+            // Las estadísticas de una cuenta concurrente tampoco tienen por qué coincidir con lo
+            // guardado: se recalculan al cargarla
+            resumen.out.writeBoolean(!concurrente);
+            if (!concurrente) {
+                cuenta.getEstadisticas().escribir(resumen.out);
+            }
+            resumen.escribirEn(w);
+
+            long posicionIndice = w.posicion();
+            Seccion indice = new Seccion();
+            for (long p : posiciones) {
+                indice.out.writeLong(p);
+            }
+            indice.escribirEn(w);
+
+            w.largo(posicionResumen);
+            w.largo(posicionIndice);
+            w.entero(numBloques);
+            w.entero(MAGIA);
+            w.volcar();
+            canal.force(true);
+            escritos = w.posicion();
+        }
+        Files.move(temporal, destino, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        MEDIDA_GUARDAR.registrar(inicio, asignados, escritos);
+    }
+
+    /**
+     * Lee una cuenta guardada con {@link #guardar}. Salvo con {@code -Dcuenta.carga=completa}, los
+     * movimientos no se leen hasta que se piden (ver {@link #cargar(Path, boolean)}).
+     */
+    public static Cuenta cargar(Path origen) throws IOException {
+        return cargar(origen, CARGA_PEREZOSA);
+    }
+
+    /**
+     * Lee una cuenta guardada con {@link #guardar}. Con {@code perezosa} solo se leen la cabecera,
+     * el pie y el resumen (de las estadísticas, solo los totales), y el historial es un
+     * {@link HistorialPerezoso} que mantiene el archivo abierto (las cuentas concurrentes y los
+     * snapshots de la versión 1 se leen siempre enteros).
+     * Lanza IOException si el archivo no es un snapshot, es de otra versión, está incompleto o
+     * algún CRC no coincide.
+     */
+    public static Cuenta cargar(Path origen, boolean perezosa) throws IOException {
+        long inicio = MEDIDA_CARGAR.iniciar();
+        long asignados = Metricas.asignados();
+        FileChannel canal = FileChannel.open(origen, StandardOpenOption.READ);
+        // Si el historial se queda con el canal, no se cierra aquí
+        boolean cedido = false;
+        try {
+            long tamano = canal.size();
+            if (tamano < TAM_CABECERA + TAM_CRC) {
+                throw new IOException("El archivo " + origen + " no es un snapshot de cuenta válido.");
+            }
+            ByteBuffer inicioCabecera = leer(canal, 0, TAM_CABECERA);
+            if (inicioCabecera.getInt() != MAGIA) {
+                throw new IOException("El archivo " + origen + " no es un snapshot de cuenta válido.");
+            }
+            int version = inicioCabecera.getInt();
+            Cuenta cuenta;
+            if (version == VERSION_SIN_BLOQUES) {
+                cuenta = cargarVersion1(canal, origen, tamano);
+            } else if (version == VERSION) {
+                int tamCabecera = inicioCabecera.getInt(12);
+                if (tamCabecera < TAM_CABECERA + 4 + 8 + TAM_CRC || tamCabecera > MAX_TAM_CABECERA
+                        || tamCabecera + TAM_PIE > tamano) {
+                    throw new IOException("El snapshot " + origen + " está incompleto o dañado.");
+                }
+                ByteBuffer cabecera = leerConCrc(canal, 0, tamCabecera, "la cabecera del snapshot " + origen);
+                cabecera.position(8);
+                int indicadores = cabecera.getInt();
+                cabecera.getInt();
+                Cliente cliente;
+                long numero;
+                String carpetaHistorial = null;
+                try {
+                    cliente = new Cliente(cadena(cabecera));
+                    numero = cabecera.getLong();
+                    if ((indicadores & (HISTORIAL_MAPEADO | HISTORIAL_ESCALONADO)) != 0) {
+                        carpetaHistorial = cadena(cabecera);
+                    }
+                } catch (BufferUnderflowException e) {
+                    throw new IOException("La cabecera del snapshot " + origen + " está incompleta.");
+                }
+                if (numero < 0 || numero > Integer.MAX_VALUE) {
+                    throw new IOException("Número de movimientos no válido en el snapshot: " + numero);
+                }
+
+                ByteBuffer pie = leer(canal, tamano - TAM_PIE, TAM_PIE);
+                long posicionResumen = pie.getLong();
+                long posicionIndice = pie.getLong();
+                int numBloques = pie.getInt();
+                int bloquesEsperados = carpetaHistorial != null ? 0
+                        : (int) ((numero + MOVIMIENTOS_POR_BLOQUE - 1) / MOVIMIENTOS_POR_BLOQUE);
+                if (pie.getInt() != MAGIA || numBloques != bloquesEsperados
+                        || posicionResumen < tamCabecera + (long) numBloques * TAM_CABECERA_BLOQUE
+                        || posicionIndice - posicionResumen < 8 + 1 + TAM_CRC
+                        || posicionIndice - posicionResumen > MAX_RESUMEN
+                        || posicionIndice + numBloques * 8L + TAM_CRC != tamano - TAM_PIE) {
+                    throw new IOException("El snapshot " + origen + " está incompleto o dañado.");
+                }
+
+                ByteBuffer resumen = leerConCrc(canal, posicionResumen, (int) (posicionIndice - posicionResumen),
+                        "el resumen del snapshot " + origen);
+                DataInputStream in = new DataInputStream(
+                        new ByteArrayInputStream(resumen.array(), 0, resumen.limit() - TAM_CRC));
+                long saldo = in.readLong();
+                boolean conEstadisticas = in.readBoolean();
+                boolean concurrente = (indicadores & CONCURRENTE) != 0;
+                boolean historialPerezoso = carpetaHistorial == null && perezosa && !concurrente && conEstadisticas;
+                EstadisticasCuenta estadisticas = null;
+                if (conEstadisticas) {
+                    estadisticas = EstadisticasCuenta.leerTotales(in);
+                    if (historialPerezoso) {
+                        // El canal se queda abierto para el historial: los resúmenes por día y por
+                        // mes, que van hasta el CRC del resumen, también se leen de él al pedirlos
+                        int tamResumenes = in.available();
+                        estadisticas.resumenesEnDisco(canal, posicionIndice - TAM_CRC - tamResumenes, tamResumenes);
+                    } else {
+                        estadisticas.leerResumenes(in);
+                    }
+                }
+
+                List<Movimiento> historial;
+                if (carpetaHistorial != null && (indicadores & HISTORIAL_ESCALONADO) != 0) {
+                    // El saldo se comprueba con las sumas de los segmentos, sin leer sus movimientos
+                    HistorialEscalonado escalonado = HistorialEscalonado.reabrir(Path.of(carpetaHistorial), (int) numero);
+                    if (escalonado.saldoCentimos() != saldo) {
+                        escalonado.close();
+                        throw new IOException("El saldo del snapshot no coincide con el historial escalonado.");
+                    }
+                    historial = escalonado;
+                } else if (carpetaHistorial != null) {
+                    HistorialMapeado mapeado = HistorialMapeado.reabrir(Path.of(carpetaHistorial), (int) numero);
+                    if (mapeado.size() != numero) {
+                        mapeado.close();
+                        throw new IOException("El historial mapeado tiene menos movimientos que el snapshot.");
+                    }
+                    historial = mapeado;
+                } else if (historialPerezoso) {
+                    historial = new HistorialPerezoso(canal, (int) numero, numBloques, posicionResumen, posicionIndice);
+                    cedido = true;
+                } else {
+                    historial = leerMovimientos(canal, (int) numero, numBloques, posicionIndice, saldo, origen);
+                }
+
+                if (concurrente) {
+                    cuenta = new CuentaConcurrente(cliente);
+                    for (Movimiento m : historial) {
+                        cuenta.addMovimiento(m);
+                    }
+                } else if (estadisticas != null) {
+                    cuenta = new Cuenta(cliente, historial, saldo, estadisticas);
+                } else {
+                    cuenta = new Cuenta(cliente, historial);
+                }
+                if (cuenta.getSaldoCentimos() != saldo) {
+                    throw new IOException("El saldo del snapshot no coincide con sus movimientos.");
+                }
+            } else {
+                throw new IOException("Versión de snapshot no soportada: " + version);
+            }
+            MEDIDA_CARGAR.registrar(inicio, asignados, 0);
+            return cuenta;
+        } finally {
+            if (!cedido) {
+                canal.close();
+            }
+        }
+    }
+
+    /**
+     * Lee el índice de bloques de un snapshot (ver {@link HistorialPerezoso}).
+     */
+    static long[] leerIndice(FileChannel canal, long posicionIndice, int numBloques) throws IOException {
+        ByteBuffer indice = leerConCrc(canal, posicionIndice, numBloques * 8 + TAM_CRC, "el índice del snapshot");
+        long[] posiciones = new long[numBloques];
+        for (int b = 0; b < numBloques; b++) {
+            posiciones[b] = indice.getLong();
+        }
+        return posiciones;
+    }
+
+    /**
+     * Lee el bloque que empieza en {@code posicion}, que debe tener tantos movimientos como
+     * {@code instantes}: deja en cada posición el instante y (céntimos * 2 + código de tipo).
+     */
+    static void leerBloque(FileChannel canal, long posicion, long[] instantes, long[] valores) throws IOException {
+        ByteBuffer cabecera = leer(canal, posicion, TAM_CABECERA_BLOQUE);
+        int numero = cabecera.getInt();
+        int tam = cabecera.getInt();
+        int crcGuardado = cabecera.getInt();
+        if (numero != instantes.length || tam < 2 * numero || tam > numero * MAX_MOVIMIENTO) {
+            throw new IOException("Bloque de movimientos no válido en la posición " + posicion + ".");
+        }
+        ByteBuffer registros = leer(canal, posicion + TAM_CABECERA_BLOQUE, tam);
+        CRC32 crc = new CRC32();
+        crc.update(registros.array(), 0, tam);
+        if ((int) crc.getValue() != crcGuardado) {
+            throw new IOException("El CRC del bloque en la posición " + posicion + " no coincide: el archivo está dañado.");
+        }
+        long instante = 0;
+        for (int k = 0; k < numero; k++) {
+            instante += varint(registros);
+            instantes[k] = instante;
+            valores[k] = varint(registros);
+        }
+        if (registros.hasRemaining()) {
+            throw new IOException("Bloque de movimientos no válido en la posición " + posicion + ".");
+        }
+    }
+
+    /**
+     * Codifica en {@code destino} un bloque (cabecera y registros, como los que lee
+     * {@link #leerBloque}) con los {@code n} primeros instantes y valores (céntimos * 2 + código de
+     * tipo). Devuelve los bytes que ocupa.
+     */
+    static int codificarBloque(long[] instantes, long[] valores, int n, byte[] destino) {
+        int tam = TAM_CABECERA_BLOQUE;
+        long anterior = 0;
+        for (int k = 0; k < n; k++) {
+            tam = varint(destino, tam, instantes[k] - anterior);
+            tam = varint(destino, tam, valores[k]);
+            anterior = instantes[k];
+        }
+        CRC32 crc = new CRC32();
+        crc.update(destino, TAM_CABECERA_BLOQUE, tam - TAM_CABECERA_BLOQUE);
+        ByteBuffer.wrap(destino, 0, TAM_CABECERA_BLOQUE)
+                .putInt(n).putInt(tam - TAM_CABECERA_BLOQUE).putInt((int) crc.getValue());
+        return tam;
+    }
+
+    // Lee todos los bloques y comprueba que el saldo coincide con el de los movimientos
+    private static List<Movimiento> leerMovimientos(FileChannel canal, int numero, int numBloques, long posicionIndice,
+                                                    long saldo, Path origen) throws IOException {
+        long[] posiciones = leerIndice(canal, posicionIndice, numBloques);
+        List<Movimiento> lista = new ArrayList<>(numero);
+        long[] instantes = new long[MOVIMIENTOS_POR_BLOQUE];
+        long[] valores = new long[MOVIMIENTOS_POR_BLOQUE];
+        long calculado = 0;
+        for (int b = 0; b < numBloques; b++) {
+            int n = Math.min(MOVIMIENTOS_POR_BLOQUE, numero - b * MOVIMIENTOS_POR_BLOQUE);
+            if (n != instantes.length) {
+                instantes = new long[n];
+                valores = new long[n];
+            }
+            leerBloque(canal, posiciones[b], instantes, valores);
+            for (int k = 0; k < n; k++) {
+                TipoMovimiento tipo = TipoMovimiento.desdeCodigo((byte) (valores[k] & 1));
+                long centimos = valores[k] >> 1;
+                lista.add(new Movimiento(tipo, centimos, instantes[k]));
+                calculado += tipo == TipoMovimiento.RETIRADA ? -centimos : centimos;
+            }
+        }
+        if (calculado != saldo) {
+            throw new IOException("El saldo del snapshot " + origen + " no coincide con sus movimientos.");
+        }
+        return lista;
+    }
+
+    // Formato de la versión 1: todo seguido y con un CRC del archivo entero
+    private static Cuenta cargarVersion1(FileChannel canal, Path origen, long tamano) throws IOException {
+        Lector r = new Lector(canal, tamano - TAM_CRC);
+        r.asegurar(TAM_CABECERA);
+        r.buffer.getLong();
+        int indicadores = r.buffer.getInt();
+        r.buffer.getInt();
+
+        Cliente cliente = new Cliente(r.cadena());
+        r.asegurar(8);
+        long numero = r.buffer.getLong();
+        if (numero < 0 || numero > Integer.MAX_VALUE) {
+            throw new IOException("Número de movimientos no válido en el snapshot: " + numero);
+        }
+
+        List<Movimiento> historial = null;
+        String carpetaMapeada = null;
+        if ((indicadores & HISTORIAL_MAPEADO) != 0) {
+            carpetaMapeada = r.cadena();
+        } else {
+            // Cada registro ocupa al menos 2 bytes: un número mayor indica un archivo dañado
+            if (numero * 2 > r.restantes + r.buffer.remaining()) {
+                throw new IOException("El snapshot " + origen + " está incompleto.");
+            }
+            List<Movimiento> lista = new ArrayList<>((int) numero);
+            long instante = 0;
+            for (long i = 0; i < numero; i++) {
+                r.precargar(MAX_MOVIMIENTO);
+                instante += r.varint();
+                long valor = r.varint();
+                TipoMovimiento tipo = (valor & 1) == 0 ? TipoMovimiento.INGRESO : TipoMovimiento.RETIRADA;
+                lista.add(new Movimiento(tipo, valor >> 1, instante));
+            }
+            historial = lista;
+        }
+        r.asegurar(8);
+        long saldo = r.buffer.getLong();
+        r.comprobarCrc(origen);
+
+        if (carpetaMapeada != null) {
+            HistorialMapeado mapeado = HistorialMapeado.reabrir(Path.of(carpetaMapeada), (int) numero);
+            if (mapeado.size() != numero) {
+                mapeado.close();
+                throw new IOException("El historial mapeado tiene menos movimientos que el snapshot.");
+            }
+            historial = mapeado;
+        }
+
+        Cuenta cuenta;
+        if ((indicadores & CONCURRENTE) != 0) {
+            cuenta = new CuentaConcurrente(cliente);
+            for (Movimiento m : historial) {
+                cuenta.addMovimiento(m);
+            }
+        } else {
+            cuenta = new Cuenta(cliente, historial);
+        }
+        if (cuenta.getSaldoCentimos() != saldo) {
+            throw new IOException("El saldo del snapshot no coincide con sus movimientos.");
+        }
+        return cuenta;
+    }
+
+    /** Lee n bytes del canal a partir de una posición (también para {@link EstadisticasCuenta}). */
+    static ByteBuffer leer(FileChannel canal, long posicion, int n) throws IOException {
+        ByteBuffer datos = ByteBuffer.allocate(n);
+        while (datos.hasRemaining()) {
+            if (canal.read(datos, posicion + datos.position()) < 0) {
+                throw new IOException("El snapshot está incompleto.");
+            }
+        }
+        datos.flip();
+        return datos;
+    }
+
+    // Lee una sección terminada en su CRC32 y lo comprueba
+    private static ByteBuffer leerConCrc(FileChannel canal, long posicion, int n, String que) throws IOException {
+        ByteBuffer datos = leer(canal, posicion, n);
+        CRC32 crc = new CRC32();
+        crc.update(datos.array(), 0, n - TAM_CRC);
+        if ((int) crc.getValue() != datos.getInt(n - TAM_CRC)) {
+            throw new IOException("El CRC de " + que + " no coincide: el archivo está dañado.");
+        }
+        return datos;
+    }
+
+    private static String cadena(ByteBuffer datos) throws IOException {
+        int longitud = datos.getInt();
+        if (longitud < 0) return null;
+        if (longitud > MAX_CADENA || longitud > datos.remaining()) {
+            throw new IOException("Cadena no válida en el snapshot (" + longitud + " bytes).");
+        }
+        byte[] bytes = new byte[longitud];
+        datos.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Varint con zigzag: los valores pequeños (positivos o negativos) ocupan pocos bytes
+    private static int varint(byte[] destino, int p, long valor) {
+        long v = (valor << 1) ^ (valor >> 63);
+        while ((v & ~0x7FL) != 0) {
+            destino[p++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        destino[p++] = (byte) v;
+        return p;
+    }
+
+    private static long varint(ByteBuffer origen) throws IOException {
+        long v = 0;
+        for (int desplazamiento = 0; desplazamiento < 64; desplazamiento += 7) {
+            if (!origen.hasRemaining()) {
+                throw new IOException("El bloque de movimientos está incompleto.");
+            }
+            byte b = origen.get();
+            v |= (long) (b & 0x7F) << desplazamiento;
+            if (b >= 0) {
+                return (v >>> 1) ^ -(v & 1);
+            }
+        }
+        throw new IOException("Varint no válido en el snapshot.");
+    }
+
+    // Sección pequeña (cabecera, resumen o índice) que se prepara en memoria y se escribe seguida de su CRC32
+    private static final class Seccion extends ByteArrayOutputStream {
+        final DataOutputStream out = new DataOutputStream(this);
+
+        void cadena(String s) throws IOException {
+            if (s == null) {
+                out.writeInt(-1);
+                return;
+            }
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > MAX_CADENA) {
+                throw new IOException("Cadena demasiado larga para el snapshot (" + bytes.length + " bytes).");
+            }
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        void fijarEntero(int posicion, int valor) {
+            ByteBuffer.wrap(buf, posicion, 4).putInt(valor);
+        }
+
+        void escribirEn(Escritor w) throws IOException {
+            CRC32 crc = new CRC32();
+            crc.update(buf, 0, count);
+            w.poner(buf, 0, count);
+            w.entero((int) crc.getValue());
+        }
+    }
+
+    // Escritura por bloques: el buffer se vuelca al canal cuando se llena
+    private static final class Escritor {
+        final FileChannel canal;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(TAM_BUFFER);
+        // Bytes ya escritos en el canal
+        long volcados;
+
+        Escritor(FileChannel canal) {
+            this.canal = canal;
+        }
+
+        long posicion() {
+            return volcados + buffer.position();
+        }
+
+        void entero(int valor) throws IOException {
+            if (buffer.remaining() < 4) volcar();
+            buffer.putInt(valor);
+        }
+
+        void largo(long valor) throws IOException {
+            if (buffer.remaining() < 8) volcar();
+            buffer.putLong(valor);
+        }
+
+        void poner(byte[] datos, int desde, int n) throws IOException {
+            while (n > 0) {
+                if (!buffer.hasRemaining()) volcar();
+                int k = Math.min(n, buffer.remaining());
+                buffer.put(datos, desde, k);
+                desde += k;
+                n -= k;
+            }
+        }
+
+        // Copia n bytes de otro archivo a continuación de lo escrito
+        void copiar(FileChannel origen, long desde, long n) throws IOException {
+            volcar();
+            while (n > 0) {
+                long copiados = origen.transferTo(desde, n, canal);
+                if (copiados <= 0) {
+                    throw new IOException("No se pudieron copiar los movimientos del snapshot anterior.");
+                }
+                desde += copiados;
+                n -= copiados;
+                volcados += copiados;
+            }
+        }
+
+        void volcar() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                volcados += canal.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    // Lectura por bloques de la zona de datos de la versión 1 (todo salvo el CRC final), calculando el CRC al leer
+    private static final class Lector {
+        final FileChannel canal;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(TAM_BUFFER);
+        final CRC32 crc = new CRC32();
+        long restantes;
+
+        Lector(FileChannel canal, long datos) {
+            this.canal = canal;
+            this.restantes = datos;
+            buffer.flip();
+        }
+
+        void asegurar(int n) throws IOException {
+            if (buffer.remaining() >= n) return;
+            buffer.compact();
+            int inicio = buffer.position();
+            buffer.limit((int) Math.min(buffer.capacity(), inicio + restantes));
+            while (buffer.hasRemaining()) {
+                if (canal.read(buffer) < 0) break;
+            }
+            ByteBuffer leido = buffer.duplicate();
+            leido.flip().position(inicio);
+            restantes -= leido.remaining();
+            crc.update(leido);
+            buffer.flip();
+            if (buffer.remaining() < n) {
+                throw new IOException("El snapshot está incompleto.");
+            }
+        }
+
+        // Como asegurar, pero sin fallar si quedan menos de n bytes en el archivo
+        void precargar(int n) throws IOException {
+            asegurar((int) Math.min(n, buffer.remaining() + restantes));
+        }
+
+        long varint() throws IOException {
+            long v = 0;
+            for (int desplazamiento = 0; desplazamiento < 64; desplazamiento += 7) {
+                if (!buffer.hasRemaining()) {
+                    throw new IOException("El snapshot está incompleto.");
+                }
+                byte b = buffer.get();
+                v |= (long) (b & 0x7F) << desplazamiento;
+                if (b >= 0) {
+                    return (v >>> 1) ^ -(v & 1);
+                }
+            }
+            throw new IOException("Varint no válido en el snapshot.");
+        }
+
+        String cadena() throws IOException {
+            asegurar(4);
+            int longitud = buffer.getInt();
+            if (longitud < 0) return null;
+            if (longitud > MAX_CADENA) {
+                throw new IOException("Cadena no válida en el snapshot (" + longitud + " bytes).");
+            }
+            asegurar(longitud);
+            byte[] bytes = new byte[longitud];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        // Termina de leer los datos (si sobra algo el archivo no es válido) y compara el CRC
+        void comprobarCrc(Path origen) throws IOException {
+            if (buffer.hasRemaining() || restantes > 0) {
+                throw new IOException("El snapshot " + origen + " tiene datos de más.");
+            }
+            ByteBuffer guardado = ByteBuffer.allocate(TAM_CRC);
+            long posicion = canal.position();
+            while (guardado.hasRemaining()) {
+                int leidos = canal.read(guardado, posicion);
+                if (leidos < 0) throw new IOException("El snapshot " + origen + " está incompleto.");
+                posicion += leidos;
+            }
+            if (guardado.getInt(0) != (int) crc.getValue()) {
+                throw new IOException("El CRC del snapshot " + origen + " no coincide: el archivo está dañado.");
+            }
+        }
+    }
+}
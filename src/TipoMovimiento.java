@@ -0,0 +1,50 @@
+/**
+ * Tipos de movimiento de una cuenta, con su nombre legible y su código binario
+ * (el que se usa en el diario y en los formatos compactos).
+ */
+public enum TipoMovimiento {
+    INGRESO("Ingreso", (byte) 0),
+    RETIRADA("Retirada", (byte) 1);
+
+    private final String nombre;
+    private final byte codigo;
+
+    TipoMovimiento(String nombre, byte codigo) {
+        this.nombre = nombre;
+        this.codigo = codigo;
+    }
+
+    /** Nombre legible ("Ingreso" o "Retirada"), el mismo que aparece en las exportaciones. */
+    public String getNombre() {
+        return nombre;
+    }
+
+    /** Código binario del tipo. */
+    public byte getCodigo() {
+        return codigo;
+    }
+
+    /** Devuelve el tipo con ese código. Lanza IllegalArgumentException si no existe. */
+    public static TipoMovimiento desdeCodigo(byte codigo) {
+        switch (codigo) {
+            case 0: return INGRESO;
+            case 1: return RETIRADA;
+            default: throw new IllegalArgumentException("Código de tipo de movimiento desconocido: " + codigo);
+        }
+    }
+
+    /**
+     * Devuelve el tipo con ese nombre (sin distinguir mayúsculas).
+     * Lanza IllegalArgumentException si no existe.
+     */
+    public static TipoMovimiento desdeNombre(String nombre) {
+        if (INGRESO.nombre.equalsIgnoreCase(nombre)) return INGRESO;
+        if (RETIRADA.nombre.equalsIgnoreCase(nombre)) return RETIRADA;
+        throw new IllegalArgumentException("Tipo de movimiento desconocido: " + nombre);
+    }
+
+    @Override
+    public String toString() {
+        return nombre;
+    }
+}